@@ -0,0 +1,83 @@
+package com.github.jaskey.rocketmq.benchmark;
+
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.persist.JDBCPersit;
+import com.github.jaskey.rocketmq.persist.MappedLogPersist;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import com.github.jaskey.rocketmq.persist.RedisPersist;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisClientConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * 基准测试使用的存储
+ * memory: 内存（MemoryPersist），只衡量去重逻辑本身的开销
+ * mapped: 本地内存映射日志（MappedLogPersist），写在临时目录
+ * h2: 内嵌H2（MySQL模式），替代MySQL
+ * redis: 本地Redis，需要先启动，地址通过-Dbench.redis.host和-Dbench.redis.port指定，默认localhost:6379
+ */
+public final class BenchmarkPersists {
+
+    private BenchmarkPersists() {
+    }
+
+    public static IPersist create(String type) {
+        switch (type) {
+            case "memory":
+                return new MemoryPersist();
+            case "mapped":
+                try {
+                    File file = File.createTempFile("dedup", ".log");
+                    file.deleteOnExit();
+                    return new MappedLogPersist(file.getPath());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            case "h2":
+                return new JDBCPersit(createH2JdbcTemplate());
+            case "redis":
+                //连接池与H2一样最多64个连接，避免基准测试线程等待连接
+                GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+                poolConfig.setMaxTotal(64);
+                poolConfig.setMaxIdle(64);
+                JedisConnectionFactory connectionFactory = new JedisConnectionFactory(new RedisStandaloneConfiguration(System.getProperty("bench.redis.host", "localhost"), Integer.getInteger("bench.redis.port", 6379)),
+                        JedisClientConfiguration.builder().usePooling().poolConfig(poolConfig).build());
+                connectionFactory.afterPropertiesSet();
+                return new RedisPersist(new StringRedisTemplate(connectionFactory));
+            default:
+                throw new IllegalArgumentException("unknown persist " + type);
+        }
+    }
+
+    public static JdbcTemplate createH2JdbcTemplate() {
+        JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:dedup" + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        dataSource.setMaxConnections(64);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute(loadDDL());
+        return jdbcTemplate;
+    }
+
+    //使用随jar包发布的建表语句，去掉H2不支持的部分
+    private static String loadDDL() {
+        try (InputStream in = BenchmarkPersists.class.getClassLoader().getResourceAsStream("sql/t_rocketmq_dedup.sql");
+             Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A")) {
+            return scanner.next()
+                    .replaceAll("(?m)^--.*$", "")
+                    .replace("USING BTREE", "")
+                    .replace("ENGINE=InnoDB DEFAULT CHARSET=utf8 ROW_FORMAT=COMPACT", "");
+        } catch (Exception e) {
+            throw new IllegalStateException("load ddl fail", e);
+        }
+    }
+}
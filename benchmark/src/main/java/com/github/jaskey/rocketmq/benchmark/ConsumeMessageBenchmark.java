@@ -0,0 +1,148 @@
+package com.github.jaskey.rocketmq.benchmark;
+
+import com.github.jaskey.rocketmq.core.DedupConcurrentListener;
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DedupConcurrentListener#consumeMessage 的基准测试
+ * 1.mode=none为不去重（NormalConsumeStrategy），作为基线，其他模式与之相减即为去重的开销
+ * 2.每次调用会生成一批消息（复用MessageExt，只替换去重键），其中duplicateRatio比例的消息是本线程最近消费过的重复消息
+ * 3.吞吐（Throughput）和延迟分布（SampleTime，含p99）同时输出，分配速率用 -prof gc 查看，线程数用 -t 指定
+ *
+ * 示例：java -jar target/benchmarks.jar ConsumeMessageBenchmark -p persist=memory -t 8 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=error")
+public class ConsumeMessageBenchmark {
+
+    @Param({"memory", "h2"})
+    private String persist;
+
+    @Param({"none", "dedup", "batchDedup"})
+    private String mode;
+
+    @Param({"0", "0.1", "0.5"})
+    private double duplicateRatio;
+
+    @Param({"1", "32"})
+    private int batchSize;
+
+    private IPersist dedupPersist;
+
+    private DedupConcurrentListener listener;
+
+    private final AtomicInteger threadSeq = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        DedupConfig dedupConfig;
+        if ("none".equals(mode)) {
+            dedupConfig = DedupConfig.disableDupConsumeConfig("BENCH-APP");
+        } else {
+            dedupPersist = BenchmarkPersists.create(persist);
+            dedupConfig = DedupConfig.enableDedupConsumeConfig("BENCH-APP-" + System.nanoTime(), dedupPersist);
+            dedupConfig.setBatchDedup("batchDedup".equals(mode));
+        }
+        listener = new BenchmarkListener(dedupConfig);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        listener.shutdown();
+    }
+
+
+    @Benchmark
+    public ConsumeConcurrentlyStatus consumeMessage(ThreadState threadState) {
+        List<MessageExt> msgs = threadState.nextBatch(batchSize, duplicateRatio);
+        return listener.consumeMessage(msgs, threadState.context);
+    }
+
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private static final int RECENT_KEYS = 1024;
+
+        private final List<MessageExt> batch = new ArrayList<>();
+        private final String[] recentKeys = new String[RECENT_KEYS];
+        private final SplittableRandom random = new SplittableRandom(42);
+        private String keyPrefix;
+        private long seq;
+        private int consumedCount;
+        private ConsumeConcurrentlyContext context;
+
+        @Setup(Level.Trial)
+        public void setup(ConsumeMessageBenchmark benchmark) {
+            keyPrefix = "KEY-" + benchmark.threadSeq.incrementAndGet() + "-";
+            context = new ConsumeConcurrentlyContext(new MessageQueue("BENCH-TOPIC", "broker-a", 0));
+            for (int i = 0; i < benchmark.batchSize; i++) {
+                MessageExt messageExt = new MessageExt();
+                messageExt.setTopic("BENCH-TOPIC");
+                messageExt.setTags("TAG");
+                messageExt.setBody(new byte[128]);
+                batch.add(messageExt);
+            }
+        }
+
+        List<MessageExt> nextBatch(int batchSize, double duplicateRatio) {
+            for (int i = 0; i < batchSize; i++) {
+                String key;
+                if (consumedCount > 0 && random.nextDouble() < duplicateRatio) {
+                    key = recentKeys[random.nextInt(Math.min(consumedCount, RECENT_KEYS))];
+                } else {
+                    key = keyPrefix + (seq++);
+                    recentKeys[consumedCount++ % RECENT_KEYS] = key;
+                }
+                batch.get(i).setKeys(key);
+            }
+            context.setAckIndex(Integer.MAX_VALUE);
+            return batch;
+        }
+    }
+
+
+    private static class BenchmarkListener extends DedupConcurrentListener {
+
+        BenchmarkListener(DedupConfig dedupConfig) {
+            super(dedupConfig);
+        }
+
+        @Override
+        protected String dedupMessageKey(MessageExt messageExt) {
+            return messageExt.getKeys();
+        }
+
+        @Override
+        protected boolean doHandleMsg(MessageExt messageExt) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.jaskey.rocketmq.benchmark;
+
+import com.github.jaskey.rocketmq.core.ContentHashKeyFunction;
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计算单条消息去重键的开销
+ * uniqKey: 默认的去重键（uniqID）
+ * bodyHash: ContentHashKeyFunction.ofBody，哈希整个消息体
+ * jsonFieldsHash: ContentHashKeyFunction.ofJsonFields，在字节上定位两个字段再哈希
+ * decodeBody: 对比用，把消息体解码为字符串（业务自己按内容去重时的常见做法）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentHashKeyBenchmark {
+
+    @Param({"256", "1024", "8192"})
+    private int bodySize;
+
+    private final ContentHashKeyFunction bodyFunction = ContentHashKeyFunction.ofBody();
+
+    private final ContentHashKeyFunction jsonFieldsFunction = ContentHashKeyFunction.ofJsonFields(Arrays.asList("orderId", "amount"));
+
+    private MessageExt messageExt;
+
+    @Setup
+    public void setup() {
+        StringBuilder body = new StringBuilder("{\"orderId\":\"O202001010001\",\"items\":[");
+        while (body.length() < bodySize - 40) {
+            body.append("{\"sku\":\"S").append(body.length()).append("\",\"count\":1},");
+        }
+        body.setLength(body.length() - 1);
+        body.append("],\"amount\":128.50}");
+        messageExt = new MessageExt();
+        messageExt.setTopic("BENCH-TOPIC");
+        messageExt.setBody(body.toString().getBytes(StandardCharsets.UTF_8));
+        MessageClientIDSetter.setUniqID(messageExt);
+    }
+
+    @Benchmark
+    public String uniqKey() {
+        return DedupConfig.defaultDedupMessageKeyFunction.apply(messageExt);
+    }
+
+    @Benchmark
+    public String bodyHash() {
+        return bodyFunction.apply(messageExt);
+    }
+
+    @Benchmark
+    public String jsonFieldsHash() {
+        return jsonFieldsFunction.apply(messageExt);
+    }
+
+    @Benchmark
+    public String decodeBody() {
+        return new String(messageExt.getBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.jaskey.rocketmq.benchmark;
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.DedupKeyCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单条消息生命周期内（抢占+标记已消费）生成存储键的开销
+ * legacyStringKey: 旧的做法，每次操作拼接一次字符串再getBytes
+ * codecKey/codecHashedKey: DedupKeyCodec，前缀缓存，同一条消息只编码一次
+ * 配合 -prof gc 看每次操作的分配字节数
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupKeyCodecBenchmark {
+
+    private static final String APPLICATION = "BENCH-APP";
+    private static final String TOPIC = "BENCH-TOPIC";
+    private static final String TAG = "TAG";
+
+    private final DedupKeyCodec codec = new DedupKeyCodec();
+    private final DedupKeyCodec hashedCodec = new DedupKeyCodec(true);
+
+    private final String msgUniqKey = "C0A8011E00002A9F0000000000000001";
+
+    @Benchmark
+    public void legacyStringKey(Blackhole blackhole) {
+        DedupElement dedupElement = new DedupElement(APPLICATION, TOPIC, TAG, msgUniqKey);
+        blackhole.consume(buildLegacyKey(dedupElement).getBytes());
+        blackhole.consume(buildLegacyKey(dedupElement).getBytes());
+    }
+
+    @Benchmark
+    public void codecKey(Blackhole blackhole) {
+        DedupElement dedupElement = new DedupElement(APPLICATION, TOPIC, TAG, msgUniqKey);
+        blackhole.consume(codec.encode(dedupElement));
+        blackhole.consume(codec.encode(dedupElement));
+    }
+
+    @Benchmark
+    public void codecHashedKey(Blackhole blackhole) {
+        DedupElement dedupElement = new DedupElement(APPLICATION, TOPIC, TAG, msgUniqKey);
+        blackhole.consume(hashedCodec.encode(dedupElement));
+        blackhole.consume(hashedCodec.encode(dedupElement));
+    }
+
+    //与改造前RedisPersist的键拼接方式一致
+    private static String buildLegacyKey(DedupElement dedupElement) {
+        String tag = dedupElement.getTag();
+        String prefix = "MSGDEDUP:" + dedupElement.getApplication() + ":" + dedupElement.getTopic() + (tag != null && !tag.isEmpty() ? ":" + tag : "");
+        return prefix + ":" + dedupElement.getMsgUniqKey();
+    }
+}
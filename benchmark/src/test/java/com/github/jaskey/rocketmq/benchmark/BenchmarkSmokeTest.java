@@ -0,0 +1,75 @@
+package com.github.jaskey.rocketmq.benchmark;
+
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 基准测试本身的冒烟测试：各个存储的去重行为一致，基准测试可以跑通
+ */
+public class BenchmarkSmokeTest {
+
+    private static void assertDedup(IPersist persist) {
+        DedupElement dedupElement = new DedupElement("BENCH-APP-" + System.nanoTime(), "BENCH-TOPIC", "TAG", "k1");
+        try {
+            assertEquals(ClaimResult.CLAIMED, persist.claim(dedupElement, 60 * 1000));
+            assertEquals(ClaimResult.CONSUMING, persist.claim(dedupElement, 60 * 1000));
+            persist.markConsumed(dedupElement, 1);
+            assertEquals(ClaimResult.CONSUMED, persist.claim(dedupElement, 60 * 1000));
+            persist.delete(dedupElement);
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void localPersists() {
+        assertDedup(BenchmarkPersists.create("memory"));
+        assertDedup(BenchmarkPersists.create("mapped"));
+        assertDedup(BenchmarkPersists.create("h2"));
+    }
+
+    @Test
+    public void redisPersist() {
+        IPersist persist = BenchmarkPersists.create("redis");
+        try {
+            persist.get(new DedupElement("BENCH-APP", "BENCH-TOPIC", "TAG", "ping"));
+        } catch (Exception e) {
+            Assume.assumeNoException("redis is not available", e);
+        }
+        assertDedup(persist);
+    }
+
+    @Test
+    public void runConsumeMessageBenchmark() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ConsumeMessageBenchmark.class.getSimpleName())
+                .param("persist", "memory")
+                .param("mode", "dedup", "batchDedup")
+                .param("duplicateRatio", "0.5")
+                .param("batchSize", "32")
+                .mode(org.openjdk.jmh.annotations.Mode.Throughput)
+                .forks(0)
+                .warmupIterations(0)
+                .measurementIterations(1)
+                .measurementTime(TimeValue.milliseconds(200))
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        assertEquals(2, results.size());
+        for (RunResult result : results) {
+            assertTrue(result.getPrimaryResult().getScore() > 0);
+        }
+    }
+}
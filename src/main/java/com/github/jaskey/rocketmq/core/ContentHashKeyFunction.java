@@ -0,0 +1,131 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.util.JsonFieldScanner;
+import com.github.jaskey.rocketmq.util.MurmurHash3;
+import lombok.ToString;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 按消息内容计算去重键：对消息体（或其中若干JSON字段）和若干消息属性做128位MurmurHash3，返回32位十六进制字符串
+ * 适用于生产者重试时新建消息（uniqID/msgId都变了）但业务内容相同的场景
+ * 1.直接在MessageExt#getBody()上计算，不拷贝、不解码为字符串；JSON字段由JsonFieldScanner在字节上定位，只哈希字段值的原始字节
+ * 2.各部分分别哈希后按顺序合并，字段/属性不存在与值为空字符串得到的去重键不同
+ * 3.消息体不是合法的JSON对象时退化为哈希整个消息体
+ * 注：JSON字段按原始字节比较，同一个值的不同写法（如1.0与1、转义与不转义）会得到不同的去重键
+ * 通过DedupConfig#setDedupMessageKeyFunction配置
+ */
+@ToString(of = {"jsonFields", "propertyNames", "includeBody"})
+public class ContentHashKeyFunction implements Function<MessageExt, String> {
+
+    private static final long SEED = 0x5bd1e995L;
+
+    //字段/属性不存在时代替其哈希值参与合并，与空字符串的哈希值不同
+    private static final long ABSENT = 0x9e3779b97f4a7c15L;
+
+    //合并各部分哈希的乘数（奇数）
+    private static final long MULTIPLIER = 0xc6a4a7935bd1e995L;
+
+    private final boolean includeBody;
+
+    private final List<String> jsonFields;
+
+    private final JsonFieldScanner scanner;
+
+    private final List<String> propertyNames;
+
+    private ContentHashKeyFunction(boolean includeBody, List<String> jsonFields, String[] propertyNames) {
+        this.includeBody = includeBody;
+        this.jsonFields = jsonFields;
+        this.scanner = jsonFields == null || jsonFields.isEmpty() ? null : new JsonFieldScanner(jsonFields.toArray(new String[0]));
+        this.propertyNames = Arrays.asList(propertyNames);
+    }
+
+
+    /**
+     * 哈希整个消息体和指定的消息属性
+     * @param propertyNames 消息属性名，如业务自定义的属性或KEYS，不需要可以不传
+     */
+    public static ContentHashKeyFunction ofBody(String... propertyNames) {
+        return new ContentHashKeyFunction(true, null, propertyNames);
+    }
+
+    /**
+     * 哈希消息体（JSON对象）中的指定顶层字段和指定的消息属性，字段顺序影响结果
+     * @param jsonFields 顶层字段名，如["orderId", "amount"]
+     * @param propertyNames 消息属性名，不需要可以不传
+     */
+    public static ContentHashKeyFunction ofJsonFields(List<String> jsonFields, String... propertyNames) {
+        if (jsonFields == null || jsonFields.isEmpty()) {
+            throw new IllegalArgumentException("jsonFields can not be empty");
+        }
+        return new ContentHashKeyFunction(true, jsonFields, propertyNames);
+    }
+
+    /**
+     * 只哈希指定的消息属性，不读消息体
+     */
+    public static ContentHashKeyFunction ofProperties(String... propertyNames) {
+        if (propertyNames.length == 0) {
+            throw new IllegalArgumentException("propertyNames can not be empty");
+        }
+        return new ContentHashKeyFunction(false, null, propertyNames);
+    }
+
+
+    @Override
+    public String apply(MessageExt messageExt) {
+        long[] acc = new long[2];
+        long[] out = new long[2];
+        if (includeBody) {
+            byte[] body = messageExt.getBody();
+            if (body == null) {
+                mixAbsent(acc);
+            } else if (scanner == null || !mixJsonFields(body, acc, out)) {
+                mix(body, 0, body.length, acc, out);
+            }
+        }
+        for (String propertyName : propertyNames) {
+            String value = messageExt.getProperty(propertyName);
+            if (value == null) {
+                mixAbsent(acc);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                mix(bytes, 0, bytes.length, acc, out);
+            }
+        }
+        return MurmurHash3.toHex(acc);
+    }
+
+
+    //返回消息体是否为合法的JSON对象，不合法时acc未被修改
+    private boolean mixJsonFields(byte[] body, long[] acc, long[] out) {
+        int[] spans = new int[scanner.getFieldCount() * 2];
+        if (!scanner.scan(body, 0, body.length, spans)) {
+            return false;
+        }
+        for (int i = 0; i < spans.length; i += 2) {
+            if (spans[i] < 0) {
+                mixAbsent(acc);
+            } else {
+                mix(body, spans[i], spans[i + 1] - spans[i], acc, out);
+            }
+        }
+        return true;
+    }
+
+    private static void mix(byte[] data, int offset, int len, long[] acc, long[] out) {
+        MurmurHash3.hash128(data, offset, len, SEED, out);
+        acc[0] = acc[0] * MULTIPLIER + out[0];
+        acc[1] = acc[1] * MULTIPLIER + out[1];
+    }
+
+    private static void mixAbsent(long[] acc) {
+        acc[0] = acc[0] * MULTIPLIER + ABSENT;
+        acc[1] = acc[1] * MULTIPLIER + ABSENT;
+    }
+}
@@ -2,6 +2,7 @@ package com.github.jaskey.rocketmq.core;
 
 
 
+import com.github.jaskey.rocketmq.persist.IPersist;
 import com.github.jaskey.rocketmq.strategy.ConsumeStrategy;
 import com.github.jaskey.rocketmq.strategy.DedupConsumeStrategy;
 import com.github.jaskey.rocketmq.strategy.NormalConsumeStrategy;
@@ -12,7 +13,11 @@ import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
 import org.apache.rocketmq.common.message.MessageClientIDSetter;
 import org.apache.rocketmq.common.message.MessageExt;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Function;
 
 
@@ -24,15 +29,20 @@ import java.util.function.Function;
 @Slf4j
 public abstract class DedupConcurrentListener implements MessageListenerConcurrently {
 
-    // 默认不去重
-    private DedupConfig dedupConfig = DedupConfig.disableDupConsumeConfig("NOT-SET-CONSUMER-GROUP");
+    //消费回调和去重键函数只创建一次，避免每条消息分配
+    private final Function<MessageExt, Boolean> consumeCallback = this::doHandleMsg;
+
+    private final Function<MessageExt, String> dedupKeyFunction = this::dedupMessageKey;
+
+    //去重配置和对应的策略放在一起替换，消费时读一次，保证同一批消息用的是同一份配置
+    private volatile ConfiguredStrategy configuredStrategy;
 
 
     /**
      * 默认不去重
      */
     public DedupConcurrentListener(){
-        log.info("Construct QBConcurrentRMQListener with default {}", dedupConfig);
+        this(DedupConfig.disableDupConsumeConfig("NOT-SET-CONSUMER-GROUP"));
     }
 
     /**
@@ -40,29 +50,61 @@ public abstract class DedupConcurrentListener implements MessageListenerConcurre
      * @param dedupConfig
      */
     public DedupConcurrentListener(DedupConfig dedupConfig) {
-        this.dedupConfig = dedupConfig;
+        this.configuredStrategy = new ConfiguredStrategy(dedupConfig, dedupKeyFunction);
         log.info("Construct QBConcurrentRMQListener with dedupConfig {}", dedupConfig);
     }
 
 
+    /**
+     * 运行时替换去重配置，正在消费的批次仍使用旧的配置，之后的批次使用新的配置
+     * 注：旧配置的去重存储不会被关闭，如有需要由调用方在替换后自行调用其shutdown
+     */
+    public void setDedupConfig(DedupConfig dedupConfig) {
+        this.configuredStrategy = new ConfiguredStrategy(dedupConfig, dedupKeyFunction);
+        log.info("Replace dedupConfig with {}", dedupConfig);
+    }
+
+    public DedupConfig getDedupConfig() {
+        return configuredStrategy.dedupConfig;
+    }
+
+
     @Override
     public ConsumeConcurrentlyStatus consumeMessage(List<MessageExt> msgs, ConsumeConcurrentlyContext context) {
+        ConfiguredStrategy configured = this.configuredStrategy;
         boolean hasConsumeFail = false;
         int ackIndexIfFail = -1;
-        for (int i = 0; i < msgs.size(); i++) {
-            MessageExt msg = msgs.get(i);
+        Executor consumeExecutor = configured.dedupConfig.getConsumeExecutor();
+        if (consumeExecutor != null && msgs.size() > 1) {
+            //批内并行消费
+            ackIndexIfFail = consumeParallel(configured.strategy, msgs, consumeExecutor);
+            hasConsumeFail = ackIndexIfFail < msgs.size() - 1;
+        } else if (configured.dedup && configured.dedupConfig.isBatchDedup()) {
+            //整批去重，存储的调用按批次合并
             try {
-                hasConsumeFail = !handleMsgInner(msg);
+                ackIndexIfFail = configured.strategy.invokeBatch(consumeCallback, msgs);
             } catch (Exception ex) {
-                log.warn("Throw Exception when consume {}, ex", msg, ex);
-                hasConsumeFail = true;
+                //如整批抢占时去重存储异常，整批稍后重试
+                log.warn("Throw Exception when consume {} msg(s) in batch, ex", msgs.size(), ex);
+                ackIndexIfFail = -1;
             }
-
-            //如果前面出现消费失败的话，后面也不用消费了，因为都会重发
-            if (hasConsumeFail) {
-                break;
-            } else { //到现在都消费成功
-                ackIndexIfFail = i;
+            hasConsumeFail = ackIndexIfFail < msgs.size() - 1;
+        } else {
+            for (int i = 0; i < msgs.size(); i++) {
+                MessageExt msg = msgs.get(i);
+                try {
+                    hasConsumeFail = !configured.strategy.invoke(consumeCallback, msg);
+                } catch (Exception ex) {
+                    log.warn("Throw Exception when consume {}, ex", msg, ex);
+                    hasConsumeFail = true;
+                }
+
+                //如果前面出现消费失败的话，后面也不用消费了，因为都会重发
+                if (hasConsumeFail) {
+                    break;
+                } else { //到现在都消费成功
+                    ackIndexIfFail = i;
+                }
             }
         }
 
@@ -78,6 +120,19 @@ public abstract class DedupConcurrentListener implements MessageListenerConcurre
         return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
     }
 
+    /**
+     * 消费者shutdown之后调用，释放去重存储相关的资源（如把异步写入队列中剩余的记录写入）
+     */
+    public void shutdown() {
+        LeaseRenewer leaseRenewer = configuredStrategy.dedupConfig.getLeaseRenewer();
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdown();
+        }
+        for (IPersist persist : configuredStrategy.dedupConfig.getAllPersists()) {
+            persist.shutdown();
+        }
+    }
+
     /**
      * 子类实现此方法。真正处理消息
      * @param messageExt
@@ -87,9 +142,13 @@ public abstract class DedupConcurrentListener implements MessageListenerConcurre
 
 
     /**
-     *  默认拿uniqkey 作为去重的标识
+     *  默认拿uniqkey 作为去重的标识，配置了DedupConfig#setDedupMessageKeyFunction时使用配置的函数
      */
     protected String dedupMessageKey(final MessageExt messageExt) {
+        Function<MessageExt, String> dedupMessageKeyFunction = getDedupConfig().getDedupMessageKeyFunction();
+        if (dedupMessageKeyFunction != null) {
+            return dedupMessageKeyFunction.apply(messageExt);
+        }
         String uniqID = MessageClientIDSetter.getUniqID(messageExt);
         if (uniqID == null) {
             return messageExt.getMsgId();
@@ -101,17 +160,66 @@ public abstract class DedupConcurrentListener implements MessageListenerConcurre
 
 
 
-    //消费消息，带去重的逻辑
-    private boolean handleMsgInner(final MessageExt messageExt) {
-        ConsumeStrategy strategy = new NormalConsumeStrategy();
+    /**
+     * 把一批消息同时提交到线程池消费，全部完成后返回最长的连续成功前缀的最后一个下标
+     * 前缀之后消费成功的消息不释放去重记录（已标记为已消费），重发后会被直接幂等掉，不会重复执行业务
+     */
+    private int consumeParallel(ConsumeStrategy strategy, List<MessageExt> msgs, Executor consumeExecutor) {
+        int size = msgs.size();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(size);
+        for (MessageExt msg : msgs) {
+            CompletableFuture<Boolean> future;
+            try {
+                future = strategy.invokeAsync(consumeCallback, msg, consumeExecutor);
+            } catch (RejectedExecutionException e) {
+                //线程池满了，在消费线程上直接执行
+                future = new CompletableFuture<>();
+                try {
+                    future.complete(strategy.invoke(consumeCallback, msg));
+                } catch (Exception ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+            futures.add(future.exceptionally(ex -> {
+                log.warn("Throw Exception when consume {}, ex", msg, ex);
+                return false;
+            }));
+        }
+
+        int ackIndex = -1;
+        boolean prefix = true;
+        for (int i = 0; i < size; i++) {
+            //需要等待全部完成，不能在第一个失败时返回，否则后面的消息仍在消费
+            boolean consumeRes = futures.get(i).join();
+            if (prefix && consumeRes) {
+                ackIndex = i;
+            } else {
+                prefix = false;
+            }
+        }
+        return ackIndex;
+    }
+
 
-        Function<MessageExt, String> dedupKeyFunction = messageExt1 -> dedupMessageKey(messageExt);
+    //去重配置及按配置创建好的消费策略
+    private static class ConfiguredStrategy {
+        private final DedupConfig dedupConfig;
+        private final ConsumeStrategy strategy;
+        private final boolean dedup;
 
-        if (dedupConfig.getDedupStrategy() == DedupConfig.DEDUP_STRATEGY_CONSUME_LATER) {
-             strategy = new DedupConsumeStrategy(dedupConfig, dedupKeyFunction);
+        ConfiguredStrategy(DedupConfig dedupConfig, Function<MessageExt, String> dedupKeyFunction) {
+            if (dedupConfig == null) {
+                throw new NullPointerException("dedupConfig is null");
+            }
+            this.dedupConfig = dedupConfig;
+            if (dedupConfig.isDedupEnabled()) {
+                this.strategy = new DedupConsumeStrategy(dedupConfig, dedupKeyFunction);
+                this.dedup = true;
+            } else {
+                this.strategy = new NormalConsumeStrategy();
+                this.dedup = false;
+            }
         }
-        //调用对应的策略
-        return strategy.invoke(DedupConcurrentListener.this::doHandleMsg, messageExt);
     }
 
 
@@ -1,9 +1,17 @@
 package com.github.jaskey.rocketmq.core;
 
 
+import com.github.jaskey.rocketmq.filter.DedupPreFilter;
+import com.github.jaskey.rocketmq.metrics.DedupMetrics;
+import com.github.jaskey.rocketmq.persist.HotKeyPersist;
 import com.github.jaskey.rocketmq.persist.IPersist;
 import com.github.jaskey.rocketmq.persist.JDBCPersit;
+import com.github.jaskey.rocketmq.persist.MetricsPersist;
+import com.github.jaskey.rocketmq.persist.NearCachePersist;
 import com.github.jaskey.rocketmq.persist.RedisPersist;
+import com.github.jaskey.rocketmq.persist.ResilientPersist;
+import com.github.jaskey.rocketmq.persist.ShardedPersist;
+import com.github.jaskey.rocketmq.persist.WriteBehindPersist;
 import lombok.Getter;
 import lombok.ToString;
 import org.apache.rocketmq.common.message.MessageClientIDSetter;
@@ -11,6 +19,13 @@ import org.apache.rocketmq.common.message.MessageExt;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 @Getter
@@ -25,7 +40,14 @@ public class DedupConfig {
      * 开启去重，发现有处理中的消息，后面再重试
      */
     public static final int DEDUP_STRATEGY_CONSUME_LATER = 1;
-//  public static final int DEDUP_STRATEGY_DROP = 2; //直接当重复处理
+    /**
+     * 开启去重，发现有处理中的消息，直接当重复处理（ack），适用于可以容忍少量丢失、不希望重复消息进入重试队列的场景
+     * 注：前一个消费失败时，被当作重复处理的消息不会再消费
+     */
+    public static final int DEDUP_STRATEGY_DROP = 2;
+
+    //setDedupPolicy中表示所有TAG
+    private static final String ALL_TAGS = "*";
 
 
     private String applicationName;//用以标记去重的时候是哪个应用消费的，同一个应用才需要去重
@@ -42,11 +64,63 @@ public class DedupConfig {
      */
     private long dedupProcessingExpireMilliSeconds = 60 * 1000;
 
+    /**
+     * 重复消息正在消费中时，在本进程内最多等待多少毫秒（轮询前一个消费的结果），默认0即不等待，直接稍后重试
+     * 大部分并发重复的消息在几毫秒内就会消费完，等待可以避免整批消息重发到重试队列
+     */
+    private long consumingWaitMilliSeconds = 0;
+
     /**
      * 消息消费成功后，记录保留多少分钟，默认一天，即一天内的消息不会重复
      */
     private long dedupRecordReserveMinutes = 60 * 24;
 
+    /**
+     * 是否按批次去重，开启后整批消息（consumeMessageBatchMaxSize）的抢占、标记已消费、释放各只需一次存储调用，默认关闭
+     * 注：开启后整批消息会在消费前一次性抢占，批次消费总耗时需要小于dedupProcessingExpireMilliSeconds
+     */
+    private boolean batchDedup = false;
+
+    /**
+     * 去重存储为AsyncPersist时，消费线程同步等待存储结果（批量抢占、批量标记）最多多少毫秒，默认2秒，超时按存储异常处理
+     */
+    private long asyncPersistTimeoutMilliSeconds = 2000;
+
+    /**
+     * 本进程内的预过滤器，用以区分一定是新消息和可能重复的消息，默认不开启
+     */
+    private DedupPreFilter preFilter;
+
+    /**
+     * 去重的监控指标，默认不统计
+     */
+    private DedupMetrics metrics = DedupMetrics.NOOP;
+
+    /**
+     * 消费中记录的续期，默认不开启（为null）
+     */
+    private LeaseRenewer leaseRenewer;
+
+    /**
+     * 本进程内并发的重复消息合并，默认不开启（为null）
+     */
+    private InFlightRegistry inFlightRegistry;
+
+    /**
+     * 批内并行消费的线程池，默认不开启（为null），即一批消息在消费线程上按顺序消费
+     */
+    private Executor consumeExecutor;
+
+    /**
+     * 去重键函数，默认为null即使用监听器的dedupMessageKey（uniqID/msgId）；子类覆盖了dedupMessageKey时以子类为准
+     */
+    private Function<MessageExt, String> dedupMessageKeyFunction;
+
+    /**
+     * 按TOPIC/TAG覆盖的去重策略：TOPIC -> (TAG -> 策略)，TAG为*表示该TOPIC下的其他TAG，配置时整体重建，消费时只读
+     */
+    private volatile Map<String, Map<String, DedupPolicy>> dedupPolicies = Collections.emptyMap();
+
 
     //默认拿uniqkey 作为去重的标识
     public static Function<MessageExt, String> defaultDedupMessageKeyFunction = messageExt -> {
@@ -76,6 +150,12 @@ public class DedupConfig {
         this.applicationName = applicationName;
     }
 
+    private DedupConfig(String applicationName, int dedupStrategy, IPersist persist) {
+        this.persist = persist;
+        this.dedupStrategy = dedupStrategy;
+        this.applicationName = applicationName;
+    }
+
     private DedupConfig(String applicationName) {
         this.dedupStrategy = DEDUP_STRATEGY_DISABLE;
         this.applicationName = applicationName;
@@ -92,6 +172,16 @@ public class DedupConfig {
         return new DedupConfig(applicationName, DEDUP_STRATEGY_CONSUME_LATER, redisTemplate);
     }
 
+    /**
+     * 利用多个redis去重，按topic和去重键一致性哈希分片
+     * @param applicationName
+     * @param redisTemplates 分片名 -> redisTemplate，分片名确定后不要修改，路由只取决于分片名
+     * @return
+     */
+    public static DedupConfig enableDedupConsumeConfig(String applicationName, Map<String, StringRedisTemplate> redisTemplates) {
+        return new DedupConfig(applicationName, DEDUP_STRATEGY_CONSUME_LATER, ShardedPersist.ofRedis(redisTemplates));
+    }
+
     /**
      * 利用mysql去重
      * @param applicationName
@@ -102,6 +192,19 @@ public class DedupConfig {
         return new DedupConfig(applicationName, DEDUP_STRATEGY_CONSUME_LATER, jdbcTemplate);
     }
 
+    /**
+     * 利用自定义的存储去重，如使用哈希去重键的Redis：new RedisPersist(redisTemplate, new DedupKeyCodec(true))
+     * @param applicationName
+     * @param persist
+     * @return
+     */
+    public static DedupConfig enableDedupConsumeConfig(String applicationName, IPersist persist) {
+        if (persist == null) {
+            throw new NullPointerException("persist is null");
+        }
+        return new DedupConfig(applicationName, DEDUP_STRATEGY_CONSUME_LATER, persist);
+    }
+
     public static DedupConfig disableDupConsumeConfig(String applicationName) {
         return new DedupConfig(applicationName);
     }
@@ -116,5 +219,251 @@ public class DedupConfig {
         this.dedupRecordReserveMinutes = dedupRecordReserveMinutes;
     }
 
+    /**
+     * @param consumingWaitMilliSeconds 每条处于消费中的重复消息最多等待的毫秒数，批量去重时为整批的等待上限，需要远小于消费超时时间
+     */
+    public void setConsumingWaitMilliSeconds(long consumingWaitMilliSeconds) {
+        if (consumingWaitMilliSeconds < 0) {
+            throw new IllegalArgumentException("consumingWaitMilliSeconds can not be negative");
+        }
+        this.consumingWaitMilliSeconds = consumingWaitMilliSeconds;
+    }
+
+    public void setAsyncPersistTimeoutMilliSeconds(long asyncPersistTimeoutMilliSeconds) {
+        if (asyncPersistTimeoutMilliSeconds <= 0) {
+            throw new IllegalArgumentException("asyncPersistTimeoutMilliSeconds must be positive");
+        }
+        this.asyncPersistTimeoutMilliSeconds = asyncPersistTimeoutMilliSeconds;
+    }
+
+    /**
+     * @param dedupStrategy DEDUP_STRATEGY_DISABLE/DEDUP_STRATEGY_CONSUME_LATER/DEDUP_STRATEGY_DROP
+     */
+    public void setDedupStrategy(int dedupStrategy) {
+        checkDedupStrategy(dedupStrategy, null);
+        this.dedupStrategy = dedupStrategy;
+    }
+
+    /**
+     * 为某个TOPIC的所有TAG单独配置去重策略，见setDedupPolicy(String, String, DedupPolicy)
+     */
+    public void setDedupPolicy(String topic, DedupPolicy dedupPolicy) {
+        setDedupPolicy(topic, ALL_TAGS, dedupPolicy);
+    }
+
+    /**
+     * 为某个TOPIC下的某个TAG单独配置去重策略（不同的去重策略、过期时间、去重存储），没有配置的TOPIC/TAG使用本配置
+     * 匹配顺序：TOPIC+TAG精确匹配，其次TOPIC+*，最后为本配置；需要在监听器开始消费前配置
+     * @param tag 为null或*表示该TOPIC下没有单独配置的所有TAG
+     */
+    public synchronized void setDedupPolicy(String topic, String tag, DedupPolicy dedupPolicy) {
+        if (topic == null || dedupPolicy == null) {
+            throw new NullPointerException("topic or dedupPolicy is null");
+        }
+        checkDedupStrategy(dedupPolicy.getDedupStrategy(), dedupPolicy.getPersist());
+        if (leaseRenewer != null && dedupPolicy.getPersist() != null) {
+            checkRenewal(dedupPolicy.getPersist());
+        }
+        Map<String, Map<String, DedupPolicy>> compiled = new HashMap<>(dedupPolicies);
+        Map<String, DedupPolicy> tagPolicies = new HashMap<>(compiled.getOrDefault(topic, Collections.emptyMap()));
+        tagPolicies.put(tag == null ? ALL_TAGS : tag, dedupPolicy);
+        compiled.put(topic, Collections.unmodifiableMap(tagPolicies));
+        this.dedupPolicies = Collections.unmodifiableMap(compiled);
+    }
+
+    /**
+     * 查找TOPIC/TAG单独配置的去重策略
+     * @return 没有单独配置时返回null，即使用本配置
+     */
+    public DedupPolicy resolveDedupPolicy(String topic, String tag) {
+        Map<String, DedupPolicy> tagPolicies = dedupPolicies.get(topic);
+        if (tagPolicies == null) {
+            return null;
+        }
+        DedupPolicy dedupPolicy = tagPolicies.get(tag);
+        return dedupPolicy != null ? dedupPolicy : tagPolicies.get(ALL_TAGS);
+    }
+
+    /**
+     * 本配置或者任意一个单独配置的TOPIC/TAG开启了去重
+     */
+    public boolean isDedupEnabled() {
+        return dedupStrategy != DEDUP_STRATEGY_DISABLE || !dedupPolicies.isEmpty();
+    }
+
+    /**
+     * 本配置和所有单独配置的去重策略用到的去重存储（去掉重复），用于关闭
+     */
+    public Collection<IPersist> getAllPersists() {
+        Set<IPersist> persists = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (persist != null) {
+            persists.add(persist);
+        }
+        for (Map<String, DedupPolicy> tagPolicies : dedupPolicies.values()) {
+            for (DedupPolicy dedupPolicy : tagPolicies.values()) {
+                if (dedupPolicy.getPersist() != null) {
+                    persists.add(dedupPolicy.getPersist());
+                }
+            }
+        }
+        return persists;
+    }
+
+    private void checkDedupStrategy(int dedupStrategy, IPersist policyPersist) {
+        if (dedupStrategy != DEDUP_STRATEGY_DISABLE && dedupStrategy != DEDUP_STRATEGY_CONSUME_LATER && dedupStrategy != DEDUP_STRATEGY_DROP) {
+            throw new IllegalArgumentException("illegal dedupStrategy " + dedupStrategy);
+        }
+        if (dedupStrategy != DEDUP_STRATEGY_DISABLE && policyPersist == null && persist == null) {
+            throw new IllegalStateException("persist is not set, can not enable dedup");
+        }
+    }
+
+    private static void checkRenewal(IPersist persist) {
+        if (!persist.supportsRenewal()) {
+            throw new IllegalStateException(persist.getClass().getSimpleName() + " does not support renewing consuming records, can not enable lease renewal");
+        }
+    }
+
+    public void setBatchDedup(boolean batchDedup) {
+        this.batchDedup = batchDedup;
+    }
+
+    /**
+     * 设置去重键函数，如按消息内容去重：ContentHashKeyFunction.ofJsonFields(Arrays.asList("orderId"))
+     * 注：修改去重键的计算方式后，已有的去重记录无法再匹配，需要在没有重复消息的时候切换
+     */
+    public void setDedupMessageKeyFunction(Function<MessageExt, String> dedupMessageKeyFunction) {
+        this.dedupMessageKeyFunction = dedupMessageKeyFunction;
+    }
+
+    /**
+     * 开启熔断降级：每次存储调用最多等待callTimeoutMilliSeconds，失败率或者慢调用率过高时熔断，熔断期间按degradeMode处理，
+     * 恢复后把降级期间本地记录的已消费记录补写到存储，详见ResilientPersist
+     * 需要在enableNearCache/enableWriteBehind/enableMetrics等之前调用，只装饰实际访问Redis/MySQL的调用；装饰后不再使用异步存储（AsyncPersist）的接口
+     * @param callTimeoutMilliSeconds 每次存储调用的超时时间，如200
+     * @param degradeMode CONSUME_WITHOUT_DEDUP不去重直接消费/LOCAL本地去重/PAUSE暂停消费
+     */
+    public void enableCircuitBreaker(long callTimeoutMilliSeconds, ResilientPersist.DegradeMode degradeMode) {
+        if (persist == null) {
+            throw new IllegalStateException("persist is not set, can not enable circuit breaker");
+        }
+        this.persist = new ResilientPersist(persist, callTimeoutMilliSeconds, degradeMode);
+    }
+
+    /**
+     * 在去重存储前面加一层本地缓存，缓存最近已消费的去重键，重复消息命中缓存时无需访问Redis/MySQL
+     * @param maxEntries 最多缓存多少个去重键
+     * @param expireMilliSeconds 缓存有效期，远端记录被删除/过期后，最多在这段时间内仍会被当作已消费
+     */
+    public void enableNearCache(int maxEntries, long expireMilliSeconds) {
+        if (persist == null) {
+            throw new IllegalStateException("persist is not set, can not enable near cache");
+        }
+        this.persist = new NearCachePersist(persist, maxEntries, expireMilliSeconds);
+    }
+
+    /**
+     * 开启异步标记已消费，消费成功后不再同步写入已消费状态，由后台线程批量写入，需要在消费者关闭后调用DedupConcurrentListener#shutdown把剩余的记录写入
+     * @param queueCapacity 队列容量，队列满时消费线程会阻塞等待
+     * @param flushBatchSize 每次批量写入的最大条数
+     * @param flushIntervalMilliSeconds 攒批的最长等待时间
+     */
+    public void enableWriteBehind(int queueCapacity, int flushBatchSize, long flushIntervalMilliSeconds) {
+        if (persist == null) {
+            throw new IllegalStateException("persist is not set, can not enable write behind");
+        }
+        this.persist = new WriteBehindPersist(persist, queueCapacity, flushBatchSize, flushIntervalMilliSeconds, 1000);
+    }
+
+    /**
+     * 开启热点去重键的本地应答：一个窗口内抢占次数超过阈值的去重键记为热点并告警（DedupMetrics#recordHotKey），
+     * 之后它的重复消息直接由本地状态回答已消费/消费中，不再访问Redis/MySQL，避免重复风暴把压力放大到去重存储
+     * 需要在enableMetrics之后调用才会上报告警指标
+     * @param threshold 一个窗口内同一个去重键抢占多少次认为是热点，如100
+     * @param windowMilliSeconds 统计窗口，如1000
+     */
+    public void enableHotKeyShedding(int threshold, long windowMilliSeconds) {
+        if (persist == null) {
+            throw new IllegalStateException("persist is not set, can not enable hot key shedding");
+        }
+        this.persist = new HotKeyPersist(persist, threshold, windowMilliSeconds, metrics);
+    }
+
+    /**
+     * 开启本进程内的布隆过滤器预判，一定是新消息的直接用setnx抢占，可能重复的才用带状态的抢占，过滤器按dedupRecordReserveMinutes轮转
+     * 需要在setDedupRecordReserveMinutes之后调用
+     * @param expectedInsertions 每个轮转窗口预计的消息数
+     * @param fpp 期望的误判率，如0.01
+     */
+    public void enablePreFilter(long expectedInsertions, double fpp) {
+        this.preFilter = new DedupPreFilter(expectedInsertions, fpp, dedupRecordReserveMinutes * 60 * 1000);
+    }
+
+    /**
+     * 开启消费中记录的续期：消费中的记录只保留leaseMilliSeconds，消费期间每隔三分之一个租期把所有在途的记录批量续期一次
+     * 适用于消费耗时不确定、可能超过dedupProcessingExpireMilliSeconds的场景，消费者崩溃后重投的消息最多一个租期后即可重新消费
+     * 会覆盖dedupProcessingExpireMilliSeconds（包括单独配置的DedupPolicy）；需要去重存储支持续期（IPersist#supportsRenewal），内置的Redis/MySQL/本地存储均支持
+     * 需要在setDedupPolicy之后调用，之后再配置的DedupPolicy的存储同样需要支持续期
+     * @param leaseMilliSeconds 租期，如10秒
+     */
+    public void enableLeaseRenewal(long leaseMilliSeconds) {
+        if (leaseMilliSeconds < 3) {
+            throw new IllegalArgumentException("leaseMilliSeconds is too small");
+        }
+        for (IPersist p : getAllPersists()) {
+            checkRenewal(p);
+        }
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdown();
+        }
+        this.dedupProcessingExpireMilliSeconds = leaseMilliSeconds;
+        this.leaseRenewer = new LeaseRenewer(this, leaseMilliSeconds / 3);
+    }
+
+    /**
+     * 开启本进程内并发重复消息的合并：同一个去重键在本进程内同时只有一个副本访问去重存储，其他副本等待它的结果
+     * 第一个副本ack了则直接ack，消费失败则再去抢占，等待超时按消费中处理（DEDUP_STRATEGY_DROP时直接ack，否则稍后重试）
+     * 适用于consumeThreadMax > 1、重平衡期间同一条消息被多个消费线程同时拿到的场景；批量去重（batchDedup）的整批抢占不经过合并
+     * @param waitMilliSeconds 后到的副本最多等待多少毫秒，需要远小于消费超时时间
+     */
+    public void enableInFlightCoalescing(long waitMilliSeconds) {
+        if (waitMilliSeconds < 0) {
+            throw new IllegalArgumentException("waitMilliSeconds can not be negative");
+        }
+        this.inFlightRegistry = new InFlightRegistry(waitMilliSeconds);
+    }
+
+    /**
+     * 开启批内并行消费，一批消息（consumeMessageBatchMaxSize > 1）同时提交到线程池消费，批次耗时约为最慢的一条消息
+     * 全部完成后按最长的连续成功前缀计算ackIndex，前缀之后的消息会重发，其中消费成功的已标记为已消费，重发后直接幂等掉
+     * 开启后每条消息单独抢占，不再使用批量去重（batchDedup）
+     * @param consumeExecutor 建议使用有界线程池，线程池拒绝时在消费线程上直接执行；JDK21以上也可以使用Executors.newVirtualThreadPerTaskExecutor()
+     */
+    public void enableParallelConsume(Executor consumeExecutor) {
+        if (consumeExecutor == null) {
+            throw new NullPointerException("consumeExecutor is null");
+        }
+        this.consumeExecutor = consumeExecutor;
+    }
+
+    /**
+     * 开启监控指标：去重判断结果、业务消费耗时，以及去重存储调用耗时（装饰当前的persist）
+     * 在enableNearCache/enableWriteBehind之前调用则只统计实际访问Redis/MySQL的耗时，之后调用则统计包括本地缓存在内的耗时
+     * 分片存储（ShardedPersist）需要在装饰前调用，才会同时统计每个分片的调用耗时
+     * @param metrics 如new MicrometerDedupMetrics(meterRegistry)
+     */
+    public void enableMetrics(DedupMetrics metrics) {
+        if (metrics == null) {
+            throw new NullPointerException("metrics is null");
+        }
+        this.metrics = metrics;
+        if (persist instanceof ShardedPersist) {
+            ((ShardedPersist) persist).setMetrics(metrics);
+        }
+        if (persist != null) {
+            this.persist = new MetricsPersist(persist, metrics);
+        }
+    }
+
 
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+package com.github.jaskey.rocketmq.core;
+
+
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.strategy.ConsumeStrategy;
+import com.github.jaskey.rocketmq.strategy.DedupConsumeStrategy;
+import com.github.jaskey.rocketmq.strategy.NormalConsumeStrategy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+
+/**
+ * 带去重逻辑的顺序消费者，实现者需要实现doHandleMsg
+ * 1.同一个队列的消息是串行消费的，所以整批消息一次批量抢占，按顺序消费，遇到消费失败或消费中即停止
+ * 2.停止后返回SUSPEND_CURRENT_QUEUE_A_MOMENT，稍后整批重新消费，而不是让消息进入重试队列（否则会打乱顺序）
+ * 3.本进程按队列记录已消费到的位点，重新消费时前面已经消费成功的消息直接跳过，无需再访问去重存储
+ *   记录最多保留CONSUMED_OFFSET_EXPIRE_MILLISECONDS（暂停后通常在秒级内重新消费），过期的定期清理，队列被重平衡走后不会一直占用内存
+ */
+@Slf4j
+public abstract class DedupOrderlyListener implements MessageListenerOrderly {
+
+    //本地记录的已消费位点的有效期，超过后不再跳过（重新访问去重存储，结论一致）
+    private static final long CONSUMED_OFFSET_EXPIRE_MILLISECONDS = 10 * 60 * 1000;
+
+    //清理过期位点记录的间隔
+    private static final long PRUNE_INTERVAL_MILLISECONDS = 60 * 1000;
+
+    // 默认不去重
+    private DedupConfig dedupConfig = DedupConfig.disableDupConsumeConfig("NOT-SET-CONSUMER-GROUP");
+
+    private final ConsumeStrategy strategy;
+
+    //队列 -> 本进程已消费成功的最大位点
+    private final ConcurrentHashMap<MessageQueue, ConsumedOffset> consumedOffsets = new ConcurrentHashMap<>();
+
+    private volatile long lastPruneTime = System.currentTimeMillis();
+
+
+    /**
+     * 默认不去重
+     */
+    public DedupOrderlyListener() {
+        this.strategy = new NormalConsumeStrategy();
+        log.info("Construct DedupOrderlyListener with default {}", dedupConfig);
+    }
+
+    /**
+     * 设置去重策略
+     * @param dedupConfig
+     */
+    public DedupOrderlyListener(DedupConfig dedupConfig) {
+        this.dedupConfig = dedupConfig;
+        if (dedupConfig.isDedupEnabled()) {
+            this.strategy = new DedupConsumeStrategy(dedupConfig, this::dedupMessageKey);
+        } else {
+            this.strategy = new NormalConsumeStrategy();
+        }
+        log.info("Construct DedupOrderlyListener with dedupConfig {}", dedupConfig);
+    }
+
+
+    @Override
+    public ConsumeOrderlyStatus consumeMessage(List<MessageExt> msgs, ConsumeOrderlyContext context) {
+        MessageQueue messageQueue = context.getMessageQueue();
+
+        //跳过本进程已经消费成功的（暂停后重新消费的同一批消息）
+        int from = firstNotConsumed(messageQueue, msgs);
+        if (from > 0) {
+            log.info("skip [{}] msg(s) consumed before suspending, {}", from, messageQueue);
+        }
+
+        int ackIndex = from - 1;
+        if (from < msgs.size()) {
+            ackIndex = from + strategy.invokeBatch(this::handleMsgQuietly, msgs.subList(from, msgs.size()));
+        }
+        if (ackIndex >= 0) {
+            markConsumed(messageQueue, msgs.get(ackIndex).getQueueOffset());
+        }
+
+        if (ackIndex == msgs.size() - 1) {//全都消费成功
+            log.info("consume [{}] msg(s) all successfully", msgs.size());
+            return ConsumeOrderlyStatus.SUCCESS;
+        } else {//存在失败或消费中的，暂停队列稍后重新消费
+            log.warn("consume [{}] msg(s) fails, consumed = [{}], suspend {}", msgs.size(), ackIndex + 1, messageQueue);
+            return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+        }
+    }
+
+    /**
+     * 消费者shutdown之后调用，释放去重存储相关的资源（如把异步写入队列中剩余的记录写入）
+     */
+    public void shutdown() {
+        LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdown();
+        }
+        for (IPersist persist : dedupConfig.getAllPersists()) {
+            persist.shutdown();
+        }
+    }
+
+    /**
+     * 子类实现此方法。真正处理消息
+     * @param messageExt
+     * @return true表示消费成功，false表示消费失败
+     */
+    protected abstract boolean doHandleMsg(final MessageExt messageExt);
+
+
+    /**
+     *  默认拿uniqkey 作为去重的标识，配置了DedupConfig#setDedupMessageKeyFunction时使用配置的函数
+     */
+    protected String dedupMessageKey(final MessageExt messageExt) {
+        Function<MessageExt, String> dedupMessageKeyFunction = dedupConfig.getDedupMessageKeyFunction();
+        if (dedupMessageKeyFunction != null) {
+            return dedupMessageKeyFunction.apply(messageExt);
+        }
+        String uniqID = MessageClientIDSetter.getUniqID(messageExt);
+        if (uniqID == null) {
+            return messageExt.getMsgId();
+        } else {
+            return uniqID;
+        }
+    }
+
+
+    private boolean handleMsgQuietly(MessageExt messageExt) {
+        try {
+            return doHandleMsg(messageExt);
+        } catch (Exception ex) {
+            log.warn("Throw Exception when consume {}, ex", messageExt, ex);
+            return false;
+        }
+    }
+
+    private int firstNotConsumed(MessageQueue messageQueue, List<MessageExt> msgs) {
+        ConsumedOffset consumedOffset = consumedOffsets.get(messageQueue);
+        //本地记录只在dedupRecordReserveMinutes内有效，与去重存储的结论保持一致（如重置位点后重新消费）
+        if (consumedOffset == null || isExpired(consumedOffset, System.currentTimeMillis())) {
+            return 0;
+        }
+        int i = 0;
+        while (i < msgs.size() && msgs.get(i).getQueueOffset() <= consumedOffset.offset) {
+            i++;
+        }
+        return i;
+    }
+
+    private void markConsumed(MessageQueue messageQueue, long offset) {
+        long now = System.currentTimeMillis();
+        consumedOffsets.put(messageQueue, new ConsumedOffset(offset, now));
+        if (now - lastPruneTime > PRUNE_INTERVAL_MILLISECONDS) {
+            lastPruneTime = now;
+            pruneConsumedOffsets(now);
+        }
+    }
+
+    //清理过期的位点记录，包括已经被重平衡到其他消费者的队列
+    void pruneConsumedOffsets(long now) {
+        consumedOffsets.values().removeIf(consumedOffset -> isExpired(consumedOffset, now));
+    }
+
+    int getConsumedOffsetCount() {
+        return consumedOffsets.size();
+    }
+
+    private boolean isExpired(ConsumedOffset consumedOffset, long now) {
+        long expireMilliSeconds = Math.min(CONSUMED_OFFSET_EXPIRE_MILLISECONDS, dedupConfig.getDedupRecordReserveMinutes() * 60 * 1000);
+        return now - consumedOffset.updateTime > expireMilliSeconds;
+    }
+
+
+    private static class ConsumedOffset {
+        private final long offset;
+        private final long updateTime;
+
+        ConsumedOffset(long offset, long updateTime) {
+            this.offset = offset;
+            this.updateTime = updateTime;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.persist.IPersist;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 某个TOPIC（或TOPIC下某个TAG）的去重策略，覆盖DedupConfig上的去重策略、过期时间和去重存储
+ * 通过DedupConfig#setDedupPolicy配置，没有配置策略的TOPIC/TAG使用DedupConfig本身的配置
+ * 注：persist为null时使用DedupConfig的去重存储（包括enableNearCache/enableMetrics等装饰）；单独指定的persist不会被这些方法装饰
+ */
+@Getter
+@ToString
+public class DedupPolicy {
+
+    private final int dedupStrategy;
+
+    /**
+     * 对于消费中的消息，多少毫秒内认为重复，开启了续期（DedupConfig#enableLeaseRenewal）时以租期为准
+     */
+    private final long dedupProcessingExpireMilliSeconds;
+
+    /**
+     * 消息消费成功后，记录保留多少分钟
+     */
+    private final long dedupRecordReserveMinutes;
+
+    private final IPersist persist;
+
+    private DedupPolicy(int dedupStrategy, long dedupProcessingExpireMilliSeconds, long dedupRecordReserveMinutes, IPersist persist) {
+        if (dedupStrategy != DedupConfig.DEDUP_STRATEGY_DISABLE && (dedupProcessingExpireMilliSeconds <= 0 || dedupRecordReserveMinutes <= 0)) {
+            throw new IllegalArgumentException("dedupProcessingExpireMilliSeconds and dedupRecordReserveMinutes must be positive");
+        }
+        this.dedupStrategy = dedupStrategy;
+        this.dedupProcessingExpireMilliSeconds = dedupProcessingExpireMilliSeconds;
+        this.dedupRecordReserveMinutes = dedupRecordReserveMinutes;
+        this.persist = persist;
+    }
+
+
+    /**
+     * 不去重，不访问去重存储
+     */
+    public static DedupPolicy disable() {
+        return new DedupPolicy(DedupConfig.DEDUP_STRATEGY_DISABLE, 0, 0, null);
+    }
+
+    /**
+     * 去重，发现有处理中的消息，后面再重试，使用DedupConfig的去重存储
+     */
+    public static DedupPolicy consumeLater(long dedupProcessingExpireMilliSeconds, long dedupRecordReserveMinutes) {
+        return consumeLater(dedupProcessingExpireMilliSeconds, dedupRecordReserveMinutes, null);
+    }
+
+    /**
+     * 去重，发现有处理中的消息，后面再重试，使用指定的去重存储
+     */
+    public static DedupPolicy consumeLater(long dedupProcessingExpireMilliSeconds, long dedupRecordReserveMinutes, IPersist persist) {
+        return new DedupPolicy(DedupConfig.DEDUP_STRATEGY_CONSUME_LATER, dedupProcessingExpireMilliSeconds, dedupRecordReserveMinutes, persist);
+    }
+
+    /**
+     * 去重，发现有处理中的消息直接当重复处理，使用DedupConfig的去重存储
+     */
+    public static DedupPolicy dropWhenConsuming(long dedupProcessingExpireMilliSeconds, long dedupRecordReserveMinutes) {
+        return dropWhenConsuming(dedupProcessingExpireMilliSeconds, dedupRecordReserveMinutes, null);
+    }
+
+    /**
+     * 去重，发现有处理中的消息直接当重复处理，使用指定的去重存储
+     */
+    public static DedupPolicy dropWhenConsuming(long dedupProcessingExpireMilliSeconds, long dedupRecordReserveMinutes, IPersist persist) {
+        return new DedupPolicy(DedupConfig.DEDUP_STRATEGY_DROP, dedupProcessingExpireMilliSeconds, dedupRecordReserveMinutes, persist);
+    }
+}
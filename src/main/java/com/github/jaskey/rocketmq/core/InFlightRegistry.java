@@ -0,0 +1,89 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本进程内正在消费的去重键，合并同一个进程内并发的重复消息（如重平衡期间同一条消息被两个消费线程同时拿到）
+ * 1.第一个副本登记后照常抢占、消费，结束后把结果（是否ack）通知给等待的副本；每个去重键在本进程内同时只有一次抢占访问去重存储
+ * 2.后到的副本不访问去重存储，最多等待waitMilliSeconds：第一个副本ack了则直接ack，消费失败则重新登记，只有一个副本再去抢占，其余的继续等待；等待超时按消费中处理
+ * 3.登记表为ConcurrentHashMap，登记/注销为按桶CAS或者桶内加锁，不同去重键之间互不阻塞；等待在各自的future上，不持有锁
+ * 由DedupConfig#enableInFlightCoalescing创建
+ */
+public class InFlightRegistry {
+
+    private final ConcurrentHashMap<DedupElement, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    private final long waitMilliSeconds;
+
+    //统计
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder waitTimeoutCount = new LongAdder();
+
+    InFlightRegistry(long waitMilliSeconds) {
+        this.waitMilliSeconds = waitMilliSeconds;
+    }
+
+
+    /**
+     * 登记为本进程内正在消费
+     * @param mine 本副本的结果，消费结束后由unregister完成
+     * @return 已经有副本在消费时返回它的结果，本副本没有登记；否则返回null
+     */
+    public CompletableFuture<Boolean> register(DedupElement dedupElement, CompletableFuture<Boolean> mine) {
+        return inFlight.putIfAbsent(dedupElement, mine);
+    }
+
+    /**
+     * 消费结束后调用，与登记成功的register一一对应
+     * @param acked 消息是否已ack（消费成功、已消费过、按DROP策略丢弃）
+     */
+    public void unregister(DedupElement dedupElement, CompletableFuture<Boolean> mine, boolean acked) {
+        inFlight.remove(dedupElement, mine);
+        mine.complete(acked);
+    }
+
+    /**
+     * 等待正在消费的副本的结果
+     * @return 是否已ack，等待超时（或被中断）返回null
+     */
+    public Boolean await(CompletableFuture<Boolean> inFlightResult) {
+        coalescedCount.increment();
+        try {
+            return inFlightResult.get(waitMilliSeconds, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            //不会异常完成，只可能超时
+        }
+        waitTimeoutCount.increment();
+        return null;
+    }
+
+    /**
+     * 当前本进程内正在消费的去重键个数
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * 在本进程内合并（没有访问去重存储）的重复消息数
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * 合并后等待超时、按消费中处理的次数
+     */
+    public long getWaitTimeoutCount() {
+        return waitTimeoutCount.sum();
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费中记录的续期：消费前登记去重键，消费结束（标记已消费/删除）后注销，期间定时批量续期
+ * 1.所有续期器共用一个守护线程，每个续期器一个定时任务，每次把全部在途的去重键按去重存储分批续期，每批一次存储调用
+ * 2.进程崩溃后不再续期，记录最多一个租期后过期，重投的消息可以重新消费
+ * 3.注销时标记已消费还没写入存储的（如enableWriteBehind），继续续期到写入完成
+ * 由DedupConfig#enableLeaseRenewal创建
+ */
+@Slf4j
+public class LeaseRenewer {
+
+    private static final int RENEW_BATCH_SIZE = 500;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "DedupLeaseRenewer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DedupConfig dedupConfig;
+
+    //去重存储 -> (去重键 -> 在途次数)，续期前记录已过期并被本进程重新抢占时，同一个去重键会在途两次
+    //按TOPIC配置了DedupPolicy时，不同的去重键可能在不同的去重存储上
+    private final ConcurrentHashMap<IPersist, ConcurrentHashMap<DedupElement, Integer>> inFlight = new ConcurrentHashMap<>();
+
+    //去重存储 -> 已注销、但标记已消费还没写入存储的去重键
+    private final ConcurrentHashMap<IPersist, Set<DedupElement>> draining = new ConcurrentHashMap<>();
+
+    private final ScheduledFuture<?> renewTask;
+
+    LeaseRenewer(DedupConfig dedupConfig, long renewIntervalMilliSeconds) {
+        this.dedupConfig = dedupConfig;
+        this.renewTask = SCHEDULER.scheduleWithFixedDelay(this::renewAll, renewIntervalMilliSeconds, renewIntervalMilliSeconds, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * 抢占成功、开始消费前调用
+     * @param persist 抢占所用的去重存储
+     */
+    public void register(IPersist persist, DedupElement dedupElement) {
+        ConcurrentHashMap<DedupElement, Integer> elements = inFlight.get(persist);
+        if (elements == null) {
+            elements = inFlight.computeIfAbsent(persist, k -> new ConcurrentHashMap<>());
+        }
+        elements.merge(dedupElement, 1, Integer::sum);
+    }
+
+    /**
+     * 消费状态更新后调用，与register一一对应
+     */
+    public void unregister(IPersist persist, DedupElement dedupElement) {
+        ConcurrentHashMap<DedupElement, Integer> elements = inFlight.get(persist);
+        if (elements != null) {
+            elements.computeIfPresent(dedupElement, (k, count) -> count == 1 ? null : count - 1);
+        }
+        if (persist.isMarkConsumedPending(dedupElement)) {
+            draining.computeIfAbsent(persist, k -> ConcurrentHashMap.newKeySet()).add(dedupElement);
+        }
+    }
+
+    /**
+     * 当前在途的去重键个数
+     */
+    public int getInFlightCount() {
+        int count = 0;
+        for (ConcurrentHashMap<DedupElement, Integer> elements : inFlight.values()) {
+            count += elements.size();
+        }
+        return count;
+    }
+
+    /**
+     * 已注销、等待标记已消费写入存储而继续续期的去重键个数（下一轮续期时更新）
+     */
+    public int getPendingWriteCount() {
+        int count = 0;
+        for (Set<DedupElement> elements : draining.values()) {
+            count += elements.size();
+        }
+        return count;
+    }
+
+    public void shutdown() {
+        renewTask.cancel(false);
+    }
+
+
+    private void renewAll() {
+        for (Map.Entry<IPersist, ConcurrentHashMap<DedupElement, Integer>> entry : inFlight.entrySet()) {
+            renewInBatches(entry.getKey(), entry.getValue().keySet());
+        }
+        for (Map.Entry<IPersist, Set<DedupElement>> entry : draining.entrySet()) {
+            IPersist persist = entry.getKey();
+            entry.getValue().removeIf(dedupElement -> !persist.isMarkConsumedPending(dedupElement));
+            renewInBatches(persist, entry.getValue());
+        }
+    }
+
+    private void renewInBatches(IPersist persist, Collection<DedupElement> elements) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        List<DedupElement> batch = new ArrayList<>(Math.min(elements.size(), RENEW_BATCH_SIZE));
+        for (DedupElement dedupElement : elements) {
+            batch.add(dedupElement);
+            if (batch.size() == RENEW_BATCH_SIZE) {
+                renew(persist, batch);
+                batch = new ArrayList<>(RENEW_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            renew(persist, batch);
+        }
+    }
+
+    //续期失败只记录日志，下一轮再续，异常不能抛出，否则定时任务会被取消
+    private void renew(IPersist persist, List<DedupElement> batch) {
+        try {
+            persist.batchRenewConsuming(batch, dedupConfig.getDedupProcessingExpireMilliSeconds());
+            log.debug("renewed {} consuming records", batch.size());
+        } catch (Throwable e) {
+            log.error("[NOTIFYME]renew consuming records fail, {} records may expire while consuming", batch.size(), e);
+        }
+    }
+}
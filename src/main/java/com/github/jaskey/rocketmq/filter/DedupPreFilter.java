@@ -0,0 +1,164 @@
+package com.github.jaskey.rocketmq.filter;
+
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.util.MurmurHash3;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本进程内的去重预过滤器（布隆过滤器），区分"一定是新消息"和"可能是重复消息"
+ * 1.和DedupElement一样以application/topic/tag/msgUniqKey作为键
+ * 2.按窗口（默认dedupRecordReserveMinutes）轮转，保留当前和上一个窗口两代，内存固定为2个位图
+ * 3.只能判断本进程是否见过这条消息，其他实例消费过的消息依然需要远端存储判断，所以不能替代远端抢占
+ */
+@Slf4j
+@ToString(of = {"numBits", "numHashFunctions", "windowMilliSeconds"})
+public class DedupPreFilter {
+
+    private static final long SEED = 0x5bd1e995L;
+
+    private final int numBits;
+    private final int numHashFunctions;
+    private final long windowMilliSeconds;
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    //统计
+    private final LongAdder definitelyNewCount = new LongAdder();
+    private final LongAdder maybeDuplicateCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    /**
+     * @param expectedInsertions 每个窗口预计的消息数
+     * @param fpp 期望的误判率，如0.01
+     * @param windowMilliSeconds 轮转窗口
+     */
+    public DedupPreFilter(long expectedInsertions, double fpp, long windowMilliSeconds) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1 || windowMilliSeconds <= 0) {
+            throw new IllegalArgumentException("illegal pre filter config, expectedInsertions=" + expectedInsertions + ", fpp=" + fpp + ", window=" + windowMilliSeconds);
+        }
+        //m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+        long bits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.min(Math.max(bits, 64), Integer.MAX_VALUE - 63);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.windowMilliSeconds = windowMilliSeconds;
+        this.current = new Generation(numBits, System.currentTimeMillis());
+        this.previous = new Generation(numBits, 0);
+    }
+
+
+    /**
+     * 判断并记录这条消息
+     * @return false表示本进程一定没有见过（一定是新消息），true表示可能见过
+     */
+    public boolean mightContainAndPut(DedupElement dedupElement) {
+        long[] hash = hash(dedupElement);
+        Generation cur = rotateIfNecessary();
+        boolean mightContain = cur.mightContain(hash, numHashFunctions, numBits) || previous.mightContain(hash, numHashFunctions, numBits);
+        cur.put(hash, numHashFunctions, numBits);
+
+        if (mightContain) {
+            maybeDuplicateCount.increment();
+        } else {
+            definitelyNewCount.increment();
+        }
+        return mightContain;
+    }
+
+    /**
+     * 过滤器认为可能重复，但远端存储抢占成功的，记为一次误判
+     */
+    public void recordFalsePositive() {
+        falsePositiveCount.increment();
+    }
+
+    /**
+     * 被判定为一定是新消息的次数
+     */
+    public long getDefinitelyNewCount() {
+        return definitelyNewCount.sum();
+    }
+
+    /**
+     * 被判定为可能重复的次数
+     */
+    public long getMaybeDuplicateCount() {
+        return maybeDuplicateCount.sum();
+    }
+
+    /**
+     * 可能重复但实际是新消息的次数
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.sum();
+    }
+
+
+    private Generation rotateIfNecessary() {
+        Generation cur = current;
+        long now = System.currentTimeMillis();
+        if (now - cur.startTime < windowMilliSeconds) {
+            return cur;
+        }
+        synchronized (this) {
+            if (current == cur) {
+                previous = cur;
+                current = new Generation(numBits, now);
+                log.info("rotate dedup pre filter {}", this);
+            }
+            return current;
+        }
+    }
+
+    private static long[] hash(DedupElement dedupElement) {
+        //application/topic/tag/msgUniqKey之间用\0分隔
+        String key = dedupElement.getApplication() + '\0' + dedupElement.getTopic() + '\0' + dedupElement.getTag() + '\0' + dedupElement.getMsgUniqKey();
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, SEED);
+    }
+
+
+    private static class Generation {
+        private final AtomicLongArray bits;
+        private final long startTime;
+
+        Generation(int numBits, long startTime) {
+            this.bits = new AtomicLongArray((numBits + 63) >>> 6);
+            this.startTime = startTime;
+        }
+
+        boolean mightContain(long[] hash, int numHashFunctions, int numBits) {
+            long combined = hash[0];
+            for (int i = 0; i < numHashFunctions; i++) {
+                int index = (int) ((combined & Long.MAX_VALUE) % numBits);
+                if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+                    return false;
+                }
+                combined += hash[1];
+            }
+            return true;
+        }
+
+        void put(long[] hash, int numHashFunctions, int numBits) {
+            long combined = hash[0];
+            for (int i = 0; i < numHashFunctions; i++) {
+                int index = (int) ((combined & Long.MAX_VALUE) % numBits);
+                int wordIndex = index >>> 6;
+                long mask = 1L << index;
+                long old;
+                while (((old = bits.get(wordIndex)) & mask) == 0) {
+                    if (bits.compareAndSet(wordIndex, old, old | mask)) {
+                        break;
+                    }
+                }
+                combined += hash[1];
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.jaskey.rocketmq.filter;
+
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.util.MurmurHash3;
+import lombok.ToString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 本进程内的热点去重键检测（Count-Min Sketch），统计每个去重键在一个窗口内出现的次数
+ * 1.固定内存：depth行 * width列的计数器，估计值只会偏大不会偏小，不同的键哈希冲突时可能把冷键误判为热点
+ * 2.按窗口整体清零，阈值的含义为"一个窗口内出现的次数"
+ */
+@ToString(of = {"width", "depth", "threshold", "windowMilliSeconds"})
+public class HotKeyDetector {
+
+    private static final long SEED = 0x2f8ad1b3L;
+
+    private static final int DEPTH = 4;
+
+    private final int width;
+    private final int depth = DEPTH;
+    private final int threshold;
+    private final long windowMilliSeconds;
+
+    private volatile Window current;
+
+    /**
+     * @param width 每行的计数器个数，向上取整为2的幂，建议大于每个窗口内不同去重键的个数
+     * @param threshold 一个窗口内出现多少次认为是热点
+     * @param windowMilliSeconds 统计窗口
+     */
+    public HotKeyDetector(int width, int threshold, long windowMilliSeconds) {
+        if (width <= 0 || threshold <= 1 || windowMilliSeconds <= 0) {
+            throw new IllegalArgumentException("illegal hot key detector config, width=" + width + ", threshold=" + threshold + ", window=" + windowMilliSeconds);
+        }
+        this.width = Math.max(2, Integer.highestOneBit(width - 1) << 1);
+        this.threshold = threshold;
+        this.windowMilliSeconds = windowMilliSeconds;
+        this.current = new Window(this.width * depth, System.currentTimeMillis());
+    }
+
+
+    /**
+     * 记录出现一次
+     * @return 记录后本窗口内的估计次数
+     */
+    public int increment(DedupElement dedupElement) {
+        long[] hash = hash(dedupElement);
+        Window window = rotateIfNecessary();
+        int min = Integer.MAX_VALUE;
+        long combined = hash[0];
+        for (int i = 0; i < depth; i++) {
+            int index = i * width + (int) (combined & (width - 1));
+            min = Math.min(min, window.counters.incrementAndGet(index));
+            combined += hash[1];
+        }
+        return min;
+    }
+
+    /**
+     * 估计次数是否达到热点阈值
+     */
+    public boolean isHot(int count) {
+        return count >= threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * 当前窗口的起始时间，同一个热点键每个窗口只需要告警一次
+     */
+    public long getWindowStartTime() {
+        return current.startTime;
+    }
+
+
+    private Window rotateIfNecessary() {
+        Window window = current;
+        long now = System.currentTimeMillis();
+        if (now - window.startTime < windowMilliSeconds) {
+            return window;
+        }
+        synchronized (this) {
+            if (current == window) {
+                current = new Window(width * depth, now);
+            }
+            return current;
+        }
+    }
+
+    private static long[] hash(DedupElement dedupElement) {
+        //application/topic/tag/msgUniqKey之间用\0分隔
+        String key = dedupElement.getApplication() + '\0' + dedupElement.getTopic() + '\0' + dedupElement.getTag() + '\0' + dedupElement.getMsgUniqKey();
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, SEED);
+    }
+
+
+    private static class Window {
+        private final AtomicIntegerArray counters;
+        private final long startTime;
+
+        Window(int size, long startTime) {
+            this.counters = new AtomicIntegerArray(size);
+            this.startTime = startTime;
+        }
+    }
+}
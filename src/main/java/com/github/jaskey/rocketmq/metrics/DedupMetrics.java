@@ -0,0 +1,57 @@
+package com.github.jaskey.rocketmq.metrics;
+
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+
+/**
+ * 去重的监控指标，默认不统计（NOOP），Micrometer的实现见MicrometerDedupMetrics
+ * 实现需要线程安全，并且足够轻量，每条消息都会调用
+ */
+public interface DedupMetrics {
+
+    DedupMetrics NOOP = new DedupMetrics() {
+        @Override
+        public void recordClaimResult(String topic, String tag, ClaimResult claimResult) {
+        }
+
+        @Override
+        public void recordPersistLatency(String operation, long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordHandleLatency(String topic, String tag, long nanos, boolean success) {
+        }
+    };
+
+    /**
+     * 去重判断的结果：CLAIMED抢占成功，CONSUMED重复已消费，CONSUMING重复消费中（稍后重试），UNKNOWN降级直接消费
+     */
+    void recordClaimResult(String topic, String tag, ClaimResult claimResult);
+
+    /**
+     * 一次去重存储调用的耗时
+     * @param operation IPersist的方法名，如claim、markConsumed、batchClaim
+     * @param success 是否没有抛出异常
+     */
+    void recordPersistLatency(String operation, long nanos, boolean success);
+
+    /**
+     * 业务消费（doHandleMsg）的耗时
+     * @param success 是否消费成功（返回true且没有抛出异常）
+     */
+    void recordHandleLatency(String topic, String tag, long nanos, boolean success);
+
+    /**
+     * 分片存储（ShardedPersist）中一个分片的一次调用耗时，用以观察分片间的流量和延迟是否均衡，默认不统计
+     * @param shard 分片名
+     * @param operation IPersist的方法名
+     */
+    default void recordShardLatency(String shard, String operation, long nanos, boolean success) {
+    }
+
+    /**
+     * 发现热点去重键（HotKeyPersist），同一个去重键每个统计窗口最多回调一次，用于告警，默认不统计
+     * @param count 当前窗口内的估计抢占次数
+     */
+    default void recordHotKey(String topic, String tag, String msgUniqKey, int count) {
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.jaskey.rocketmq.metrics;
+
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Micrometer的去重指标，需要自行引入micrometer-core
+ * rocketmq.dedup.claim：去重判断结果计数，标签topic、tag、result（claimed/duplicate_consumed/duplicate_consuming/degraded_unknown）
+ * rocketmq.dedup.persist：去重存储调用耗时直方图，标签operation、result（success/error）
+ * rocketmq.dedup.handle：业务消费耗时直方图，标签topic、tag、result（success/fail）
+ * rocketmq.dedup.hotkey：发现热点去重键的次数，标签topic、tag、key，每个热点键每个统计窗口计一次，可据此告警
+ * rocketmq.dedup.shard：分片存储每个分片的调用耗时直方图，标签shard、operation、result（success/error）
+ * 指标按topic/tag缓存，消费时只有一次map查找，不会每次注册
+ */
+public class MicrometerDedupMetrics implements DedupMetrics {
+
+    private static final String[] CLAIM_RESULT_TAGS = new String[ClaimResult.values().length];
+
+    static {
+        CLAIM_RESULT_TAGS[ClaimResult.CLAIMED.ordinal()] = "claimed";
+        CLAIM_RESULT_TAGS[ClaimResult.CONSUMED.ordinal()] = "duplicate_consumed";
+        CLAIM_RESULT_TAGS[ClaimResult.CONSUMING.ordinal()] = "duplicate_consuming";
+        CLAIM_RESULT_TAGS[ClaimResult.UNKNOWN.ordinal()] = "degraded_unknown";
+    }
+
+    private final MeterRegistry registry;
+
+    //topic -> tag -> 指标
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, TopicTagMeters>> topicTagMeters = new ConcurrentHashMap<>();
+
+    //operation -> [success, error]
+    private final ConcurrentHashMap<String, Timer[]> persistTimers = new ConcurrentHashMap<>();
+
+    //shard -> operation -> [success, error]
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Timer[]>> shardTimers = new ConcurrentHashMap<>();
+
+    public MicrometerDedupMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+
+    @Override
+    public void recordClaimResult(String topic, String tag, ClaimResult claimResult) {
+        metersFor(topic, tag).claimCounters[claimResult.ordinal()].increment();
+    }
+
+    @Override
+    public void recordPersistLatency(String operation, long nanos, boolean success) {
+        Timer[] timers = persistTimers.get(operation);
+        if (timers == null) {
+            timers = persistTimers.computeIfAbsent(operation, k -> new Timer[]{
+                    timer("rocketmq.dedup.persist", "operation", k, "result", "success"),
+                    timer("rocketmq.dedup.persist", "operation", k, "result", "error")});
+        }
+        timers[success ? 0 : 1].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordHandleLatency(String topic, String tag, long nanos, boolean success) {
+        TopicTagMeters meters = metersFor(topic, tag);
+        (success ? meters.handleSuccessTimer : meters.handleFailTimer).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    @Override
+    public void recordShardLatency(String shard, String operation, long nanos, boolean success) {
+        ConcurrentHashMap<String, Timer[]> operationTimers = shardTimers.get(shard);
+        if (operationTimers == null) {
+            operationTimers = shardTimers.computeIfAbsent(shard, k -> new ConcurrentHashMap<>());
+        }
+        Timer[] timers = operationTimers.get(operation);
+        if (timers == null) {
+            timers = operationTimers.computeIfAbsent(operation, k -> new Timer[]{
+                    timer("rocketmq.dedup.shard", "shard", shard, "operation", k, "result", "success"),
+                    timer("rocketmq.dedup.shard", "shard", shard, "operation", k, "result", "error")});
+        }
+        timers[success ? 0 : 1].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    //只有热点键才会调用，次数很少，不需要缓存
+    @Override
+    public void recordHotKey(String topic, String tag, String msgUniqKey, int count) {
+        registry.counter("rocketmq.dedup.hotkey", "topic", topic == null ? "" : topic, "tag", tag == null ? "" : tag, "key", msgUniqKey == null ? "" : msgUniqKey).increment();
+    }
+
+
+    private TopicTagMeters metersFor(String topic, String tag) {
+        //null不能作为ConcurrentHashMap的键
+        topic = topic == null ? "" : topic;
+        tag = tag == null ? "" : tag;
+
+        //先get再computeIfAbsent，java8的computeIfAbsent在键存在时也会加锁
+        ConcurrentHashMap<String, TopicTagMeters> tagMeters = topicTagMeters.get(topic);
+        if (tagMeters == null) {
+            tagMeters = topicTagMeters.computeIfAbsent(topic, k -> new ConcurrentHashMap<>());
+        }
+        TopicTagMeters meters = tagMeters.get(tag);
+        if (meters == null) {
+            final String t = topic;
+            meters = tagMeters.computeIfAbsent(tag, k -> new TopicTagMeters(t, k));
+        }
+        return meters;
+    }
+
+    private Timer timer(String name, String... tags) {
+        return Timer.builder(name).tags(tags).publishPercentileHistogram().register(registry);
+    }
+
+
+    private class TopicTagMeters {
+        private final Counter[] claimCounters = new Counter[CLAIM_RESULT_TAGS.length];
+        private final Timer handleSuccessTimer;
+        private final Timer handleFailTimer;
+
+        TopicTagMeters(String topic, String tag) {
+            for (int i = 0; i < CLAIM_RESULT_TAGS.length; i++) {
+                claimCounters[i] = Counter.builder("rocketmq.dedup.claim").tags("topic", topic, "tag", tag, "result", CLAIM_RESULT_TAGS[i]).register(registry);
+            }
+            handleSuccessTimer = timer("rocketmq.dedup.handle", "topic", topic, "tag", tag, "result", "success");
+            handleFailTimer = timer("rocketmq.dedup.handle", "topic", topic, "tag", tag, "result", "fail");
+        }
+    }
+}
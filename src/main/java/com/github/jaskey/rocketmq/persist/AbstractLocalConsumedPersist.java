@@ -0,0 +1,171 @@
+package com.github.jaskey.rocketmq.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 装饰其他IPersist，本地已经确认为已消费的去重键直接返回已消费，否则再访问被装饰的存储
+ * 本地只会回答"已消费"，抢占成功一定来自被装饰的存储，所以不会因为本地状态导致重复消费
+ */
+public abstract class AbstractLocalConsumedPersist implements IPersist {
+
+    protected final IPersist delegate;
+
+    protected AbstractLocalConsumedPersist(IPersist delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate persist is null");
+        }
+        this.delegate = delegate;
+    }
+
+
+    /**
+     * 本地是否已确认为已消费
+     */
+    protected abstract boolean isLocalConsumed(DedupElement dedupElement);
+
+    /**
+     * 被装饰的存储返回已消费时回调
+     */
+    protected void onDelegateConsumed(DedupElement dedupElement) {
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (isLocalConsumed(dedupElement)) {
+            return false;
+        }
+        return delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (isLocalConsumed(dedupElement)) {
+            return ClaimResult.CONSUMED;
+        }
+        ClaimResult claimResult = delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        if (claimResult == ClaimResult.CONSUMED) {
+            onDelegateConsumed(dedupElement);
+        }
+        return claimResult;
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        if (isLocalConsumed(dedupElement)) {
+            return CONSUME_STATUS_CONSUMED;
+        }
+        String val = delegate.get(dedupElement);
+        if (CONSUME_STATUS_CONSUMED.equals(val)) {
+            onDelegateConsumed(dedupElement);
+        }
+        return val;
+    }
+
+    @Override
+    public boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return delegate.isMarkConsumedPending(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return delegate.supportsRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        delegate.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+
+    @Override
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        boolean[] res = new boolean[dedupElements.size()];
+        int[] missedIndex = new int[dedupElements.size()];
+        List<DedupElement> missed = new ArrayList<>(dedupElements.size());
+        for (int i = 0; i < res.length; i++) {
+            if (!isLocalConsumed(dedupElements.get(i))) {
+                missedIndex[missed.size()] = i;
+                missed.add(dedupElements.get(i));
+            }
+        }
+        if (missed.isEmpty()) {
+            return res;
+        }
+
+        boolean[] missedRes = delegate.batchSetConsumingIfNX(missed, dedupProcessingExpireMilliSeconds);
+        for (int j = 0; j < missedRes.length; j++) {
+            res[missedIndex[j]] = missedRes[j];
+        }
+        return res;
+    }
+
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> res = new ArrayList<>(dedupElements.size());
+        List<DedupElement> missed = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            if (isLocalConsumed(dedupElement)) {
+                res.add(ClaimResult.CONSUMED);
+            } else {
+                res.add(null);
+                missed.add(dedupElement);
+            }
+        }
+        if (missed.isEmpty()) {
+            return res;
+        }
+
+        List<ClaimResult> missedRes = delegate.batchClaim(missed, dedupProcessingExpireMilliSeconds);
+        for (int i = 0, j = 0; i < res.size(); i++) {
+            if (res.get(i) == null) {
+                ClaimResult claimResult = missedRes.get(j++);
+                if (claimResult == ClaimResult.CONSUMED) {
+                    onDelegateConsumed(dedupElements.get(i));
+                }
+                res.set(i, claimResult);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        List<String> res = new ArrayList<>(dedupElements.size());
+        List<DedupElement> missed = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            if (isLocalConsumed(dedupElement)) {
+                res.add(CONSUME_STATUS_CONSUMED);
+            } else {
+                res.add(null);
+                missed.add(dedupElement);
+            }
+        }
+        if (missed.isEmpty()) {
+            return res;
+        }
+
+        List<String> missedRes = delegate.batchGet(missed);
+        for (int i = 0, j = 0; i < res.size(); i++) {
+            if (res.get(i) == null) {
+                String val = missedRes.get(j++);
+                if (CONSUME_STATUS_CONSUMED.equals(val)) {
+                    onDelegateConsumed(dedupElements.get(i));
+                }
+                res.set(i, val);
+            }
+        }
+        return res;
+    }
+}
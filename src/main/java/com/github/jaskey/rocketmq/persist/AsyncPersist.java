@@ -0,0 +1,85 @@
+package com.github.jaskey.rocketmq.persist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 非阻塞的去重存储，调用立即返回CompletionStage，不占用消费线程等待网络
+ * 1.批量去重时整批的抢占/标记同时发出，消费线程每个阶段只等待一次
+ * 2.批内并行消费时，抢占完成后才把业务消费提交到线程池，等待存储期间不占用线程
+ * 注：被enableNearCache/enableWriteBehind/enableMetrics装饰后不再是AsyncPersist，会退化为同步调用
+ * 注：需要同步等待结果时使用await，最多等待给定的时间，与同步存储的网络超时一致按存储异常处理
+ */
+public interface AsyncPersist extends IPersist {
+
+    CompletionStage<ClaimResult> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds);
+
+    CompletionStage<Void> markConsumedAsync(DedupElement dedupElement, long dedupRecordReserveMinutes);
+
+    CompletionStage<Void> deleteAsync(DedupElement dedupElement);
+
+    CompletionStage<String> getAsync(DedupElement dedupElement);
+
+
+    /**
+     * 批量抢占，返回值与入参下标一一对应，默认实现为同时发出每一条的抢占
+     */
+    default CompletionStage<List<ClaimResult>> batchClaimAsync(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<CompletableFuture<ClaimResult>> futures = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            futures.add(claimAsync(dedupElement, dedupProcessingExpireMilliSeconds).toCompletableFuture());
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<ClaimResult> res = new ArrayList<>(futures.size());
+            for (CompletableFuture<ClaimResult> future : futures) {
+                //allOf完成时每一条都已经完成
+                res.add(future.getNow(null));
+            }
+            return res;
+        });
+    }
+
+    default CompletionStage<Void> batchMarkConsumedAsync(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        CompletableFuture<?>[] futures = new CompletableFuture[dedupElements.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = markConsumedAsync(dedupElements.get(i), dedupRecordReserveMinutes).toCompletableFuture();
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    default CompletionStage<Void> batchDeleteAsync(List<DedupElement> dedupElements) {
+        CompletableFuture<?>[] futures = new CompletableFuture[dedupElements.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = deleteAsync(dedupElements.get(i)).toCompletableFuture();
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+
+    /**
+     * 同步等待异步调用的结果，抛出原始异常
+     * @param timeoutMilliSeconds 最多等待的毫秒数，超时抛出IllegalStateException，与存储调用失败一样处理
+     */
+    static <T> T await(CompletionStage<T> stage, long timeoutMilliSeconds) {
+        try {
+            return stage.toCompletableFuture().get(timeoutMilliSeconds, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("dedup persist call timeout after " + timeoutMilliSeconds + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted when waiting dedup persist call", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+}
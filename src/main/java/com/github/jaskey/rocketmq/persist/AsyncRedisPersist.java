@@ -0,0 +1,91 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步的Redis去重存储，与RedisPersist使用同一个StringRedisTemplate（同一个Redis驱动），键和抢占脚本一致，两者可以混用
+ * 每次调用交给少量的IO线程执行，消费线程不等待Redis；批量调用在一个IO线程上用pipeline发出，整批只有一次网络往返
+ * 注：IO线程数按Redis连接池的大小设置即可，远少于需要同步等待Redis时的消费线程数
+ */
+public class AsyncRedisPersist extends RedisPersist implements AsyncPersist {
+
+    private final ExecutorService ioExecutor;
+
+    public AsyncRedisPersist(StringRedisTemplate redisTemplate) {
+        this(redisTemplate, new DedupKeyCodec(), 8);
+    }
+
+    /**
+     * @param keyCodec 去重键的编码方式，需要与同时使用的RedisPersist一致
+     * @param ioThreads 执行Redis调用的线程数
+     */
+    public AsyncRedisPersist(StringRedisTemplate redisTemplate, DedupKeyCodec keyCodec, int ioThreads) {
+        super(redisTemplate, keyCodec);
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("ioThreads must be positive");
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.ioExecutor = Executors.newFixedThreadPool(ioThreads, r -> {
+            Thread thread = new Thread(r, "DedupAsyncRedisPersistIO-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    @Override
+    public CompletionStage<ClaimResult> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return CompletableFuture.supplyAsync(() -> claim(dedupElement, dedupProcessingExpireMilliSeconds), ioExecutor);
+    }
+
+    @Override
+    public CompletionStage<Void> markConsumedAsync(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        return CompletableFuture.runAsync(() -> markConsumed(dedupElement, dedupRecordReserveMinutes), ioExecutor);
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(DedupElement dedupElement) {
+        return CompletableFuture.runAsync(() -> delete(dedupElement), ioExecutor);
+    }
+
+    @Override
+    public CompletionStage<String> getAsync(DedupElement dedupElement) {
+        return CompletableFuture.supplyAsync(() -> get(dedupElement), ioExecutor);
+    }
+
+    @Override
+    public CompletionStage<List<ClaimResult>> batchClaimAsync(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        return CompletableFuture.supplyAsync(() -> batchClaim(dedupElements, dedupProcessingExpireMilliSeconds), ioExecutor);
+    }
+
+    @Override
+    public CompletionStage<Void> batchMarkConsumedAsync(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        return CompletableFuture.runAsync(() -> batchMarkConsumed(dedupElements, dedupRecordReserveMinutes), ioExecutor);
+    }
+
+    @Override
+    public CompletionStage<Void> batchDeleteAsync(List<DedupElement> dedupElements) {
+        return CompletableFuture.runAsync(() -> batchDelete(dedupElements), ioExecutor);
+    }
+
+    /**
+     * 等待已经提交的调用执行完后停止IO线程，StringRedisTemplate由调用方关闭
+     */
+    @Override
+    public void shutdown() {
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.jaskey.rocketmq.persist;
+
+import static com.github.jaskey.rocketmq.persist.IPersist.CONSUME_STATUS_CONSUMED;
+import static com.github.jaskey.rocketmq.persist.IPersist.CONSUME_STATUS_CONSUMING;
+
+/**
+ * 抢占消费记录的结果
+ */
+public enum ClaimResult {
+    /**
+     * 抢占成功，可以消费
+     */
+    CLAIMED,
+    /**
+     * 相同的消息正在消费中
+     */
+    CONSUMING,
+    /**
+     * 相同的消息已经消费过
+     */
+    CONSUMED,
+    /**
+     * 抢占失败但无法确认已有记录的状态
+     */
+    UNKNOWN;
+
+
+    /**
+     * 根据已有记录的状态得到抢占结果
+     */
+    public static ClaimResult ofExistingStatus(String status) {
+        if (CONSUME_STATUS_CONSUMING.equals(status)) {
+            return CONSUMING;
+        } else if (CONSUME_STATUS_CONSUMED.equals(status)) {
+            return CONSUMED;
+        } else {
+            return UNKNOWN;
+        }
+    }
+}
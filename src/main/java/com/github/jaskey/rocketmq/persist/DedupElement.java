@@ -1,19 +1,41 @@
 package com.github.jaskey.rocketmq.persist;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
 
 /**
  * Created by linjunjie1103@gmail.com
  */
-@AllArgsConstructor
 @Getter
-@ToString
+@ToString(exclude = {"encodedKey", "encodedBy"})
+@EqualsAndHashCode(exclude = {"encodedKey", "encodedBy"})
 public class DedupElement {
     private String application;
     private String topic;
     private String tag;
     private String msgUniqKey;
 
+    //编码后的存储键，同一条消息只编码一次，抢占/标记/删除时复用
+    @Getter(AccessLevel.NONE)
+    private transient byte[] encodedKey;
+    @Getter(AccessLevel.NONE)
+    private transient DedupKeyCodec encodedBy;
+
+    public DedupElement(String application, String topic, String tag, String msgUniqKey) {
+        this.application = application;
+        this.topic = topic;
+        this.tag = tag;
+        this.msgUniqKey = msgUniqKey;
+    }
+
+    byte[] getEncodedKey(DedupKeyCodec codec) {
+        return encodedBy == codec ? encodedKey : null;
+    }
+
+    void setEncodedKey(DedupKeyCodec codec, byte[] encodedKey) {
+        this.encodedKey = encodedKey;
+        this.encodedBy = codec;
+    }
 }
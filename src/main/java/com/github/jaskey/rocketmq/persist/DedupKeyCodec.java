@@ -0,0 +1,192 @@
+package com.github.jaskey.rocketmq.persist;
+
+
+import com.github.jaskey.rocketmq.util.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 去重键的二进制编码，格式与原来的字符串键一致：MSGDEDUP:APPNAME:TOPIC[:TAG]:APP_DEDUP_KEY（UTF-8）
+ * 1.APPNAME/TOPIC/TAG组成的前缀按topic/tag预先编码缓存，每条消息只需要拼接去重键；最多缓存MAX_CACHED_PREFIXES个，超过后（如TAG取值不固定）不再缓存，每次现编码
+ * 2.同一条消息编码一次，结果缓存在DedupElement上，抢占/标记/删除复用
+ * 3.可选把去重键哈希成16字节（MurmurHash3 128位），固定长度，减少Redis内存，但开启/关闭前后的键互不相认
+ */
+public class DedupKeyCodec {
+
+    private static final String KEY_PREFIX = "MSGDEDUP:";
+    private static final long HASH_SEED = 0x9747b28cL;
+    private static final int HASH_BYTES = 16;
+    private static final int MAX_CACHED_PREFIXES = 4096;
+
+    private final boolean hashKey;
+
+    //application -> topic -> tag -> 前缀
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>>> prefixCache = new ConcurrentHashMap<>();
+
+    //已缓存的前缀个数
+    private final AtomicInteger cachedPrefixCount = new AtomicInteger();
+
+    public DedupKeyCodec() {
+        this(false);
+    }
+
+    /**
+     * @param hashKey 是否把去重键哈希成固定的16字节
+     */
+    public DedupKeyCodec(boolean hashKey) {
+        this.hashKey = hashKey;
+    }
+
+
+    public byte[] encode(DedupElement dedupElement) {
+        byte[] encodedKey = dedupElement.getEncodedKey(this);
+        if (encodedKey == null) {
+            encodedKey = doEncode(dedupElement);
+            dedupElement.setEncodedKey(this, encodedKey);
+        }
+        return encodedKey;
+    }
+
+    /**
+     * 可读的键，用于打印日志
+     */
+    public String toPrintInfo(DedupElement dedupElement) {
+        byte[] encodedKey = encode(dedupElement);
+        if (!hashKey) {
+            return new String(encodedKey, StandardCharsets.UTF_8);
+        }
+        int prefixLength = encodedKey.length - HASH_BYTES;
+        StringBuilder sb = new StringBuilder(new String(encodedKey, 0, prefixLength, StandardCharsets.UTF_8));
+        for (int i = prefixLength; i < encodedKey.length; i++) {
+            sb.append(Character.forDigit((encodedKey[i] >> 4) & 0xf, 16)).append(Character.forDigit(encodedKey[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public boolean isHashKey() {
+        return hashKey;
+    }
+
+    /**
+     * 匹配所有去重键的模式，用于SCAN
+     */
+    public String keyPattern() {
+        return KEY_PREFIX + "*";
+    }
+
+    /**
+     * 从存储键还原出去重键，用于导出
+     * 注：TOPIC和应用名（消费者组）中不会有':'，TAG为空时键中没有TAG这一段，剩下部分含':'时按第一个':'之前为TAG解析，
+     * 所以没有TAG并且去重键含':'的会被还原成错误的TAG/去重键，但重新编码后与原来的键相同
+     * @return 哈希过的键或者格式不对的键返回null
+     */
+    public DedupElement decode(byte[] encodedKey) {
+        if (hashKey) {
+            return null;
+        }
+        String key = new String(encodedKey, StandardCharsets.UTF_8);
+        if (!key.startsWith(KEY_PREFIX)) {
+            return null;
+        }
+        int applicationEnd = key.indexOf(':', KEY_PREFIX.length());
+        int topicEnd = applicationEnd < 0 ? -1 : key.indexOf(':', applicationEnd + 1);
+        if (topicEnd < 0) {
+            return null;
+        }
+        int tagEnd = key.indexOf(':', topicEnd + 1);
+        String application = key.substring(KEY_PREFIX.length(), applicationEnd);
+        String topic = key.substring(applicationEnd + 1, topicEnd);
+        if (tagEnd < 0) {
+            return new DedupElement(application, topic, "", key.substring(topicEnd + 1));
+        }
+        return new DedupElement(application, topic, key.substring(topicEnd + 1, tagEnd), key.substring(tagEnd + 1));
+    }
+
+
+    private byte[] doEncode(DedupElement dedupElement) {
+        byte[] prefix = prefixFor(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag());
+        String msgUniqKey = dedupElement.getMsgUniqKey();
+
+        if (hashKey) {
+            byte[] keyBytes = msgUniqKey.getBytes(StandardCharsets.UTF_8);
+            long[] hash = MurmurHash3.hash128(keyBytes, 0, keyBytes.length, HASH_SEED);
+            byte[] res = new byte[prefix.length + HASH_BYTES];
+            System.arraycopy(prefix, 0, res, 0, prefix.length);
+            writeLong(res, prefix.length, hash[0]);
+            writeLong(res, prefix.length + 8, hash[1]);
+            return res;
+        }
+
+        int len = msgUniqKey.length();
+        if (!isAscii(msgUniqKey, len)) {
+            byte[] keyBytes = msgUniqKey.getBytes(StandardCharsets.UTF_8);
+            byte[] res = new byte[prefix.length + keyBytes.length];
+            System.arraycopy(prefix, 0, res, 0, prefix.length);
+            System.arraycopy(keyBytes, 0, res, prefix.length, keyBytes.length);
+            return res;
+        }
+        //消息ID等ASCII的去重键直接写入，不需要中间数组
+        byte[] res = new byte[prefix.length + len];
+        System.arraycopy(prefix, 0, res, 0, prefix.length);
+        for (int i = 0; i < len; i++) {
+            res[prefix.length + i] = (byte) msgUniqKey.charAt(i);
+        }
+        return res;
+    }
+
+    private byte[] prefixFor(String application, String topic, String tag) {
+        //null不能作为ConcurrentHashMap的键
+        application = application == null ? "null" : application;
+        topic = topic == null ? "null" : topic;
+        tag = tag == null ? "" : tag;
+
+        ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>> topicCache = prefixCache.get(application);
+        ConcurrentHashMap<String, byte[]> tagCache = topicCache == null ? null : topicCache.get(topic);
+        byte[] prefix = tagCache == null ? null : tagCache.get(tag);
+        if (prefix != null) {
+            return prefix;
+        }
+
+        //示例：MSGDEDUP:APPNAME:TOPIC:TAG:
+        prefix = (KEY_PREFIX + application + ":" + topic + (tag.isEmpty() ? "" : ":" + tag) + ":").getBytes(StandardCharsets.UTF_8);
+        if (cachedPrefixCount.get() >= MAX_CACHED_PREFIXES) {
+            return prefix;
+        }
+        //先get再computeIfAbsent，java8的computeIfAbsent在键存在时也会加锁
+        if (tagCache == null) {
+            if (topicCache == null) {
+                topicCache = prefixCache.computeIfAbsent(application, k -> new ConcurrentHashMap<>());
+            }
+            tagCache = topicCache.computeIfAbsent(topic, k -> new ConcurrentHashMap<>());
+        }
+        if (tagCache.putIfAbsent(tag, prefix) == null) {
+            cachedPrefixCount.incrementAndGet();
+        }
+        return prefix;
+    }
+
+    /**
+     * 已缓存的前缀个数
+     */
+    int getCachedPrefixCount() {
+        return cachedPrefixCount.get();
+    }
+
+    private static boolean isAscii(String s, int len) {
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long v) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.jaskey.rocketmq.persist;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 导出/导入用的一条去重记录
+ * 1.dedupElement为去重键，能在各种存储之间迁移
+ * 2.无法还原出去重键时（如Redis开启了键的哈希）只有storeKey，即存储中的原始键，只能导入到键格式相同的同类存储
+ */
+@Getter
+@ToString(exclude = "storeKey")
+public class DedupRecord {
+
+    private final DedupElement dedupElement;
+
+    private final byte[] storeKey;
+
+    //IPersist.CONSUME_STATUS_CONSUMING或IPersist.CONSUME_STATUS_CONSUMED
+    private final String status;
+
+    //过期时间戳（毫秒）
+    private final long expireTime;
+
+    public DedupRecord(DedupElement dedupElement, String status, long expireTime) {
+        this(dedupElement, null, status, expireTime);
+    }
+
+    public DedupRecord(DedupElement dedupElement, byte[] storeKey, String status, long expireTime) {
+        if (dedupElement == null && storeKey == null) {
+            throw new NullPointerException("dedupElement and storeKey are both null");
+        }
+        this.dedupElement = dedupElement;
+        this.storeKey = storeKey;
+        this.status = status;
+        this.expireTime = expireTime;
+    }
+}
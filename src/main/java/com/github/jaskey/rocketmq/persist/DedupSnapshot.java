@@ -0,0 +1,228 @@
+package com.github.jaskey.rocketmq.persist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 去重存储的快照：导出到二进制文件、从文件导入、两个存储之间直接复制，全程流式，内存中最多只有一批记录
+ * 用于Redis故障切换后的预热（定期导出，切换后导入），以及在Redis和MySQL之间迁移
+ * 文件格式（大端）：
+ * 1.魔数DDS1
+ * 2.前缀定义 0x01 应用名 TOPIC TAG（writeUTF），按出现顺序编号，之后的记录只写编号
+ * 3.记录 0x02 前缀编号(varint) 去重键长度(varint) 去重键(UTF-8) 状态(1字节) 过期时间戳(8字节)
+ * 4.原始键记录 0x03 原始键长度(varint) 原始键 状态 过期时间戳，只在无法还原去重键时使用（如哈希过的Redis键）
+ * 5.结束 0x00 记录条数(8字节)，用于发现被截断的文件
+ * 注：导出期间存储仍在写入时，快照不是某一时刻的一致视图，导入时已存在的记录不会被覆盖
+ */
+@Slf4j
+public final class DedupSnapshot {
+
+    private static final int MAGIC = 0x44445331;//DDS1
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_PREFIX = 1;
+    private static final byte TYPE_RECORD = 2;
+    private static final byte TYPE_RAW_RECORD = 3;
+
+    private static final byte STATUS_CONSUMING = 0;
+    private static final byte STATUS_CONSUMED = 1;
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private DedupSnapshot() {
+    }
+
+
+    /**
+     * 导出存储中所有未过期的记录，不会关闭out
+     * @return 写入的记录条数
+     */
+    public static long export(SnapshotPersist from, OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        dataOut.writeInt(MAGIC);
+        Map<String, Integer> prefixIds = new HashMap<>();
+        long[] written = new long[1];
+        try {
+            from.exportRecords(DEFAULT_BATCH_SIZE, records -> {
+                try {
+                    for (DedupRecord record : records) {
+                        if (writeRecord(dataOut, record, prefixIds)) {
+                            written[0]++;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        dataOut.writeByte(TYPE_END);
+        dataOut.writeLong(written[0]);
+        dataOut.flush();
+        log.info("exported {} dedup records from {}", written[0], from.getClass().getSimpleName());
+        return written[0];
+    }
+
+    /**
+     * 从快照导入，每batchSize条一次存储调用，已过期的记录跳过，不会关闭in
+     * @return 实际写入的条数
+     */
+    public static long load(InputStream in, SnapshotPersist to, int batchSize) throws IOException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        try {
+            if (dataIn.readInt() != MAGIC) {
+                throw new IOException("not a dedup snapshot");
+            }
+            List<DedupElement> prefixes = new ArrayList<>();
+            List<DedupRecord> batch = new ArrayList<>(batchSize);
+            long read = 0;
+            long imported = 0;
+            while (true) {
+                byte type = dataIn.readByte();
+                if (type == TYPE_END) {
+                    long expected = dataIn.readLong();
+                    if (expected != read) {
+                        throw new IOException("corrupted dedup snapshot, expect " + expected + " records but " + read + " read");
+                    }
+                    break;
+                }
+                if (type == TYPE_PREFIX) {
+                    prefixes.add(new DedupElement(dataIn.readUTF(), dataIn.readUTF(), dataIn.readUTF(), null));
+                    continue;
+                }
+                batch.add(readRecord(dataIn, type, prefixes));
+                read++;
+                if (batch.size() == batchSize) {
+                    imported += to.importRecords(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                imported += to.importRecords(batch);
+            }
+            log.info("loaded dedup snapshot to {}, {} records read, {} imported", to.getClass().getSimpleName(), read, imported);
+            return imported;
+        } catch (EOFException e) {
+            throw new IOException("truncated dedup snapshot", e);
+        }
+    }
+
+    /**
+     * 两个存储之间直接复制，如从MySQL迁移到Redis
+     * @return 实际写入的条数
+     */
+    public static long copy(SnapshotPersist from, SnapshotPersist to) {
+        long[] imported = new long[1];
+        long exported = from.exportRecords(DEFAULT_BATCH_SIZE, records -> imported[0] += to.importRecords(records));
+        log.info("copied dedup records from {} to {}, {} exported, {} imported", from.getClass().getSimpleName(), to.getClass().getSimpleName(), exported, imported[0]);
+        return imported[0];
+    }
+
+
+    private static boolean writeRecord(DataOutputStream out, DedupRecord record, Map<String, Integer> prefixIds) throws IOException {
+        byte status;
+        if (IPersist.CONSUME_STATUS_CONSUMED.equals(record.getStatus())) {
+            status = STATUS_CONSUMED;
+        } else if (IPersist.CONSUME_STATUS_CONSUMING.equals(record.getStatus())) {
+            status = STATUS_CONSUMING;
+        } else {
+            log.warn("unknown status {}, skip {}", record.getStatus(), record);
+            return false;
+        }
+
+        DedupElement dedupElement = record.getDedupElement();
+        if (dedupElement == null) {
+            out.writeByte(TYPE_RAW_RECORD);
+            writeBytes(out, record.getStoreKey());
+        } else {
+            String prefix = dedupElement.getApplication() + '\0' + dedupElement.getTopic() + '\0' + dedupElement.getTag();
+            Integer prefixId = prefixIds.get(prefix);
+            if (prefixId == null) {
+                prefixId = prefixIds.size();
+                prefixIds.put(prefix, prefixId);
+                out.writeByte(TYPE_PREFIX);
+                out.writeUTF(dedupElement.getApplication());
+                out.writeUTF(dedupElement.getTopic());
+                out.writeUTF(dedupElement.getTag());
+            }
+            out.writeByte(TYPE_RECORD);
+            writeVarInt(out, prefixId);
+            writeBytes(out, dedupElement.getMsgUniqKey().getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeByte(status);
+        out.writeLong(record.getExpireTime());
+        return true;
+    }
+
+    private static DedupRecord readRecord(DataInputStream in, byte type, List<DedupElement> prefixes) throws IOException {
+        DedupElement dedupElement = null;
+        byte[] storeKey = null;
+        if (type == TYPE_RECORD) {
+            int prefixId = readVarInt(in);
+            if (prefixId >= prefixes.size()) {
+                throw new IOException("corrupted dedup snapshot, unknown prefix " + prefixId);
+            }
+            DedupElement prefix = prefixes.get(prefixId);
+            dedupElement = new DedupElement(prefix.getApplication(), prefix.getTopic(), prefix.getTag(), new String(readBytes(in), StandardCharsets.UTF_8));
+        } else if (type == TYPE_RAW_RECORD) {
+            storeKey = readBytes(in);
+        } else {
+            throw new IOException("corrupted dedup snapshot, unknown type " + type);
+        }
+        String status = in.readByte() == STATUS_CONSUMED ? IPersist.CONSUME_STATUS_CONSUMED : IPersist.CONSUME_STATUS_CONSUMING;
+        return new DedupRecord(dedupElement, storeKey, status, in.readLong());
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = readVarInt(in);
+        if (len < 0) {
+            throw new IOException("corrupted dedup snapshot, negative length " + len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("corrupted dedup snapshot, malformed varint");
+    }
+}
@@ -0,0 +1,277 @@
+package com.github.jaskey.rocketmq.persist;
+
+import com.github.jaskey.rocketmq.filter.HotKeyDetector;
+import com.github.jaskey.rocketmq.metrics.DedupMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点去重键的本地应答：同一个去重键短时间内大量重复（如生产者bug把同一个业务键重发上千次）时，重复的消息不再访问远端存储
+ * 1.每次抢占都在HotKeyDetector中计数，一个窗口内超过阈值的去重键记为热点，并通过DedupMetrics#recordHotKey告警，每个窗口一次
+ * 2.只为热点键保存本地状态：远端已消费的直接返回已消费；远端消费中（包括本进程抢占成功还在消费的）在一小段时间内直接返回消费中
+ * 3.本地只会回答"已消费"和"消费中"，抢占成功一定来自远端存储，所以不会因为本地状态导致重复消费，回答消费中最多让消息晚一点重试
+ * 注：最多保存maxHotKeys个热点键，满了以后先清理不再热的，仍然满则不再记录新的热点键
+ */
+@Slf4j
+public class HotKeyPersist extends AbstractLocalConsumedPersist {
+
+    private static final int DEFAULT_SKETCH_WIDTH = 4096;
+
+    private static final int DEFAULT_MAX_HOT_KEYS = 1000;
+
+    private static final long DEFAULT_CONSUMED_HOLD_MILLISECONDS = 60 * 1000;
+
+    private static final long DEFAULT_CONSUMING_HOLD_MILLISECONDS = 1000;
+
+    private final HotKeyDetector detector;
+
+    private final DedupMetrics metrics;
+
+    private final int maxHotKeys;
+
+    private final long consumedHoldMilliSeconds;
+
+    private final long consumingHoldMilliSeconds;
+
+    private final ConcurrentHashMap<DedupElement, HotState> hotStates = new ConcurrentHashMap<>();
+
+    private final LongAdder localAnswerCount = new LongAdder();
+
+    /**
+     * @param threshold 一个窗口内同一个去重键抢占多少次认为是热点
+     * @param windowMilliSeconds 统计窗口
+     */
+    public HotKeyPersist(IPersist delegate, int threshold, long windowMilliSeconds, DedupMetrics metrics) {
+        this(delegate, new HotKeyDetector(DEFAULT_SKETCH_WIDTH, threshold, windowMilliSeconds), metrics, DEFAULT_MAX_HOT_KEYS, DEFAULT_CONSUMED_HOLD_MILLISECONDS, DEFAULT_CONSUMING_HOLD_MILLISECONDS);
+    }
+
+    /**
+     * @param maxHotKeys 最多保存多少个热点键的本地状态
+     * @param consumedHoldMilliSeconds 热点键已消费的状态在本地保留多久，远端记录被删除/过期后，最多在这段时间内仍会被当作已消费
+     * @param consumingHoldMilliSeconds 远端消费中的状态在本地保留多久，这段时间内的重复消息直接稍后重试
+     */
+    public HotKeyPersist(IPersist delegate, HotKeyDetector detector, DedupMetrics metrics, int maxHotKeys, long consumedHoldMilliSeconds, long consumingHoldMilliSeconds) {
+        super(delegate);
+        if (detector == null || metrics == null) {
+            throw new NullPointerException("detector or metrics is null");
+        }
+        if (maxHotKeys <= 0 || consumedHoldMilliSeconds <= 0 || consumingHoldMilliSeconds <= 0) {
+            throw new IllegalArgumentException("maxHotKeys, consumedHoldMilliSeconds and consumingHoldMilliSeconds must be positive");
+        }
+        this.detector = detector;
+        this.metrics = metrics;
+        this.maxHotKeys = maxHotKeys;
+        this.consumedHoldMilliSeconds = consumedHoldMilliSeconds;
+        this.consumingHoldMilliSeconds = consumingHoldMilliSeconds;
+    }
+
+
+    @Override
+    protected boolean isLocalConsumed(DedupElement dedupElement) {
+        HotState state = hotStates.get(dedupElement);
+        return state != null && state.localResult(System.currentTimeMillis()) == ClaimResult.CONSUMED;
+    }
+
+    @Override
+    protected void onDelegateConsumed(DedupElement dedupElement) {
+        HotState state = hotStates.get(dedupElement);
+        if (state != null) {
+            state.set(ClaimResult.CONSUMED, System.currentTimeMillis() + consumedHoldMilliSeconds);
+        }
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        HotState state = track(dedupElement);
+        if (state != null && answerLocally(state) != null) {
+            return false;
+        }
+        boolean claimed = super.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+        if (state != null && claimed) {
+            remember(state, ClaimResult.CLAIMED, dedupProcessingExpireMilliSeconds);
+        }
+        return claimed;
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        HotState state = track(dedupElement);
+        if (state != null) {
+            ClaimResult localResult = answerLocally(state);
+            if (localResult != null) {
+                return localResult;
+            }
+        }
+        ClaimResult claimResult = super.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        if (state != null) {
+            remember(state, claimResult, dedupProcessingExpireMilliSeconds);
+        }
+        return claimResult;
+    }
+
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> res = new ArrayList<>(dedupElements.size());
+        HotState[] states = new HotState[dedupElements.size()];
+        List<DedupElement> missed = new ArrayList<>(dedupElements.size());
+        for (int i = 0; i < states.length; i++) {
+            states[i] = track(dedupElements.get(i));
+            ClaimResult localResult = states[i] == null ? null : answerLocally(states[i]);
+            res.add(localResult);
+            if (localResult == null) {
+                missed.add(dedupElements.get(i));
+            }
+        }
+        if (missed.isEmpty()) {
+            return res;
+        }
+
+        List<ClaimResult> missedRes = super.batchClaim(missed, dedupProcessingExpireMilliSeconds);
+        for (int i = 0, j = 0; i < res.size(); i++) {
+            if (res.get(i) == null) {
+                ClaimResult claimResult = missedRes.get(j++);
+                if (states[i] != null) {
+                    remember(states[i], claimResult, dedupProcessingExpireMilliSeconds);
+                }
+                res.set(i, claimResult);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        clearState(dedupElement);
+        delegate.delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        rememberConsumed(dedupElement, dedupRecordReserveMinutes);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            clearState(dedupElement);
+        }
+        delegate.batchDelete(dedupElements);
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        for (DedupElement dedupElement : dedupElements) {
+            rememberConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+    }
+
+    /**
+     * 当前保存了本地状态的热点键个数
+     */
+    public int getHotKeyCount() {
+        return hotStates.size();
+    }
+
+    /**
+     * 由本地状态直接应答（没有访问远端存储）的抢占次数
+     */
+    public long getLocalAnswerCount() {
+        return localAnswerCount.sum();
+    }
+
+
+    //计数，热点键返回其本地状态，非热点返回null
+    private HotState track(DedupElement dedupElement) {
+        int count = detector.increment(dedupElement);
+        boolean hot = detector.isHot(count);
+        HotState state = hotStates.get(dedupElement);
+        if (state == null) {
+            if (!hot || (hotStates.size() >= maxHotKeys && !evictCold())) {
+                return null;
+            }
+            state = hotStates.computeIfAbsent(dedupElement, k -> new HotState());
+        }
+        if (hot) {
+            long windowStartTime = detector.getWindowStartTime();
+            long alertedWindow = state.alertedWindow.get();
+            if (alertedWindow != windowStartTime && state.alertedWindow.compareAndSet(alertedWindow, windowStartTime)) {
+                log.warn("[NOTIFYME]hot dedup key detected, {} times in current window, duplicates will be answered locally, dedupKey : {}", count, delegate.toPrintInfo(dedupElement));
+                metrics.recordHotKey(dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), count);
+            }
+        }
+        return state;
+    }
+
+    private ClaimResult answerLocally(HotState state) {
+        ClaimResult localResult = state.localResult(System.currentTimeMillis());
+        if (localResult != null) {
+            localAnswerCount.increment();
+        }
+        return localResult;
+    }
+
+    private void remember(HotState state, ClaimResult claimResult, long dedupProcessingExpireMilliSeconds) {
+        long now = System.currentTimeMillis();
+        if (claimResult == ClaimResult.CLAIMED) {
+            //本进程正在消费，消费结束（标记已消费/删除）前其他重复消息都是消费中
+            state.set(ClaimResult.CONSUMING, now + dedupProcessingExpireMilliSeconds);
+        } else if (claimResult == ClaimResult.CONSUMING) {
+            //远端返回消费中之后，本进程可能已经标记为已消费，不能覆盖
+            state.setConsumingIfNotConsumed(now + Math.min(consumingHoldMilliSeconds, dedupProcessingExpireMilliSeconds), now);
+        } else if (claimResult == ClaimResult.CONSUMED) {
+            state.set(ClaimResult.CONSUMED, now + consumedHoldMilliSeconds);
+        }
+    }
+
+    private void rememberConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        HotState state = hotStates.get(dedupElement);
+        if (state != null) {
+            state.set(ClaimResult.CONSUMED, System.currentTimeMillis() + Math.min(consumedHoldMilliSeconds, dedupRecordReserveMinutes * 60 * 1000));
+        }
+    }
+
+    private void clearState(DedupElement dedupElement) {
+        HotState state = hotStates.get(dedupElement);
+        if (state != null) {
+            state.set(null, 0);
+        }
+    }
+
+    //清理当前窗口不热、并且本地状态已过期的键，返回是否有空位
+    private synchronized boolean evictCold() {
+        long now = System.currentTimeMillis();
+        long windowStartTime = detector.getWindowStartTime();
+        hotStates.entrySet().removeIf(entry -> entry.getValue().alertedWindow.get() != windowStartTime && entry.getValue().localResult(now) == null);
+        return hotStates.size() < maxHotKeys;
+    }
+
+
+    private static class HotState {
+        //最近一次告警所在的窗口
+        private final AtomicLong alertedWindow = new AtomicLong(-1);
+        private ClaimResult status;
+        private long expireTime;
+
+        synchronized ClaimResult localResult(long now) {
+            return status != null && expireTime > now ? status : null;
+        }
+
+        synchronized void setConsumingIfNotConsumed(long expireTime, long now) {
+            if (status != ClaimResult.CONSUMED || this.expireTime <= now) {
+                set(ClaimResult.CONSUMING, expireTime);
+            }
+        }
+
+        synchronized void set(ClaimResult status, long expireTime) {
+            this.status = status;
+            this.expireTime = expireTime;
+        }
+    }
+}
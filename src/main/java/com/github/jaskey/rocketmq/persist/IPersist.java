@@ -1,5 +1,8 @@
 package com.github.jaskey.rocketmq.persist;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by linjunjie1103@gmail.com
  */
@@ -20,4 +23,113 @@ public interface IPersist {
     default String toPrintInfo(DedupElement dedupElement) {
         return dedupElement.toString();
     }
+
+    /**
+     * 关闭时回调，用于释放资源、把还没写入的记录写入存储
+     */
+    default void shutdown() {
+    }
+
+    /**
+     * 抢占消费记录，抢占失败时同时返回已有记录的状态
+     * 默认实现为setConsumingIfNX + get，若两次调用之间记录刚好过期则重新抢占一次；支持原子操作的存储应该覆盖此方法，以一次网络往返完成
+     */
+    default ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        for (int i = 0; i < 2; i++) {
+            if (setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds)) {
+                return ClaimResult.CLAIMED;
+            }
+            String val = get(dedupElement);
+            if (val != null) {
+                return ClaimResult.ofExistingStatus(val);
+            }
+        }
+        return ClaimResult.UNKNOWN;
+    }
+
+
+    /**
+     * 批量抢占消费中的状态，返回值与入参下标一一对应，true表示抢占成功
+     * 默认实现为逐条调用，具体的存储实现应该覆盖此方法，以一次网络往返完成
+     */
+    default boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        boolean[] res = new boolean[dedupElements.size()];
+        for (int i = 0; i < dedupElements.size(); i++) {
+            res[i] = setConsumingIfNX(dedupElements.get(i), dedupProcessingExpireMilliSeconds);
+        }
+        return res;
+    }
+
+    /**
+     * 批量抢占消费记录，返回值与入参下标一一对应
+     * 默认实现为batchSetConsumingIfNX + 抢占失败部分的batchGet
+     */
+    default List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        boolean[] claimed = batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        List<DedupElement> notClaimed = new ArrayList<>();
+        for (int i = 0; i < claimed.length; i++) {
+            if (!claimed[i]) {
+                notClaimed.add(dedupElements.get(i));
+            }
+        }
+        List<String> notClaimedStatus = notClaimed.isEmpty() ? new ArrayList<>() : batchGet(notClaimed);
+
+        List<ClaimResult> res = new ArrayList<>(claimed.length);
+        for (int i = 0, j = 0; i < claimed.length; i++) {
+            res.add(claimed[i] ? ClaimResult.CLAIMED : ClaimResult.ofExistingStatus(notClaimedStatus.get(j++)));
+        }
+        return res;
+    }
+
+    /**
+     * 批量删除去重记录（用于消费失败后释放）
+     */
+    default void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            delete(dedupElement);
+        }
+    }
+
+    /**
+     * 批量标记为已消费
+     */
+    default void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        for (DedupElement dedupElement : dedupElements) {
+            markConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+    }
+
+    /**
+     * 是否已经调用了markConsumed、但还没有写入存储（如WriteBehindPersist的异步写入），此时存储中的记录仍为消费中
+     * 开启续期时，续期会持续到写入完成
+     */
+    default boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return false;
+    }
+
+    /**
+     * 是否支持batchRenewConsuming，不支持的存储不能开启续期（DedupConfig#enableLeaseRenewal）
+     */
+    default boolean supportsRenewal() {
+        return false;
+    }
+
+    /**
+     * 续期：把仍为消费中的记录的过期时间延长为从现在起dedupProcessingExpireMilliSeconds，已消费/不存在的记录不受影响
+     * 用于长时间的消费（见DedupConfig#enableLeaseRenewal），需要续期的存储实现应该覆盖此方法，以一次调用完成，同时覆盖supportsRenewal
+     */
+    default void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support renewing consuming records");
+    }
+
+    /**
+     * 批量查询消费状态，返回值与入参下标一一对应，没有记录的为null
+     */
+    default List<String> batchGet(List<DedupElement> dedupElements) {
+        List<String> res = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            res.add(get(dedupElement));
+        }
+        return res;
+    }
 }
@@ -0,0 +1,113 @@
+package com.github.jaskey.rocketmq.persist;
+
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 定期清理t_rocketmq_dedup中的过期记录
+ * mysql不支持记录过期，JDBCPersit只会在碰到过期记录时顺带清理，表会无限增长，需要后台清理
+ * 1.每次只删除chunkSize条（DELETE ... LIMIT），避免大事务和长时间锁表
+ * 2.按maxRowsPerSecond限速，两次删除之间会sleep
+ * 3.需要expire_time上的索引，见 sql/t_rocketmq_dedup.sql
+ */
+@Slf4j
+public class JDBCDedupReaper {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int chunkSize;
+    private final int maxRowsPerSecond;
+    private final long intervalSeconds;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "JDBCDedupReaperThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+
+    private final LongAdder deletedCount = new LongAdder();
+
+    /**
+     * 默认每分钟清理一次，每次最多删除1000条，每秒最多删除5000条
+     */
+    public JDBCDedupReaper(JdbcTemplate jdbcTemplate) {
+        this(jdbcTemplate, 1000, 5000, 60);
+    }
+
+    /**
+     * @param chunkSize 每条DELETE语句最多删除的条数
+     * @param maxRowsPerSecond 每秒最多删除的条数
+     * @param intervalSeconds 两轮清理之间的间隔
+     */
+    public JDBCDedupReaper(JdbcTemplate jdbcTemplate, int chunkSize, int maxRowsPerSecond, long intervalSeconds) {
+        if (jdbcTemplate == null) {
+            throw new NullPointerException("jdbc template is null");
+        }
+        if (chunkSize <= 0 || maxRowsPerSecond <= 0 || intervalSeconds <= 0) {
+            throw new IllegalArgumentException("illegal reaper config");
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.chunkSize = chunkSize;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reapOnce();
+            } catch (Throwable e) {
+                log.error("reap expire dedup records error", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        log.info("JDBCDedupReaper started, chunkSize={}, maxRowsPerSecond={}, intervalSeconds={}", chunkSize, maxRowsPerSecond, intervalSeconds);
+    }
+
+    public void shutdown() {
+        running = false;
+        scheduler.shutdownNow();
+    }
+
+
+    /**
+     * 清理一轮，直到没有过期记录
+     * @return 本轮删除的条数
+     */
+    public long reapOnce() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long chunkIntervalMillis = 1000L * chunkSize / maxRowsPerSecond;
+        long total = 0;
+        while (running) {
+            long start = System.currentTimeMillis();
+            int deleted = jdbcTemplate.update("DELETE FROM t_rocketmq_dedup WHERE expire_time < ? LIMIT ?", now, chunkSize);
+            total += deleted;
+            deletedCount.add(deleted);
+            if (deleted < chunkSize) {
+                break;
+            }
+            //限速
+            long sleep = chunkIntervalMillis - (System.currentTimeMillis() - start);
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+        }
+        if (total > 0) {
+            log.info("reap {} expire dedup records", total);
+        }
+        return total;
+    }
+
+    /**
+     * 累计删除的条数
+     */
+    public long getDeletedCount() {
+        return deletedCount.sum();
+    }
+}
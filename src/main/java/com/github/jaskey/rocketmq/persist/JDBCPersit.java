@@ -5,13 +5,27 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Created by linjunjie1103@gmail.com
  */
 @Slf4j
-public class JDBCPersit implements IPersist {
+public class JDBCPersit implements SnapshotPersist {
+
+    //t_rocketmq_dedup的字段长度，超长的值INSERT IGNORE会截断后写入，截断后可能与其他消息的去重键相同而被误判为重复
+    static final int MAX_APPLICATION_NAME_LENGTH = 255;
+    static final int MAX_TOPIC_LENGTH = 255;
+    static final int MAX_TAG_LENGTH = 16;
+    static final int MAX_MSG_UNIQ_KEY_LENGTH = 255;
+
     private final JdbcTemplate jdbcTemplate;
 
     public JDBCPersit(JdbcTemplate jdbcTemplate) {
@@ -20,58 +34,391 @@ public class JDBCPersit implements IPersist {
 
     @Override
     public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
-        long expireTime = System.currentTimeMillis() + dedupProcessingExpireMilliSeconds;
-        try {
-            int  i = jdbcTemplate.update("INSERT INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values (?, ?, ?, ?, ?, ?)",dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), CONSUME_STATUS_CONSUMING, expireTime);
-        } catch (org.springframework.dao.DuplicateKeyException e) {
-            log.warn("found consuming/consumed record, set setConsumingIfNX fail {}", dedupElement);
-
-
-            /**
-             * 由于mysql不支持消息过期，出现重复主键的情况下，有可能是过期的一些记录，这里动态的删除这些记录后重试
-             */
-            int  i = delete(dedupElement, true);
-            if (i > 0) {//如果删除了过期消息
-                log.info("delete {} expire records, now retry setConsumingIfNX again", i);
-                return setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
-            } else {
-                return false;
-            }
-        } catch (Exception e) {
-            log.error("unknown error when jdbc insert, will consider success", e);
-            return true;
+        ClaimResult claimResult = claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        return claimResult == ClaimResult.CLAIMED || claimResult == ClaimResult.UNKNOWN && exceedsColumns(dedupElement);
+    }
+
+    /**
+     * 抢占消费记录，整个过程不依赖DuplicateKeyException：
+     * 1.INSERT IGNORE，新消息一条语句完成抢占
+     * 2.插入不成功则查询已有记录，没过期直接返回其状态
+     * 3.已过期的记录用带过期条件的UPDATE接管（mysql不支持记录过期）
+     * 数据库异常直接抛出（不再当作抢占成功），需要降级时见ResilientPersist
+     * 注：超过字段长度的消息不去重，返回UNKNOWN，IGNORE只用于忽略唯一键冲突
+     */
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (exceedsColumns(dedupElement)) {
+            logExceedsColumns(dedupElement);
+            return ClaimResult.UNKNOWN;
+        }
+        long now = System.currentTimeMillis();
+        long expireTime = now + dedupProcessingExpireMilliSeconds;
+        int i = jdbcTemplate.update("INSERT IGNORE INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values (?, ?, ?, ?, ?, ?)",
+                dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), CONSUME_STATUS_CONSUMING, expireTime);
+        if (i > 0) {//插入成功
+            return ClaimResult.CLAIMED;
         }
 
-        //插入成功则返回true
-        return true;
-    }
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT status, expire_time FROM t_rocketmq_dedup WHERE application_name = ? AND topic = ? AND tag = ? AND msg_uniq_key = ?",
+                dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+        if (rows.isEmpty()) {
+            //插入和查询之间记录被删除了（比如前一个消费失败），按消费中处理，稍后重试
+            log.info("dedup record deleted concurrently, consider consuming {}", dedupElement);
+            return ClaimResult.CONSUMING;
+        }
 
+        String status = (String) rows.get(0).get("status");
+        if (((Number) rows.get(0).get("expire_time")).longValue() >= now) {
+            log.warn("found consuming/consumed record, claim fail {}", dedupElement);
+            return ClaimResult.ofExistingStatus(status);
+        }
 
-    private int delete (DedupElement dedupElement, boolean onlyExpire) {
-        if (onlyExpire) {
-            return jdbcTemplate.update("DELETE FROM t_rocketmq_dedup  WHERE application_name = ? AND topic =? AND tag = ? AND msg_uniq_key = ? AND expire_time < ?", dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), System.currentTimeMillis());
-        } else {
-            return jdbcTemplate.update("DELETE FROM t_rocketmq_dedup  WHERE application_name = ? AND topic =? AND tag = ? AND msg_uniq_key = ?", dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+        //过期的记录，带条件接管，并发接管时只有一个会成功
+        int updated = jdbcTemplate.update("UPDATE t_rocketmq_dedup SET status = ? , expire_time = ? WHERE application_name = ? AND topic = ? AND tag = ? AND msg_uniq_key = ? AND expire_time < ?",
+                CONSUME_STATUS_CONSUMING, expireTime, dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), now);
+        if (updated > 0) {
+            log.info("take over expire {} record {}", status, dedupElement);
+            return ClaimResult.CLAIMED;
+        } else {//被其他消费者接管了
+            return ClaimResult.CONSUMING;
         }
     }
+
     @Override
     public void delete(DedupElement dedupElement) {
-        delete(dedupElement, false);
+        jdbcTemplate.update("DELETE FROM t_rocketmq_dedup  WHERE application_name = ? AND topic =? AND tag = ? AND msg_uniq_key = ?", dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
     }
 
 
     @Override
     public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        if (exceedsColumns(dedupElement)) {//没有去重，不写入截断的记录
+            return;
+        }
         long expireTime = System.currentTimeMillis() + dedupRecordReserveMinutes * 60 * 1000;
         int  i = jdbcTemplate.update("UPDATE t_rocketmq_dedup SET status = ? , expire_time  = ? WHERE application_name = ? AND topic = ? AND tag = ? AND msg_uniq_key = ? ",
                 CONSUME_STATUS_CONSUMED, expireTime, dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+        if (i == 0) {//没有抢占记录（如作为TieredPersist的持久层），直接插入
+            jdbcTemplate.update("INSERT IGNORE INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values (?, ?, ?, ?, ?, ?)",
+                    dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), CONSUME_STATUS_CONSUMED, expireTime);
+        }
     }
 
     @Override
     public String get(DedupElement dedupElement) {
-        Map<String, Object> res =jdbcTemplate.queryForMap("SELECT status FROM t_rocketmq_dedup where application_name = ? AND topic = ? AND tag = ? AND msg_uniq_key  = ? and expire_time > ?",
+        //没有记录（或已过期）返回null，不能用queryForMap，否则会抛EmptyResultDataAccessException
+        List<String> res = jdbcTemplate.queryForList("SELECT status FROM t_rocketmq_dedup where application_name = ? AND topic = ? AND tag = ? AND msg_uniq_key  = ? and expire_time > ?", String.class,
                 dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), System.currentTimeMillis());
-        return (String)res.get("status");
+        return res.isEmpty() ? null : res.get(0);
+    }
+
+
+    @Override
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> claimResults = batchClaim(dedupElements, dedupProcessingExpireMilliSeconds);
+        boolean[] res = new boolean[claimResults.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = claimResults.get(i) == ClaimResult.CLAIMED || claimResults.get(i) == ClaimResult.UNKNOWN && exceedsColumns(dedupElements.get(i));
+        }
+        return res;
+    }
+
+    /**
+     * 批量抢占：先一次查询出已存在的记录（同时拿到状态），过期的一次性删除，再用一条多行INSERT IGNORE插入剩余的记录
+     * 常见情况（全部都是新消息）下只需要两条语句；超过字段长度的消息不去重，返回UNKNOWN
+     */
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> res = new ArrayList<>(dedupElements.size());
+        //同一批次里面相同的去重键只需要抢占一次，后面的认为正在消费中
+        Set<DedupElement> distinctElements = new LinkedHashSet<>();
+        for (DedupElement dedupElement : dedupElements) {
+            if (exceedsColumns(dedupElement)) {
+                logExceedsColumns(dedupElement);
+            } else {
+                distinctElements.add(dedupElement);
+            }
+        }
+        if (distinctElements.isEmpty()) {
+            for (int i = 0; i < dedupElements.size(); i++) {
+                res.add(ClaimResult.UNKNOWN);
+            }
+            return res;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<DedupElement, String> existing = new HashMap<>();
+        List<DedupElement> expired = new ArrayList<>();
+        for (Map<String, Object> row : jdbcTemplate.queryForList("SELECT application_name, topic, tag, msg_uniq_key, status, expire_time FROM t_rocketmq_dedup WHERE " + buildKeysCondition(distinctElements.size()), buildKeysArgs(distinctElements).toArray())) {
+            DedupElement dedupElement = new DedupElement((String) row.get("application_name"), (String) row.get("topic"), (String) row.get("tag"), (String) row.get("msg_uniq_key"));
+            if (((Number) row.get("expire_time")).longValue() < now) {
+                expired.add(dedupElement);
+            } else {
+                existing.put(dedupElement, (String) row.get("status"));
+            }
+        }
+
+        //由于mysql不支持消息过期，这里删掉过期的记录后再插入
+        if (!expired.isEmpty()) {
+            List<Object> args = buildKeysArgs(expired);
+            args.add(now);
+            int i = jdbcTemplate.update("DELETE FROM t_rocketmq_dedup WHERE " + buildKeysCondition(expired.size()) + " AND expire_time < ?", args.toArray());
+            log.info("delete {} expire records before batch claim", i);
+        }
+
+        List<DedupElement> toInsert = new ArrayList<>();
+        for (DedupElement dedupElement : distinctElements) {
+            if (!existing.containsKey(dedupElement)) {
+                toInsert.add(dedupElement);
+            }
+        }
+
+        Set<DedupElement> claimed = new HashSet<>();
+        if (!toInsert.isEmpty()) {
+            long expireTime = now + dedupProcessingExpireMilliSeconds;
+            int inserted = batchInsertIgnore(toInsert, CONSUME_STATUS_CONSUMING, expireTime);
+            if (inserted == toInsert.size()) {
+                claimed.addAll(toInsert);
+            } else {
+                //查询和插入之间被其他消费者抢先插入了，重新查询这部分记录，区分出自己插入的
+                log.warn("concurrent insert found when batch claim, expect {} but {} inserted, re-select to find own records", toInsert.size(), inserted);
+                resolveInsertRace(toInsert, inserted, expireTime, claimed, existing);
+            }
+        }
+
+        for (DedupElement dedupElement : dedupElements) {
+            if (!distinctElements.contains(dedupElement)) {//超长
+                res.add(ClaimResult.UNKNOWN);
+            } else if (claimed.remove(dedupElement)) {//只有第一个相同的去重键算抢占成功
+                res.add(ClaimResult.CLAIMED);
+            } else if (existing.containsKey(dedupElement)) {
+                res.add(ClaimResult.ofExistingStatus(existing.get(dedupElement)));
+            } else {
+                res.add(ClaimResult.CONSUMING);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update("DELETE FROM t_rocketmq_dedup WHERE " + buildKeysCondition(dedupElements.size()), buildKeysArgs(dedupElements).toArray());
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        List<DedupElement> fitElements = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            if (!exceedsColumns(dedupElement)) {//超长的没有去重，不写入截断的记录
+                fitElements.add(dedupElement);
+            }
+        }
+        if (fitElements.isEmpty()) {
+            return;
+        }
+        dedupElements = fitElements;
+        long expireTime = System.currentTimeMillis() + dedupRecordReserveMinutes * 60 * 1000;
+        List<Object> args = new ArrayList<>();
+        args.add(CONSUME_STATUS_CONSUMED);
+        args.add(expireTime);
+        args.addAll(buildKeysArgs(dedupElements));
+        int updated = jdbcTemplate.update("UPDATE t_rocketmq_dedup SET status = ? , expire_time  = ? WHERE " + buildKeysCondition(dedupElements.size()), args.toArray());
+
+        List<DedupElement> distinctElements = new ArrayList<>(new LinkedHashSet<>(dedupElements));
+        if (updated < distinctElements.size()) {//部分没有抢占记录（如作为TieredPersist的持久层），已更新的会被忽略
+            batchInsertIgnore(distinctElements, CONSUME_STATUS_CONSUMED, expireTime);
+        }
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Object> args = new ArrayList<>();
+        args.add(now + dedupProcessingExpireMilliSeconds);
+        args.addAll(buildKeysArgs(dedupElements));
+        args.add(CONSUME_STATUS_CONSUMING);
+        args.add(now);
+        //已过期的记录与Redis一致视为不存在，不续期
+        jdbcTemplate.update("UPDATE t_rocketmq_dedup SET expire_time = ? WHERE " + buildKeysCondition(dedupElements.size()) + " AND status = ? AND expire_time > ?", args.toArray());
+    }
+
+    /**
+     * 多行插入只插入了部分记录时，重新查询这些记录：消费中且过期时间与本次插入的相同的是自己插入的（抢占成功），其他的按已有记录的状态处理
+     * 匹配的条数与插入成功的条数一致时，匹配的正好是自己插入的记录；多于插入条数说明其他消费者在同一毫秒插入了相同去重键、相同过期时间的记录，
+     * 无法区分，不能删除（可能是其他消费者正在消费的记录），按消费中处理，最多等待dedupProcessingExpireMilliSeconds后重新消费
+     */
+    private void resolveInsertRace(List<DedupElement> toInsert, int inserted, long expireTime, Set<DedupElement> claimed, Map<DedupElement, String> existing) {
+        List<DedupElement> own = new ArrayList<>(inserted);
+        for (Map<String, Object> row : jdbcTemplate.queryForList("SELECT application_name, topic, tag, msg_uniq_key, status, expire_time FROM t_rocketmq_dedup WHERE " + buildKeysCondition(toInsert.size()), buildKeysArgs(toInsert).toArray())) {
+            DedupElement dedupElement = new DedupElement((String) row.get("application_name"), (String) row.get("topic"), (String) row.get("tag"), (String) row.get("msg_uniq_key"));
+            String status = (String) row.get("status");
+            if (CONSUME_STATUS_CONSUMING.equals(status) && ((Number) row.get("expire_time")).longValue() == expireTime) {
+                own.add(dedupElement);
+            } else {
+                existing.put(dedupElement, status);
+            }
+        }
+        if (own.size() == inserted) {
+            claimed.addAll(own);
+            return;
+        }
+        log.warn("[NOTIFYME]can not tell own records when batch claim, expect {} but {} matched, consider consuming {}", inserted, own.size(), own);
+        for (DedupElement dedupElement : own) {
+            existing.put(dedupElement, CONSUME_STATUS_CONSUMING);
+        }
+    }
+
+    //多行INSERT IGNORE，返回插入成功的条数
+    private int batchInsertIgnore(List<DedupElement> dedupElements, String status, long expireTime) {
+        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values ");
+        List<Object> args = new ArrayList<>(dedupElements.size() * 6);
+        for (int i = 0; i < dedupElements.size(); i++) {
+            DedupElement dedupElement = dedupElements.get(i);
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+            args.add(dedupElement.getApplication());
+            args.add(dedupElement.getTopic());
+            args.add(dedupElement.getTag());
+            args.add(dedupElement.getMsgUniqKey());
+            args.add(status);
+            args.add(expireTime);
+        }
+        return jdbcTemplate.update(sql.toString(), args.toArray());
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        List<String> res = new ArrayList<>(dedupElements.size());
+        if (dedupElements.isEmpty()) {
+            return res;
+        }
+        List<Object> args = buildKeysArgs(dedupElements);
+        args.add(System.currentTimeMillis());
+        Map<DedupElement, String> statusMap = new HashMap<>();
+        for (Map<String, Object> row : jdbcTemplate.queryForList("SELECT application_name, topic, tag, msg_uniq_key, status FROM t_rocketmq_dedup WHERE " + buildKeysCondition(dedupElements.size()) + " AND expire_time > ?", args.toArray())) {
+            statusMap.put(new DedupElement((String) row.get("application_name"), (String) row.get("topic"), (String) row.get("tag"), (String) row.get("msg_uniq_key")), (String) row.get("status"));
+        }
+        for (DedupElement dedupElement : dedupElements) {
+            res.add(statusMap.get(dedupElement));
+        }
+        return res;
+    }
+
+
+    /**
+     * 按唯一键（application_name, topic, tag, msg_uniq_key）分页导出未过期的记录，每页从上一页最后一条之后开始查询，不使用OFFSET
+     */
+    @Override
+    public long exportRecords(int batchSize, Consumer<List<DedupRecord>> consumer) {
+        long count = 0;
+        DedupElement last = null;
+        while (true) {
+            List<Object> args = new ArrayList<>();
+            StringBuilder sql = new StringBuilder("SELECT application_name, topic, tag, msg_uniq_key, status, expire_time FROM t_rocketmq_dedup WHERE expire_time > ?");
+            args.add(System.currentTimeMillis());
+            if (last != null) {
+                sql.append(" AND (application_name, topic, tag, msg_uniq_key) > (?, ?, ?, ?)");
+                args.add(last.getApplication());
+                args.add(last.getTopic());
+                args.add(last.getTag());
+                args.add(last.getMsgUniqKey());
+            }
+            sql.append(" ORDER BY application_name, topic, tag, msg_uniq_key LIMIT ?");
+            args.add(batchSize);
+
+            List<DedupRecord> records = new ArrayList<>(batchSize);
+            for (Map<String, Object> row : jdbcTemplate.queryForList(sql.toString(), args.toArray())) {
+                DedupElement dedupElement = new DedupElement((String) row.get("application_name"), (String) row.get("topic"), (String) row.get("tag"), (String) row.get("msg_uniq_key"));
+                records.add(new DedupRecord(dedupElement, (String) row.get("status"), ((Number) row.get("expire_time")).longValue()));
+            }
+            if (records.isEmpty()) {
+                return count;
+            }
+            consumer.accept(records);
+            count += records.size();
+            if (records.size() < batchSize) {
+                return count;
+            }
+            last = records.get(records.size() - 1).getDedupElement();
+        }
+    }
+
+    /**
+     * 一条多行INSERT IGNORE，已存在的记录不覆盖；只有原始键（没有去重键）的记录、超过字段长度的记录无法导入，跳过
+     */
+    @Override
+    public int importRecords(List<DedupRecord> records) {
+        long now = System.currentTimeMillis();
+        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values ");
+        List<Object> args = new ArrayList<>(records.size() * 6);
+        int skipped = 0;
+        for (DedupRecord record : records) {
+            DedupElement dedupElement = record.getDedupElement();
+            if (dedupElement == null || exceedsColumns(dedupElement)) {
+                skipped++;
+                continue;
+            }
+            if (record.getExpireTime() <= now) {
+                continue;
+            }
+            sql.append(args.isEmpty() ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+            args.add(dedupElement.getApplication());
+            args.add(dedupElement.getTopic());
+            args.add(dedupElement.getTag());
+            args.add(dedupElement.getMsgUniqKey());
+            args.add(record.getStatus());
+            args.add(record.getExpireTime());
+        }
+        if (skipped > 0) {
+            log.warn("{} records without dedup key (hashed redis keys) or exceeding column length can not be imported to jdbc, skipped", skipped);
+        }
+        return args.isEmpty() ? 0 : jdbcTemplate.update(sql.toString(), args.toArray());
+    }
+
+
+    static boolean exceedsColumns(DedupElement dedupElement) {
+        return exceeds(dedupElement.getApplication(), MAX_APPLICATION_NAME_LENGTH) || exceeds(dedupElement.getTopic(), MAX_TOPIC_LENGTH)
+                || exceeds(dedupElement.getTag(), MAX_TAG_LENGTH) || exceeds(dedupElement.getMsgUniqKey(), MAX_MSG_UNIQ_KEY_LENGTH);
+    }
+
+    private static boolean exceeds(String value, int maxLength) {
+        return value != null && value.length() > maxLength;
+    }
+
+    private static void logExceedsColumns(DedupElement dedupElement) {
+        log.error("[NOTIFYME]dedup element exceeds column length of t_rocketmq_dedup (application_name/topic {}, tag {}, msg_uniq_key {}), consume without dedup {}",
+                MAX_TOPIC_LENGTH, MAX_TAG_LENGTH, MAX_MSG_UNIQ_KEY_LENGTH, dedupElement);
+    }
+
+    //示例：(application_name, topic, tag, msg_uniq_key) IN ((?, ?, ?, ?), (?, ?, ?, ?))
+    private static String buildKeysCondition(int size) {
+        StringBuilder sb = new StringBuilder("(application_name, topic, tag, msg_uniq_key) IN (");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        }
+        return sb.append(")").toString();
+    }
+
+    private static List<Object> buildKeysArgs(Iterable<DedupElement> dedupElements) {
+        List<Object> args = new ArrayList<>();
+        for (DedupElement dedupElement : dedupElements) {
+            args.add(dedupElement.getApplication());
+            args.add(dedupElement.getTopic());
+            args.add(dedupElement.getTag());
+            args.add(dedupElement.getMsgUniqKey());
+        }
+        return args;
     }
 
 
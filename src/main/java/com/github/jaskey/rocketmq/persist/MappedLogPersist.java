@@ -0,0 +1,263 @@
+package com.github.jaskey.rocketmq.persist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * 本地磁盘存储，重启后去重记录仍然保留，适用于单实例部署
+ * 1.内存中的MemoryPersist作为索引，所有查询/抢占只访问内存
+ * 2.已消费状态（及其删除）追加写入内存映射的日志文件，启动时回放日志恢复索引
+ * 3.日志写满时压缩：只把没有过期的已消费记录写入新文件，再原子替换旧文件
+ * 注：消费中状态只在内存中，重启后丢失（单实例重启前的消费已经中断，不影响去重）；
+ * 写入内存映射文件后进程崩溃不会丢失记录，操作系统崩溃则可能丢失最近的记录，shutdown时会刷盘
+ */
+@Slf4j
+public class MappedLogPersist implements IPersist {
+
+    private static final int MAGIC = 0x44445550;
+
+    private static final int HEADER_BYTES = 4;
+
+    //记录类型写在最后，没写完的记录类型为0，回放时到此为止
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_CONSUMED = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private static final int DEFAULT_FILE_BYTES = 64 * 1024 * 1024;
+
+    private final MemoryPersist index = new MemoryPersist();
+
+    private final File file;
+
+    private final int fileBytes;
+
+    //以下由this保护
+    private MappedByteBuffer buffer;
+
+    public MappedLogPersist(String path) {
+        this(path, DEFAULT_FILE_BYTES);
+    }
+
+    /**
+     * @param path 日志文件路径
+     * @param fileBytes 日志文件的初始大小，写满时压缩，压缩后仍超过一半则扩容一倍
+     */
+    public MappedLogPersist(String path, int fileBytes) {
+        if (fileBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("fileBytes is too small");
+        }
+        this.file = new File(path);
+        this.fileBytes = fileBytes;
+        try {
+            if (file.exists() && file.length() > 0) {
+                recover();
+            } else {
+                this.buffer = createLogFile(file, fileBytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("open dedup log fail " + path, e);
+        }
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return index.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return index.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        return index.get(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return index.supportsRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        //消费中状态只在内存中，不需要写日志
+        index.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public synchronized void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        long expireTime = System.currentTimeMillis() + dedupRecordReserveMinutes * 60 * 1000;
+        index.putConsumed(dedupElement, expireTime);
+        append(RECORD_CONSUMED, dedupElement, expireTime);
+    }
+
+    @Override
+    public synchronized void delete(DedupElement dedupElement) {
+        //只有已消费的记录写过日志，消费中的删除不需要记录
+        boolean logged = CONSUME_STATUS_CONSUMED.equals(index.get(dedupElement));
+        index.delete(dedupElement);
+        if (logged) {
+            append(RECORD_DELETE, dedupElement, 0);
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        buffer.force();
+    }
+
+    /**
+     * 当前日志已使用的字节数
+     */
+    public synchronized int getLogBytes() {
+        return buffer.position();
+    }
+
+
+    private void append(byte type, DedupElement dedupElement, long expireTime) {
+        byte[][] fields = encodeFields(dedupElement);
+        int recordBytes = recordBytes(fields);
+        if (buffer.remaining() < recordBytes) {
+            compact(recordBytes);
+        }
+        writeRecord(buffer, type, fields, expireTime);
+    }
+
+    private void compact(int extraBytes) {
+        long liveBytes = HEADER_BYTES;
+        long[] sum = new long[1];
+        index.forEachConsumed((dedupElement, expireTime) -> sum[0] += recordBytes(encodeFields(dedupElement)));
+        liveBytes += sum[0];
+
+        long newFileBytes = fileBytes;
+        while (newFileBytes < (liveBytes + extraBytes) * 2) {
+            newFileBytes *= 2;
+        }
+        if (newFileBytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("dedup log is too large, live bytes " + liveBytes);
+        }
+
+        File compactFile = new File(file.getPath() + ".compact");
+        try {
+            MappedByteBuffer newBuffer = createLogFile(compactFile, (int) newFileBytes);
+            //压缩期间持有锁，已消费记录不会增加，消费中的抢占只会让已消费记录减少
+            index.forEachConsumed((dedupElement, expireTime) -> writeRecord(newBuffer, RECORD_CONSUMED, encodeFields(dedupElement), expireTime));
+            newBuffer.force();
+            Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("dedup log compacted, {} -> {} bytes, file size {}", buffer.position(), newBuffer.position(), newFileBytes);
+            this.buffer = newBuffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException("compact dedup log fail " + file, e);
+        }
+    }
+
+    private void recover() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer existing = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if (existing.getInt(0) != MAGIC) {
+                throw new IOException("not a dedup log file " + file);
+            }
+            existing.position(HEADER_BYTES);
+            int replayed = 0;
+            long now = System.currentTimeMillis();
+            while (existing.remaining() > 0) {
+                int start = existing.position();
+                byte type = existing.get();
+                if (type == RECORD_END || existing.remaining() < 8) {
+                    existing.position(start);
+                    break;
+                }
+                long expireTime = existing.getLong();
+                DedupElement dedupElement = readElement(existing);
+                if (dedupElement == null) {//不完整的记录
+                    existing.position(start);
+                    break;
+                }
+                if (type == RECORD_CONSUMED && expireTime > now) {
+                    index.putConsumed(dedupElement, expireTime);
+                } else if (type == RECORD_DELETE) {
+                    index.delete(dedupElement);
+                }
+                replayed++;
+            }
+            log.info("dedup log recovered, {} records replayed from {}", replayed, file);
+            this.buffer = existing;
+        }
+        //丢掉过期和被删除的记录
+        compact(0);
+    }
+
+
+    private static MappedByteBuffer createLogFile(File file, int fileBytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            raf.setLength(fileBytes);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+            buffer.putInt(MAGIC);
+            return buffer;
+        }
+    }
+
+    private static byte[][] encodeFields(DedupElement dedupElement) {
+        return new byte[][]{encode(dedupElement.getApplication()), encode(dedupElement.getTopic()), encode(dedupElement.getTag()), encode(dedupElement.getMsgUniqKey())};
+    }
+
+    private static byte[] encode(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //类型(1) + 过期时间(8) + 4个字段(长度4 + 内容)
+    private static int recordBytes(byte[][] fields) {
+        int bytes = 1 + 8;
+        for (byte[] field : fields) {
+            bytes += 4 + (field == null ? 0 : field.length);
+        }
+        return bytes;
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, byte type, byte[][] fields, long expireTime) {
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putLong(expireTime);
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(field.length);
+                buffer.put(field);
+            }
+        }
+        buffer.put(start, type);
+    }
+
+    private static DedupElement readElement(MappedByteBuffer buffer) {
+        String[] fields = new String[4];
+        for (int i = 0; i < fields.length; i++) {
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            int length = buffer.getInt();
+            if (length < -1 || length > buffer.remaining()) {
+                return null;
+            }
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                fields[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return new DedupElement(fields[0], fields[1], fields[2], fields[3]);
+    }
+}
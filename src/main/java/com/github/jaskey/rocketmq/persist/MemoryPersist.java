@@ -0,0 +1,212 @@
+package com.github.jaskey.rocketmq.persist;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * 进程内存储，适用于单实例部署和本地压测，无需Redis/MySQL
+ * 1.分段加锁的哈希表，每条记录带过期时间，语义与Redis一致：过期的记录视为不存在
+ * 2.过期记录在访问时顺带删除，写入时每个分段最多每分钟整段清理一次
+ * 3.记录只在本进程内，多实例消费同一个消费者组时不能互相去重，重启后也会丢失（需要保留见MappedLogPersist）
+ */
+public class MemoryPersist implements IPersist {
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Segment[] segments;
+
+    private final int segmentMask;
+
+    public MemoryPersist() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param concurrencyLevel 分段数，向上取整为2的幂
+     */
+    public MemoryPersist(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be positive");
+        }
+        int segmentCount = Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        segmentCount = Math.max(1, segmentCount);
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return claim(dedupElement, dedupProcessingExpireMilliSeconds) == ClaimResult.CLAIMED;
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long now = System.currentTimeMillis();
+        String existingStatus = segmentFor(dedupElement).putIfAbsent(dedupElement, CONSUME_STATUS_CONSUMING, now + dedupProcessingExpireMilliSeconds, now);
+        return existingStatus == null ? ClaimResult.CLAIMED : ClaimResult.ofExistingStatus(existingStatus);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        segmentFor(dedupElement).remove(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        putConsumed(dedupElement, System.currentTimeMillis() + dedupRecordReserveMinutes * 60 * 1000);
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        return segmentFor(dedupElement).get(dedupElement, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        long now = System.currentTimeMillis();
+        for (DedupElement dedupElement : dedupElements) {
+            segmentFor(dedupElement).renewConsuming(dedupElement, now + dedupProcessingExpireMilliSeconds, now);
+        }
+    }
+
+    /**
+     * 当前的记录条数（包括已过期还没清理的）
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+
+    void putConsumed(DedupElement dedupElement, long expireTime) {
+        segmentFor(dedupElement).put(dedupElement, CONSUME_STATUS_CONSUMED, expireTime, System.currentTimeMillis());
+    }
+
+    /**
+     * 遍历没有过期的已消费记录，遍历时逐段加锁
+     */
+    void forEachConsumed(BiConsumer<DedupElement, Long> consumer) {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.forEachConsumed(consumer, now);
+        }
+    }
+
+    private Segment segmentFor(DedupElement dedupElement) {
+        int h = dedupElement.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+
+    private static class Record {
+        private String status;
+        private long expireTime;
+
+        Record(String status, long expireTime) {
+            this.status = status;
+            this.expireTime = expireTime;
+        }
+    }
+
+
+    private static class Segment {
+        private final HashMap<DedupElement, Record> records = new HashMap<>();
+        private long nextSweepTime = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+
+        /**
+         * 不存在或已过期则写入并返回null，否则返回已有记录的状态
+         */
+        synchronized String putIfAbsent(DedupElement dedupElement, String status, long expireTime, long now) {
+            Record record = records.get(dedupElement);
+            if (record != null && record.expireTime > now) {
+                return record.status;
+            }
+            if (record == null) {
+                records.put(dedupElement, new Record(status, expireTime));
+                sweepIfNecessary(now);
+            } else {
+                record.status = status;
+                record.expireTime = expireTime;
+            }
+            return null;
+        }
+
+        synchronized void renewConsuming(DedupElement dedupElement, long expireTime, long now) {
+            Record record = records.get(dedupElement);
+            if (record != null && record.expireTime > now && CONSUME_STATUS_CONSUMING.equals(record.status)) {
+                record.expireTime = expireTime;
+            }
+        }
+
+        synchronized void put(DedupElement dedupElement, String status, long expireTime, long now) {
+            Record record = records.get(dedupElement);
+            if (record == null) {
+                records.put(dedupElement, new Record(status, expireTime));
+                sweepIfNecessary(now);
+            } else {
+                record.status = status;
+                record.expireTime = expireTime;
+            }
+        }
+
+        synchronized String get(DedupElement dedupElement, long now) {
+            Record record = records.get(dedupElement);
+            if (record == null) {
+                return null;
+            }
+            if (record.expireTime <= now) {
+                records.remove(dedupElement);
+                return null;
+            }
+            return record.status;
+        }
+
+        synchronized void remove(DedupElement dedupElement) {
+            records.remove(dedupElement);
+        }
+
+        synchronized int size() {
+            return records.size();
+        }
+
+        synchronized void forEachConsumed(BiConsumer<DedupElement, Long> consumer, long now) {
+            for (Map.Entry<DedupElement, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                if (record.expireTime > now && CONSUME_STATUS_CONSUMED.equals(record.status)) {
+                    consumer.accept(entry.getKey(), record.expireTime);
+                }
+            }
+        }
+
+        private void sweepIfNecessary(long now) {
+            if (now < nextSweepTime) {
+                return;
+            }
+            nextSweepTime = now + SWEEP_INTERVAL_MILLIS;
+            Iterator<Record> it = records.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expireTime <= now) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.jaskey.rocketmq.persist;
+
+import com.github.jaskey.rocketmq.metrics.DedupMetrics;
+
+import java.util.List;
+
+/**
+ * 装饰其他IPersist，统计每次存储调用的耗时，抛出异常的调用记为失败
+ */
+public class MetricsPersist implements IPersist {
+
+    private final IPersist delegate;
+
+    private final DedupMetrics metrics;
+
+    public MetricsPersist(IPersist delegate, DedupMetrics metrics) {
+        if (delegate == null || metrics == null) {
+            throw new NullPointerException("delegate persist or metrics is null");
+        }
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean res = delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordPersistLatency("setConsumingIfNX", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            delegate.delete(dedupElement);
+            success = true;
+        } finally {
+            metrics.recordPersistLatency("delete", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+            success = true;
+        } finally {
+            metrics.recordPersistLatency("markConsumed", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            String res = delegate.get(dedupElement);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordPersistLatency("get", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ClaimResult res = delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordPersistLatency("claim", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean[] res = delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordPersistLatency("batchSetConsumingIfNX", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<ClaimResult> res = delegate.batchClaim(dedupElements, dedupProcessingExpireMilliSeconds);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordPersistLatency("batchClaim", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            delegate.batchDelete(dedupElements);
+            success = true;
+        } finally {
+            metrics.recordPersistLatency("batchDelete", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+            success = true;
+        } finally {
+            metrics.recordPersistLatency("batchMarkConsumed", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<String> res = delegate.batchGet(dedupElements);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordPersistLatency("batchGet", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return delegate.isMarkConsumedPending(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return delegate.supportsRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            delegate.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+            success = true;
+        } finally {
+            metrics.recordPersistLatency("batchRenewConsuming", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
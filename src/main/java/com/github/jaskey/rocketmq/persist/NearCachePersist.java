@@ -0,0 +1,149 @@
+package com.github.jaskey.rocketmq.persist;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 本地近端缓存，缓存最近确认为已消费（CONSUMED）的去重键，命中时直接返回已消费，无需访问远端存储
+ * 1.只缓存CONSUMED，抢占成功（CLAIMED）一定来自远端存储，所以不会因为缓存导致重复消费
+ * 2.缓存按条数限制大小（约为 maxEntries * 去重键大小），按写入顺序淘汰，过期的也会被淘汰
+ * 3.缓存有效期为min(expireMilliSeconds, dedupRecordReserveMinutes)，远端记录被删除/过期后，最多在这段时间内仍然会被当作已消费
+ */
+public class NearCachePersist extends AbstractLocalConsumedPersist {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final long expireMilliSeconds;
+
+    private final Segment[] segments;
+
+    public NearCachePersist(IPersist delegate, int maxEntries, long expireMilliSeconds) {
+        super(delegate);
+        if (maxEntries <= 0 || expireMilliSeconds <= 0) {
+            throw new IllegalArgumentException("maxEntries and expireMilliSeconds must be positive");
+        }
+        this.expireMilliSeconds = expireMilliSeconds;
+        this.segments = new Segment[SEGMENT_COUNT];
+        int segmentMaxEntries = Math.max(1, maxEntries / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentMaxEntries);
+        }
+    }
+
+
+    @Override
+    protected boolean isLocalConsumed(DedupElement dedupElement) {
+        return segmentFor(dedupElement).contains(dedupElement, System.currentTimeMillis());
+    }
+
+    @Override
+    protected void onDelegateConsumed(DedupElement dedupElement) {
+        cacheConsumed(dedupElement, expireMilliSeconds);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        invalidate(dedupElement);
+        delegate.delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        cacheConsumed(dedupElement, Math.min(expireMilliSeconds, dedupRecordReserveMinutes * 60 * 1000));
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            invalidate(dedupElement);
+        }
+        delegate.batchDelete(dedupElements);
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        long cacheMilliSeconds = Math.min(expireMilliSeconds, dedupRecordReserveMinutes * 60 * 1000);
+        for (DedupElement dedupElement : dedupElements) {
+            cacheConsumed(dedupElement, cacheMilliSeconds);
+        }
+    }
+
+    /**
+     * 当前缓存的条数（包括已过期还没淘汰的）
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private void cacheConsumed(DedupElement dedupElement, long cacheMilliSeconds) {
+        long now = System.currentTimeMillis();
+        segmentFor(dedupElement).put(dedupElement, now + cacheMilliSeconds, now);
+    }
+
+    private void invalidate(DedupElement dedupElement) {
+        segmentFor(dedupElement).remove(dedupElement);
+    }
+
+    private Segment segmentFor(DedupElement dedupElement) {
+        int h = dedupElement.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+
+    /**
+     * 分段加锁，每段按写入顺序排列，越早写入越早过期（有效期相同的情况下），淘汰时只需要检查队头
+     */
+    private static class Segment {
+        private final int maxEntries;
+        private final LinkedHashMap<DedupElement, Long> expireTimes = new LinkedHashMap<>();
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        synchronized boolean contains(DedupElement dedupElement, long now) {
+            Long expireTime = expireTimes.get(dedupElement);
+            if (expireTime == null) {
+                return false;
+            }
+            if (expireTime <= now) {
+                expireTimes.remove(dedupElement);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void put(DedupElement dedupElement, long expireTime, long now) {
+            //重新放到队尾
+            expireTimes.remove(dedupElement);
+            expireTimes.put(dedupElement, expireTime);
+
+            Iterator<Map.Entry<DedupElement, Long>> it = expireTimes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<DedupElement, Long> eldest = it.next();
+                if (expireTimes.size() > maxEntries || eldest.getValue() <= now) {
+                    it.remove();
+                } else {
+                    break;
+                }
+            }
+        }
+
+        synchronized void remove(DedupElement dedupElement) {
+            expireTimes.remove(dedupElement);
+        }
+
+        synchronized int size() {
+            return expireTimes.size();
+        }
+    }
+}
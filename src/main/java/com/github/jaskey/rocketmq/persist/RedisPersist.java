@@ -1,36 +1,82 @@
 package com.github.jaskey.rocketmq.persist;
 
 
-import org.apache.commons.lang3.StringUtils;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
 import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DigestUtils;
 import org.springframework.data.redis.core.types.Expiration;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Created by linjunjie1103@gmail.com
  */
 
-public class RedisPersist implements IPersist {
+public class RedisPersist implements SnapshotPersist {
+
+    /**
+     * 原子的抢占或返回已有状态：有记录则返回记录的值，否则设置为消费中并返回nil
+     * KEYS[1]:去重键 ARGV[1]:CONSUMING ARGV[2]:过期毫秒数
+     */
+    static final String CLAIM_SCRIPT = "local v = redis.call('GET', KEYS[1]) " +
+            "if v then return v end " +
+            "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "return false";
+    private static final byte[] CLAIM_SCRIPT_BYTES = CLAIM_SCRIPT.getBytes(StandardCharsets.UTF_8);
+    static final String CLAIM_SCRIPT_SHA1 = DigestUtils.sha1DigestAsHex(CLAIM_SCRIPT);
+
+    /**
+     * 仍为消费中时才延长过期时间
+     * KEYS[1]:去重键 ARGV[1]:CONSUMING ARGV[2]:过期毫秒数
+     */
+    static final String RENEW_SCRIPT = "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('PEXPIRE', KEYS[1], ARGV[2]) end " +
+            "return 0";
+    private static final byte[] RENEW_SCRIPT_BYTES = RENEW_SCRIPT.getBytes(StandardCharsets.UTF_8);
+    private static final String RENEW_SCRIPT_SHA1 = DigestUtils.sha1DigestAsHex(RENEW_SCRIPT);
+
+    static final byte[] CONSUMING_BYTES = CONSUME_STATUS_CONSUMING.getBytes(StandardCharsets.UTF_8);
+    static final byte[] CONSUMED_BYTES = CONSUME_STATUS_CONSUMED.getBytes(StandardCharsets.UTF_8);
+
     private final StringRedisTemplate redisTemplate;
 
+    private final DedupKeyCodec keyCodec;
+
     public RedisPersist(StringRedisTemplate redisTemplate) {
+        this(redisTemplate, new DedupKeyCodec());
+    }
+
+    /**
+     * @param keyCodec 去重键的编码方式，如需把去重键哈希成固定长度以节省内存，使用new DedupKeyCodec(true)
+     */
+    public RedisPersist(StringRedisTemplate redisTemplate, DedupKeyCodec keyCodec) {
         if (redisTemplate == null) {
             throw new NullPointerException("redis template is null");
         }
+        if (keyCodec == null) {
+            throw new NullPointerException("key codec is null");
+        }
         this.redisTemplate = redisTemplate;
+        this.keyCodec = keyCodec;
     }
 
 
 
     @Override
     public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+        byte[] dedupKey = keyCodec.encode(dedupElement);
 
         //setnx, 成功就可以消费
-        Boolean execute = redisTemplate.execute((RedisCallback<Boolean>) redisConnection -> redisConnection.set(dedupKey.getBytes(), (CONSUME_STATUS_CONSUMING).getBytes(), Expiration.milliseconds(dedupProcessingExpireMilliSeconds), RedisStringCommands.SetOption.SET_IF_ABSENT));
+        Boolean execute = redisTemplate.execute((RedisCallback<Boolean>) redisConnection -> redisConnection.set(dedupKey, CONSUMING_BYTES, Expiration.milliseconds(dedupProcessingExpireMilliSeconds), RedisStringCommands.SetOption.SET_IF_ABSENT));
 
         if (execute == null) {
             return false;
@@ -39,40 +85,292 @@ public class RedisPersist implements IPersist {
         return execute;
     }
 
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        byte[] dedupKey = keyCodec.encode(dedupElement);
+        byte[][] keysAndArgs = buildClaimKeysAndArgs(dedupKey, dedupProcessingExpireMilliSeconds);
+
+        Object res = redisTemplate.execute((RedisCallback<Object>) redisConnection -> evalClaimScript(redisConnection, keysAndArgs));
+        return toClaimResult(res);
+    }
+
+    /**
+     * pipeline不使用EVAL（JedisConnection的pipeline不支持脚本）：先pipeline批量SET NX PX抢占，没抢到的再pipeline批量GET已有状态，最多两次网络往返
+     * 没抢到、但GET时记录已经被删除或过期的，按消费中处理，稍后重新消费时再抢占
+     */
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<byte[]> dedupKeys = encodeKeys(dedupElements);
+
+        List<Object> setResults = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (byte[] dedupKey : dedupKeys) {
+                redisConnection.set(dedupKey, CONSUMING_BYTES, Expiration.milliseconds(dedupProcessingExpireMilliSeconds), RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+
+        List<ClaimResult> res = new ArrayList<>(dedupKeys.size());
+        List<Integer> existing = new ArrayList<>();
+        for (int i = 0; i < dedupKeys.size(); i++) {
+            if (Boolean.TRUE.equals(setResults.get(i))) {
+                res.add(ClaimResult.CLAIMED);
+            } else {
+                res.add(ClaimResult.CONSUMING);
+                existing.add(i);
+            }
+        }
+        if (existing.isEmpty()) {
+            return res;
+        }
+
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (int i : existing) {
+                redisConnection.get(dedupKeys.get(i));
+            }
+            return null;
+        });
+        for (int j = 0; j < existing.size(); j++) {
+            Object value = values.get(j);
+            if (value != null) {
+                res.set(existing.get(j), toClaimResult(value));
+            }
+        }
+        return res;
+    }
+
+    private static Object evalClaimScript(RedisConnection redisConnection, byte[][] keysAndArgs) {
+        return evalScript(redisConnection, CLAIM_SCRIPT_SHA1, CLAIM_SCRIPT_BYTES, ReturnType.VALUE, keysAndArgs);
+    }
+
+    private static Object evalScript(RedisConnection redisConnection, String scriptSha1, byte[] script, ReturnType returnType, byte[][] keysAndArgs) {
+        try {
+            return redisConnection.evalSha(scriptSha1, returnType, 1, keysAndArgs);
+        } catch (Exception e) {
+            if (!isNoScriptError(e)) {
+                throw e;
+            }
+            //脚本还没加载（如Redis重启），改用EVAL，同时会缓存脚本
+            return redisConnection.eval(script, returnType, 1, keysAndArgs);
+        }
+    }
+
+    static boolean isNoScriptError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[][] buildClaimKeysAndArgs(byte[] dedupKey, long dedupProcessingExpireMilliSeconds) {
+        return new byte[][]{dedupKey, CONSUMING_BYTES, String.valueOf(dedupProcessingExpireMilliSeconds).getBytes(StandardCharsets.UTF_8)};
+    }
+
+    //脚本返回nil表示抢占成功，否则为已有记录的状态
+    static ClaimResult toClaimResult(Object res) {
+        if (res == null) {
+            return ClaimResult.CLAIMED;
+        }
+        String status = res instanceof byte[] ? new String((byte[]) res, StandardCharsets.UTF_8) : res.toString();
+        return ClaimResult.ofExistingStatus(status);
+    }
+
     @Override
     public void delete(DedupElement dedupElement) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+        byte[] dedupKey = keyCodec.encode(dedupElement);
 
-        redisTemplate.delete(dedupKey);
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> redisConnection.del(dedupKey));
     }
 
     @Override
     public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+        byte[] dedupKey = keyCodec.encode(dedupElement);
 
-        redisTemplate.opsForValue().set(dedupKey, CONSUME_STATUS_CONSUMED, dedupRecordReserveMinutes, TimeUnit.MINUTES);
+        redisTemplate.execute((RedisCallback<Boolean>) redisConnection -> redisConnection.set(dedupKey, CONSUMED_BYTES, Expiration.from(dedupRecordReserveMinutes, TimeUnit.MINUTES), RedisStringCommands.SetOption.UPSERT));
 
     }
 
     @Override
     public String get(DedupElement dedupElement) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
-        return redisTemplate.opsForValue().get(dedupKey);
+        byte[] dedupKey = keyCodec.encode(dedupElement);
+        byte[] val = redisTemplate.execute((RedisCallback<byte[]>) redisConnection -> redisConnection.get(dedupKey));
+        return val == null ? null : new String(val, StandardCharsets.UTF_8);
     }
 
     @Override
-    public String toPrintInfo(DedupElement dedupElement) {
-        return buildDedupMessageRedisKey(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey());
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<byte[]> dedupKeys = encodeKeys(dedupElements);
+
+        //pipeline批量setnx，一次网络往返
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (byte[] dedupKey : dedupKeys) {
+                redisConnection.set(dedupKey, CONSUMING_BYTES, Expiration.milliseconds(dedupProcessingExpireMilliSeconds), RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+
+        boolean[] res = new boolean[dedupElements.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = Boolean.TRUE.equals(results.get(i));
+        }
+        return res;
     }
 
-    private  String buildDedupMessageRedisKey(String applicationName, String topic, String tag, String msgUniqKey) {
-        if (StringUtils.isEmpty(msgUniqKey)) {
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        byte[][] dedupKeys = encodeKeys(dedupElements).toArray(new byte[0][]);
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> redisConnection.del(dedupKeys));
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        List<byte[]> dedupKeys = encodeKeys(dedupElements);
+        redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (byte[] dedupKey : dedupKeys) {
+                redisConnection.set(dedupKey, CONSUMED_BYTES, Expiration.from(dedupRecordReserveMinutes, TimeUnit.MINUTES), RedisStringCommands.SetOption.UPSERT);
+            }
             return null;
-        } else {
-            //示例：MSGDEDUP:APPNAME:TOPIC:TAG:APP_DEDUP_KEY
-            String prefix = "MSGDEDUP:" + applicationName + ":" + topic + (StringUtils.isNotEmpty(tag) ? ":"+ tag :"");
-            return prefix + ":" + msgUniqKey;
+        });
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        List<byte[]> dedupKeys = encodeKeys(dedupElements);
+        //续期在后台线程执行，JedisConnection的pipeline不支持脚本，在同一个连接上逐条执行
+        redisTemplate.execute((RedisCallback<Object>) redisConnection -> {
+            for (byte[] dedupKey : dedupKeys) {
+                //参数与抢占脚本一致
+                evalScript(redisConnection, RENEW_SCRIPT_SHA1, RENEW_SCRIPT_BYTES, ReturnType.INTEGER, buildClaimKeysAndArgs(dedupKey, dedupProcessingExpireMilliSeconds));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        if (dedupElements.isEmpty()) {
+            return new ArrayList<>();
+        }
+        byte[][] dedupKeys = encodeKeys(dedupElements).toArray(new byte[0][]);
+        List<byte[]> values = redisTemplate.execute((RedisCallback<List<byte[]>>) redisConnection -> redisConnection.mGet(dedupKeys));
+        List<String> res = new ArrayList<>(dedupElements.size());
+        for (byte[] val : values) {
+            res.add(val == null ? null : new String(val, StandardCharsets.UTF_8));
+        }
+        return res;
+    }
+
+    /**
+     * 用SCAN遍历所有去重键，每一批键用pipeline一次取回值和剩余时间（GET + PTTL）
+     * 开启了键的哈希时无法还原去重键，导出的记录只有原始键
+     */
+    @Override
+    public long exportRecords(int batchSize, Consumer<List<DedupRecord>> consumer) {
+        ScanOptions scanOptions = ScanOptions.scanOptions().match(keyCodec.keyPattern()).count(batchSize).build();
+        Long exported = redisTemplate.execute((RedisCallback<Long>) redisConnection -> {
+            long count = 0;
+            //游标不关闭：JedisConnection的游标关闭时会归还连接，与RedisTemplate重复归还；连接由RedisTemplate关闭
+            Cursor<byte[]> cursor = redisConnection.scan(scanOptions);
+            List<byte[]> keys = new ArrayList<>(batchSize);
+            while (cursor.hasNext()) {
+                keys.add(cursor.next());
+                if (keys.size() == batchSize) {
+                    count += exportBatch(redisConnection, keys, consumer);
+                    keys = new ArrayList<>(batchSize);
+                }
+            }
+            if (!keys.isEmpty()) {
+                count += exportBatch(redisConnection, keys, consumer);
+            }
+            return count;
+        });
+        return exported == null ? 0 : exported;
+    }
+
+    //SCAN的游标只在hasNext/next时访问Redis，两次之间可以在同一个连接上使用pipeline
+    private int exportBatch(RedisConnection redisConnection, List<byte[]> keys, Consumer<List<DedupRecord>> consumer) {
+        redisConnection.openPipeline();
+        for (byte[] key : keys) {
+            redisConnection.get(key);
+            redisConnection.pTtl(key);
+        }
+        List<Object> results = redisConnection.closePipeline();
+
+        long now = System.currentTimeMillis();
+        List<DedupRecord> records = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Object value = results.get(2 * i);
+            Object pttl = results.get(2 * i + 1);
+            //SCAN之后被删除或者过期的键跳过，没有过期时间（pttl为-1）的不是本组件写入的
+            if (!(value instanceof byte[]) || !(pttl instanceof Long) || (Long) pttl <= 0) {
+                continue;
+            }
+            byte[] key = keys.get(i);
+            records.add(new DedupRecord(keyCodec.decode(key), key, new String((byte[]) value, StandardCharsets.UTF_8), now + (Long) pttl));
+        }
+        if (!records.isEmpty()) {
+            consumer.accept(records);
+        }
+        return records.size();
+    }
+
+    /**
+     * pipeline批量SET NX PX，已存在的键不覆盖；有去重键的按本存储的键格式编码，只有原始键的直接写入原始键
+     */
+    @Override
+    public int importRecords(List<DedupRecord> records) {
+        long now = System.currentTimeMillis();
+        List<DedupRecord> toImport = new ArrayList<>(records.size());
+        for (DedupRecord record : records) {
+            if (record.getExpireTime() > now) {
+                toImport.add(record);
+            }
+        }
+        if (toImport.isEmpty()) {
+            return 0;
+        }
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (DedupRecord record : toImport) {
+                byte[] dedupKey = record.getDedupElement() != null ? keyCodec.encode(record.getDedupElement()) : record.getStoreKey();
+                redisConnection.set(dedupKey, record.getStatus().getBytes(StandardCharsets.UTF_8), Expiration.milliseconds(record.getExpireTime() - now), RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+        int imported = 0;
+        for (Object result : results) {
+            if (Boolean.TRUE.equals(result)) {
+                imported++;
+            }
+        }
+        return imported;
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return keyCodec.toPrintInfo(dedupElement);
+    }
+
+    private List<byte[]> encodeKeys(List<DedupElement> dedupElements) {
+        List<byte[]> dedupKeys = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            dedupKeys.add(keyCodec.encode(dedupElement));
         }
+        return dedupKeys;
     }
 
 
@@ -0,0 +1,685 @@
+package com.github.jaskey.rocketmq.persist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 装饰其他IPersist，去重存储慢或者不可用时熔断降级，避免所有消费线程阻塞在存储调用上
+ * 1.每次调用在有界的调用线程池上执行，超过callTimeoutMilliSeconds不再等待，记为失败；线程池满（存储调用都卡住了）时直接记为失败
+ * 2.按时间窗口统计失败率和慢调用率，调用数达到minimumCalls且任意一个超过阈值时熔断，熔断期间不再访问存储
+ * 3.熔断openMilliSeconds后放行一次探测调用，成功则恢复，失败则继续熔断
+ * 4.失败或者熔断的调用按降级模式处理（DegradeMode），标记已消费失败的记录写入本地，恢复后由后台线程补写到存储（对账）
+ * 5.PAUSE模式下超时的抢占如果之后仍然写入了存储，调用完成后删除这条消费中记录，避免重试的消息一直被当作消费中
+ * 注：每次调用多一次线程切换；Redis/MySQL客户端自身的超时仍然需要配置，否则超时的调用会一直占用调用线程池
+ * 由DedupConfig#enableCircuitBreaker创建
+ */
+@Slf4j
+public class ResilientPersist implements IPersist {
+
+    /**
+     * 存储不可用时的降级模式
+     */
+    public enum DegradeMode {
+        /**
+         * 不去重直接消费（抢占返回UNKNOWN），可能重复消费，吞吐不受影响
+         */
+        CONSUME_WITHOUT_DEDUP,
+        /**
+         * 使用本地存储去重，只能对本进程内的重复消息去重
+         */
+        LOCAL,
+        /**
+         * 暂停消费：抢占抛出异常，消息稍后重新消费（顺序消费时暂停队列），不会重复消费
+         */
+        PAUSE
+    }
+
+    /**
+     * 熔断器状态
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int WINDOW_BUCKETS = 10;
+
+    private static final int RECONCILE_BATCH_SIZE = 500;
+
+    private static final long MAINTAIN_INTERVAL_MILLISECONDS = 1000;
+
+    private final IPersist delegate;
+
+    private final DegradeMode degradeMode;
+
+    private final long callTimeoutMilliSeconds;
+
+    private final long slowCallMilliSeconds;
+
+    private final double failureRateThreshold;
+
+    private final double slowCallRateThreshold;
+
+    private final int minimumCalls;
+
+    private final long openMilliSeconds;
+
+    private final int maxLocalRecords;
+
+    private final long bucketMilliSeconds;
+
+    private final Bucket[] buckets = new Bucket[WINDOW_BUCKETS];
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private volatile long openUntil;
+
+    private final ThreadPoolExecutor callExecutor;
+
+    private final ScheduledExecutorService maintainExecutor;
+
+    //降级期间的本地存储：LOCAL模式的抢占，以及所有模式下写入存储失败的已消费记录（待对账）
+    private final MemoryPersist local = new MemoryPersist();
+
+    //本地有还没补写到存储的已消费记录时，抢占前先查本地，避免恢复后、对账完成前被重复消费
+    private volatile boolean localDirty;
+
+    private final AtomicLong localWrites = new AtomicLong();
+
+    //统计
+    private final LongAdder degradedCallCount = new LongAdder();
+    private final LongAdder openCount = new LongAdder();
+    private final LongAdder reconciledCount = new LongAdder();
+    private final LongAdder localOverflowCount = new LongAdder();
+    private final LongAdder lateClaimReleasedCount = new LongAdder();
+
+    /**
+     * 使用默认的熔断参数：10秒窗口内至少20次调用，失败率或者慢调用（超过一半的调用超时时间）率达到50%时熔断5秒，本地最多100万条记录，调用线程最多64个
+     * @param callTimeoutMilliSeconds 每次存储调用的超时时间，如200
+     */
+    public ResilientPersist(IPersist delegate, long callTimeoutMilliSeconds, DegradeMode degradeMode) {
+        this(delegate, callTimeoutMilliSeconds, degradeMode, callTimeoutMilliSeconds / 2, 0.5, 0.5, 20, 10 * 1000, 5 * 1000, 1000000, 64);
+    }
+
+    /**
+     * @param callTimeoutMilliSeconds 每次存储调用（包括批量调用）的超时时间
+     * @param slowCallMilliSeconds 超过多少毫秒记为慢调用
+     * @param failureRateThreshold 失败率达到多少时熔断，如0.5
+     * @param slowCallRateThreshold 慢调用率达到多少时熔断，如0.5
+     * @param minimumCalls 窗口内至少多少次调用才计算失败率
+     * @param windowMilliSeconds 统计窗口
+     * @param openMilliSeconds 熔断多久后放行探测调用
+     * @param maxLocalRecords 本地最多保留多少条记录，超过后不再写入本地（不再对账、LOCAL模式不再去重）
+     * @param maxConcurrentCalls 调用线程池的最大线程数，不小于消费线程数
+     */
+    public ResilientPersist(IPersist delegate, long callTimeoutMilliSeconds, DegradeMode degradeMode, long slowCallMilliSeconds,
+                            double failureRateThreshold, double slowCallRateThreshold, int minimumCalls,
+                            long windowMilliSeconds, long openMilliSeconds, int maxLocalRecords, int maxConcurrentCalls) {
+        if (delegate == null || degradeMode == null) {
+            throw new NullPointerException("delegate persist or degradeMode is null");
+        }
+        if (callTimeoutMilliSeconds <= 0 || slowCallMilliSeconds <= 0 || failureRateThreshold <= 0 || slowCallRateThreshold <= 0 || minimumCalls <= 0
+                || windowMilliSeconds < WINDOW_BUCKETS || openMilliSeconds <= 0 || maxLocalRecords < 0 || maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("illegal circuit breaker config");
+        }
+        this.delegate = delegate;
+        this.degradeMode = degradeMode;
+        this.callTimeoutMilliSeconds = callTimeoutMilliSeconds;
+        this.slowCallMilliSeconds = slowCallMilliSeconds;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.minimumCalls = minimumCalls;
+        this.openMilliSeconds = openMilliSeconds;
+        this.maxLocalRecords = maxLocalRecords;
+        this.bucketMilliSeconds = windowMilliSeconds / WINDOW_BUCKETS;
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            buckets[i] = new Bucket();
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        //不排队：线程都被占用说明存储调用都卡住了，直接失败
+        this.callExecutor = new ThreadPoolExecutor(0, maxConcurrentCalls, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "DedupResilientPersistCall-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintainExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "DedupResilientPersistReconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintainExecutor.scheduleWithFixedDelay(this::reconcileIfNeeded, MAINTAIN_INTERVAL_MILLISECONDS, MAINTAIN_INTERVAL_MILLISECONDS, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (isLocalConsumed(dedupElement)) {
+            return false;
+        }
+        return call(() -> delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds), () -> {
+            ClaimResult claimResult = degradedClaim(dedupElement, dedupProcessingExpireMilliSeconds);
+            return claimResult == ClaimResult.CLAIMED || claimResult == ClaimResult.UNKNOWN;
+        }, undoLateClaim(claimed -> {
+            if (claimed) {
+                releaseLateClaim(dedupElement);
+            }
+        }));
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (isLocalConsumed(dedupElement)) {
+            return ClaimResult.CONSUMED;
+        }
+        return call(() -> delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds), () -> degradedClaim(dedupElement, dedupProcessingExpireMilliSeconds),
+                undoLateClaim(claimResult -> {
+                    if (claimResult == ClaimResult.CLAIMED) {
+                        releaseLateClaim(dedupElement);
+                    }
+                }));
+    }
+
+    @Override
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> claimResults = batchClaim(dedupElements, dedupProcessingExpireMilliSeconds);
+        boolean[] res = new boolean[claimResults.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = claimResults.get(i) == ClaimResult.CLAIMED || claimResults.get(i) == ClaimResult.UNKNOWN;
+        }
+        return res;
+    }
+
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (localDirty) {
+            for (DedupElement dedupElement : dedupElements) {
+                if (isLocalConsumed(dedupElement)) {//少见，逐条处理
+                    List<ClaimResult> res = new ArrayList<>(dedupElements.size());
+                    for (DedupElement e : dedupElements) {
+                        res.add(claim(e, dedupProcessingExpireMilliSeconds));
+                    }
+                    return res;
+                }
+            }
+        }
+        return call(() -> delegate.batchClaim(dedupElements, dedupProcessingExpireMilliSeconds), () -> {
+            List<ClaimResult> res = new ArrayList<>(dedupElements.size());
+            for (DedupElement dedupElement : dedupElements) {
+                res.add(degradedClaim(dedupElement, dedupProcessingExpireMilliSeconds));
+            }
+            return res;
+        }, undoLateClaim(claimResults -> {
+            for (int i = 0; i < claimResults.size(); i++) {
+                if (claimResults.get(i) == ClaimResult.CLAIMED) {
+                    releaseLateClaim(dedupElements.get(i));
+                }
+            }
+        }));
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        call(() -> {
+            delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+            return null;
+        }, () -> {
+            markLocalConsumed(dedupElement, dedupRecordReserveMinutes);
+            return null;
+        });
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        call(() -> {
+            delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+            return null;
+        }, () -> {
+            for (DedupElement dedupElement : dedupElements) {
+                markLocalConsumed(dedupElement, dedupRecordReserveMinutes);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 删除失败时存储中的消费中记录在dedupProcessingExpireMilliSeconds后自然过期
+     */
+    @Override
+    public void delete(DedupElement dedupElement) {
+        local.delete(dedupElement);
+        call(() -> {
+            delegate.delete(dedupElement);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        local.batchDelete(dedupElements);
+        call(() -> {
+            delegate.batchDelete(dedupElements);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        if (isLocalConsumed(dedupElement)) {
+            return CONSUME_STATUS_CONSUMED;
+        }
+        return call(() -> delegate.get(dedupElement), () -> {
+            if (degradeMode == DegradeMode.PAUSE) {
+                throw unavailable();
+            }
+            return local.get(dedupElement);
+        });
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        return call(() -> delegate.batchGet(dedupElements), () -> {
+            if (degradeMode == DegradeMode.PAUSE) {
+                throw unavailable();
+            }
+            return local.batchGet(dedupElements);
+        });
+    }
+
+    @Override
+    public boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return delegate.isMarkConsumedPending(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return delegate.supportsRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        local.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+        call(() -> {
+            delegate.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    /**
+     * 停止后台线程，存储可用时把本地剩余的已消费记录补写到存储
+     */
+    @Override
+    public void shutdown() {
+        maintainExecutor.shutdownNow();
+        try {
+            maintainExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reconcileIfNeeded();
+        if (localDirty) {
+            log.warn("[NOTIFYME]resilient persist shutdown with consumed records not reconciled to {}, they may be consumed again", delegate.getClass().getSimpleName());
+        }
+        callExecutor.shutdownNow();
+        log.info("resilient persist shutdown, state={}, openCount={}, degradedCallCount={}, reconciledCount={}, localOverflowCount={}", getState(), getOpenCount(), getDegradedCallCount(), getReconciledCount(), getLocalOverflowCount());
+        delegate.shutdown();
+    }
+
+
+    //熔断、超时或者失败时调用fallback
+    private <T> T call(Callable<T> call, Supplier<T> fallback) {
+        return call(call, fallback, null);
+    }
+
+    /**
+     * @param undoLate 放弃等待后调用仍然完成时，用迟到的结果撤销已经写入存储的修改，为null时不撤销
+     */
+    private <T> T call(Callable<T> call, Supplier<T> fallback, Consumer<T> undoLate) {
+        if (!allowRequest()) {
+            degradedCallCount.increment();
+            return fallback.get();
+        }
+        long start = System.nanoTime();
+        GuardedCall<T> guardedCall = undoLate == null ? null : new GuardedCall<>(call, undoLate);
+        Future<T> future = null;
+        try {
+            future = callExecutor.submit(guardedCall == null ? call : guardedCall);
+            T res = future.get(callTimeoutMilliSeconds, TimeUnit.MILLISECONDS);
+            onResult(true, System.nanoTime() - start);
+            return res;
+        } catch (TimeoutException e) {
+            if (guardedCall != null && !guardedCall.abandon()) {
+                //超时的同时调用已经完成，结果仍然有效
+                onResult(true, System.nanoTime() - start);
+                return guardedCall.result;
+            }
+            future.cancel(true);
+            log.warn("dedup persist call timeout after {} ms, degrade to {}", callTimeoutMilliSeconds, degradeMode);
+        } catch (RejectedExecutionException e) {
+            log.warn("too many concurrent dedup persist calls, degrade to {}", degradeMode);
+        } catch (ExecutionException e) {
+            log.warn("dedup persist call fail, degrade to {}", degradeMode, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (guardedCall != null && !guardedCall.abandon()) {
+                onResult(true, System.nanoTime() - start);
+                return guardedCall.result;
+            }
+            future.cancel(true);
+            log.warn("interrupted when waiting dedup persist call, degrade to {}", degradeMode);
+        }
+        onResult(false, System.nanoTime() - start);
+        degradedCallCount.increment();
+        return fallback.get();
+    }
+
+    /**
+     * 只有PAUSE模式需要撤销迟到的抢占：消息稍后重试，留下的消费中记录会让重试一直消费稍后，直到dedupProcessingExpireMilliSeconds过期
+     * 其他模式消息已经按降级消费，之后的标记已消费或者删除会覆盖这条记录，此时删除反而可能删掉刚写入的已消费记录
+     */
+    private <T> Consumer<T> undoLateClaim(Consumer<T> release) {
+        return degradeMode == DegradeMode.PAUSE ? release : null;
+    }
+
+    private void releaseLateClaim(DedupElement dedupElement) {
+        try {
+            delegate.delete(dedupElement);
+            lateClaimReleasedCount.increment();
+            log.warn("dedup persist claim completed after timeout, released consuming record of {}", dedupElement);
+        } catch (Exception e) {
+            log.warn("release late consuming record of {} fail, it will expire after dedupProcessingExpireMilliSeconds", dedupElement, e);
+        }
+    }
+
+    private ClaimResult degradedClaim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        switch (degradeMode) {
+            case LOCAL:
+                if (local.size() >= maxLocalRecords) {
+                    localOverflowCount.increment();
+                    return ClaimResult.UNKNOWN;
+                }
+                return local.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+            case PAUSE:
+                throw unavailable();
+            default://降级直接消费
+                return ClaimResult.UNKNOWN;
+        }
+    }
+
+    private IllegalStateException unavailable() {
+        return new IllegalStateException("dedup persist " + delegate.getClass().getSimpleName() + " is unavailable, pause consuming");
+    }
+
+    private boolean isLocalConsumed(DedupElement dedupElement) {
+        return localDirty && CONSUME_STATUS_CONSUMED.equals(local.get(dedupElement));
+    }
+
+    private void markLocalConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        if (local.size() >= maxLocalRecords) {
+            localOverflowCount.increment();
+            log.error("[NOTIFYME]too many local dedup records, {} will not be reconciled to {}", dedupElement, delegate.getClass().getSimpleName());
+            return;
+        }
+        local.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        localWrites.incrementAndGet();
+        localDirty = true;
+    }
+
+
+    private boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        //熔断到期后只放行一个探测调用
+        return current == State.OPEN && System.currentTimeMillis() >= openUntil && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    private void onResult(boolean success, long nanos) {
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            if (success && nanos < TimeUnit.MILLISECONDS.toNanos(slowCallMilliSeconds)) {
+                resetWindow();
+                state.set(State.CLOSED);
+                log.warn("dedup persist {} recovered, circuit breaker closed", delegate.getClass().getSimpleName());
+            } else {
+                open();
+            }
+            return;
+        }
+        if (current != State.CLOSED) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Bucket bucket = bucketOf(now);
+        bucket.calls.increment();
+        if (!success) {
+            bucket.failures.increment();
+        } else if (nanos >= TimeUnit.MILLISECONDS.toNanos(slowCallMilliSeconds)) {
+            bucket.slowCalls.increment();
+        } else {
+            return;
+        }
+
+        long calls = 0, failures = 0, slowCalls = 0;
+        long epoch = now / bucketMilliSeconds;
+        for (Bucket b : buckets) {
+            if (b.epoch > epoch - WINDOW_BUCKETS) {
+                calls += b.calls.sum();
+                failures += b.failures.sum();
+                slowCalls += b.slowCalls.sum();
+            }
+        }
+        if (calls >= minimumCalls && (failures >= calls * failureRateThreshold || slowCalls >= calls * slowCallRateThreshold)
+                && state.compareAndSet(State.CLOSED, State.OPEN)) {
+            openUntil = System.currentTimeMillis() + openMilliSeconds;
+            openCount.increment();
+            log.error("[NOTIFYME]dedup persist {} is unavailable, circuit breaker open for {} ms, calls={}, failures={}, slowCalls={}, degrade to {}",
+                    delegate.getClass().getSimpleName(), openMilliSeconds, calls, failures, slowCalls, degradeMode);
+        }
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + openMilliSeconds;
+        state.set(State.OPEN);
+        log.warn("dedup persist {} is still unavailable, circuit breaker open for another {} ms", delegate.getClass().getSimpleName(), openMilliSeconds);
+    }
+
+    private Bucket bucketOf(long now) {
+        long epoch = now / bucketMilliSeconds;
+        Bucket bucket = buckets[(int) (epoch % WINDOW_BUCKETS)];
+        if (bucket.epoch != epoch) {
+            synchronized (bucket) {
+                if (bucket.epoch != epoch) {
+                    bucket.reset();
+                    bucket.epoch = epoch;
+                }
+            }
+        }
+        return bucket;
+    }
+
+    private void resetWindow() {
+        for (Bucket bucket : buckets) {
+            synchronized (bucket) {
+                bucket.reset();
+                bucket.epoch = -1;
+            }
+        }
+    }
+
+
+    /**
+     * 存储可用时，把本地的已消费记录按剩余的保留时间批量补写到存储，补写成功的从本地删除
+     * 失败则等待下次，补写期间新写入本地的记录留到下次
+     */
+    private void reconcileIfNeeded() {
+        if (!localDirty || state.get() != State.CLOSED) {
+            return;
+        }
+        long writes = localWrites.get();
+        long now = System.currentTimeMillis();
+        Map<Long, List<DedupElement>> byReserveMinutes = new HashMap<>();
+        local.forEachConsumed((dedupElement, expireTime) -> {
+            //向上取整，宁可多保留不到一分钟
+            long reserveMinutes = (expireTime - now + 60 * 1000 - 1) / (60 * 1000);
+            byReserveMinutes.computeIfAbsent(reserveMinutes, k -> new ArrayList<>()).add(dedupElement);
+        });
+
+        long reconciled = 0;
+        try {
+            for (Map.Entry<Long, List<DedupElement>> entry : byReserveMinutes.entrySet()) {
+                List<DedupElement> dedupElements = entry.getValue();
+                for (int from = 0; from < dedupElements.size(); from += RECONCILE_BATCH_SIZE) {
+                    List<DedupElement> batch = dedupElements.subList(from, Math.min(from + RECONCILE_BATCH_SIZE, dedupElements.size()));
+                    long reserveMinutes = entry.getKey();
+                    long start = System.nanoTime();
+                    callExecutor.submit(() -> delegate.batchMarkConsumed(batch, reserveMinutes)).get(callTimeoutMilliSeconds, TimeUnit.MILLISECONDS);
+                    onResult(true, System.nanoTime() - start);
+                    //补写成功的从本地删除，抢占不再需要查本地
+                    local.batchDelete(batch);
+                    reconciled += batch.size();
+                    reconciledCount.add(batch.size());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            onResult(false, 0);
+            log.warn("reconcile local dedup records to {} fail, {} reconciled, retry later", delegate.getClass().getSimpleName(), reconciled, e);
+            return;
+        }
+        if (localWrites.get() == writes) {
+            localDirty = false;
+        }
+        if (reconciled > 0) {
+            log.warn("reconciled {} local consumed dedup records to {}", reconciled, delegate.getClass().getSimpleName());
+        }
+    }
+
+
+    /**
+     * 熔断器当前的状态
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * 熔断的次数
+     */
+    public long getOpenCount() {
+        return openCount.sum();
+    }
+
+    /**
+     * 降级处理的调用次数（熔断、超时、失败）
+     */
+    public long getDegradedCallCount() {
+        return degradedCallCount.sum();
+    }
+
+    /**
+     * 已补写到存储的本地已消费记录数
+     */
+    public long getReconciledCount() {
+        return reconciledCount.sum();
+    }
+
+    /**
+     * 本地的记录数（包括还没补写到存储的已消费记录、LOCAL模式下的消费中记录，以及已过期还没清理的）
+     */
+    public int getLocalRecordCount() {
+        return local.size();
+    }
+
+    /**
+     * 本地记录数超过上限而没有写入本地的次数
+     */
+    public long getLocalOverflowCount() {
+        return localOverflowCount.sum();
+    }
+
+    /**
+     * PAUSE模式下超时后仍然写入了存储、已经删除的消费中记录数
+     */
+    public long getLateClaimReleasedCount() {
+        return lateClaimReleasedCount.sum();
+    }
+
+
+    /**
+     * 超时后调用方放弃等待与调用完成只有一个先发生：调用先完成则结果仍然有效，调用方先放弃则由调用线程撤销迟到的结果
+     */
+    private static class GuardedCall<T> implements Callable<T> {
+        private final Callable<T> call;
+        private final Consumer<T> undoLate;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private volatile T result;
+
+        GuardedCall(Callable<T> call, Consumer<T> undoLate) {
+            this.call = call;
+            this.undoLate = undoLate;
+        }
+
+        @Override
+        public T call() throws Exception {
+            T res = call.call();
+            result = res;
+            if (!settled.compareAndSet(false, true)) {
+                //调用方取消时设置了中断标记，撤销前清除，避免存储客户端因中断失败
+                Thread.interrupted();
+                undoLate.accept(res);
+            }
+            return res;
+        }
+
+        /**
+         * @return false表示调用已经完成，结果在result中
+         */
+        boolean abandon() {
+            return settled.compareAndSet(false, true);
+        }
+    }
+
+
+    private static class Bucket {
+        private volatile long epoch = -1;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder slowCalls = new LongAdder();
+
+        void reset() {
+            calls.reset();
+            failures.reset();
+            slowCalls.reset();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.github.jaskey.rocketmq.persist;
+
+import com.github.jaskey.rocketmq.metrics.DedupMetrics;
+import com.github.jaskey.rocketmq.util.MurmurHash3;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分片存储：按topic和去重键做一致性哈希，把去重记录分散到多个存储（如多个独立的Redis），用以水平扩展去重存储的吞吐
+ * 1.每个分片按名字在哈希环上放置virtualNodes个虚拟节点，路由只取决于分片名，与传入顺序、地址无关
+ * 2.增加一个分片时，只有约1/(n+1)的去重键改为路由到新分片；这部分键在旧分片上的记录不会迁移，
+ * 在dedupRecordReserveMinutes内重投的这部分消息可能被重复消费，建议在流量低峰扩容
+ * 3.批量调用按分片分组，每个分片一次批量调用
+ * 注：分片名确定后不要修改，修改等同于移除旧分片再增加新分片
+ */
+public class ShardedPersist implements IPersist {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final long HASH_SEED = 0;
+
+    private final String[] shardNames;
+
+    private final IPersist[] shards;
+
+    //哈希环，ringHashes升序，ringShards[i]为ringHashes[i]所属的分片下标
+    private final long[] ringHashes;
+
+    private final int[] ringShards;
+
+    private volatile DedupMetrics metrics = DedupMetrics.NOOP;
+
+    /**
+     * @param shards 分片名 -> 存储，如"redis-a" -> new RedisPersist(redisTemplateA)
+     */
+    public ShardedPersist(Map<String, ? extends IPersist> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes 每个分片的虚拟节点数，越多分布越均匀，默认160
+     */
+    public ShardedPersist(Map<String, ? extends IPersist> shards, int virtualNodes) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("shards can not be empty");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        //按分片名排序，哈希值相同的虚拟节点归属也是确定的
+        List<String> names = new ArrayList<>(shards.keySet());
+        Collections.sort(names);
+        this.shardNames = names.toArray(new String[0]);
+        this.shards = new IPersist[shardNames.length];
+        for (int i = 0; i < shardNames.length; i++) {
+            if (shards.get(shardNames[i]) == null) {
+                throw new NullPointerException("persist of shard " + shardNames[i] + " is null");
+            }
+            this.shards[i] = shards.get(shardNames[i]);
+        }
+
+        long[][] nodes = new long[shardNames.length * virtualNodes][];
+        for (int i = 0; i < shardNames.length; i++) {
+            for (int j = 0; j < virtualNodes; j++) {
+                nodes[i * virtualNodes + j] = new long[]{hash(shardNames[i] + "#" + j), i};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.ringHashes = new long[nodes.length];
+        this.ringShards = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ringHashes[i] = nodes[i][0];
+            ringShards[i] = (int) nodes[i][1];
+        }
+    }
+
+    /**
+     * 每个分片的存储调用耗时，通过DedupMetrics#recordShardLatency统计，DedupConfig#enableMetrics会自动设置
+     */
+    public void setMetrics(DedupMetrics metrics) {
+        if (metrics == null) {
+            throw new NullPointerException("metrics is null");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * 去重记录所在的分片名
+     */
+    public String shardOf(DedupElement dedupElement) {
+        return shardNames[route(dedupElement)];
+    }
+
+    public List<String> getShardNames() {
+        return Collections.unmodifiableList(Arrays.asList(shardNames));
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        int shard = route(dedupElement);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean res = shards[shard].setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordShardLatency(shardNames[shard], "setConsumingIfNX", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        int shard = route(dedupElement);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ClaimResult res = shards[shard].claim(dedupElement, dedupProcessingExpireMilliSeconds);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordShardLatency(shardNames[shard], "claim", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        int shard = route(dedupElement);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            shards[shard].delete(dedupElement);
+            success = true;
+        } finally {
+            metrics.recordShardLatency(shardNames[shard], "delete", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        int shard = route(dedupElement);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            shards[shard].markConsumed(dedupElement, dedupRecordReserveMinutes);
+            success = true;
+        } finally {
+            metrics.recordShardLatency(shardNames[shard], "markConsumed", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        int shard = route(dedupElement);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            String res = shards[shard].get(dedupElement);
+            success = true;
+            return res;
+        } finally {
+            metrics.recordShardLatency(shardNames[shard], "get", System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        return batchCall("batchClaim", dedupElements, (shard, elements) -> shard.batchClaim(elements, dedupProcessingExpireMilliSeconds));
+    }
+
+    @Override
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<Boolean> results = batchCall("batchSetConsumingIfNX", dedupElements, (shard, elements) -> {
+            boolean[] shardRes = shard.batchSetConsumingIfNX(elements, dedupProcessingExpireMilliSeconds);
+            List<Boolean> list = new ArrayList<>(shardRes.length);
+            for (boolean b : shardRes) {
+                list.add(b);
+            }
+            return list;
+        });
+        boolean[] res = new boolean[results.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = results.get(i);
+        }
+        return res;
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        batchCall("batchDelete", dedupElements, (shard, elements) -> {
+            shard.batchDelete(elements);
+            return null;
+        });
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        batchCall("batchMarkConsumed", dedupElements, (shard, elements) -> {
+            shard.batchMarkConsumed(elements, dedupRecordReserveMinutes);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return shards[route(dedupElement)].isMarkConsumedPending(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        for (IPersist shard : shards) {
+            if (!shard.supportsRenewal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        batchCall("batchRenewConsuming", dedupElements, (shard, elements) -> {
+            shard.batchRenewConsuming(elements, dedupProcessingExpireMilliSeconds);
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        return batchCall("batchGet", dedupElements, IPersist::batchGet);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        int shard = route(dedupElement);
+        return shardNames[shard] + "/" + shards[shard].toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void shutdown() {
+        RuntimeException firstException = null;
+        for (IPersist shard : shards) {
+            try {
+                shard.shutdown();
+            } catch (RuntimeException e) {
+                if (firstException == null) {
+                    firstException = e;
+                }
+            }
+        }
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+
+
+    private interface ShardBatchCall<T> {
+        /**
+         * @return 与elements下标一一对应的结果，无返回值的调用返回null
+         */
+        List<T> call(IPersist shard, List<DedupElement> elements);
+    }
+
+    //按分片分组后每个分片调用一次，再按原下标合并结果
+    private <T> List<T> batchCall(String operation, List<DedupElement> dedupElements, ShardBatchCall<T> batchCall) {
+        int[] routes = new int[dedupElements.size()];
+        List<List<DedupElement>> grouped = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            grouped.add(null);
+        }
+        for (int i = 0; i < routes.length; i++) {
+            DedupElement dedupElement = dedupElements.get(i);
+            routes[i] = route(dedupElement);
+            if (grouped.get(routes[i]) == null) {
+                grouped.set(routes[i], new ArrayList<>());
+            }
+            grouped.get(routes[i]).add(dedupElement);
+        }
+
+        List<List<T>> shardResults = new ArrayList<>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            List<DedupElement> elements = grouped.get(shard);
+            if (elements == null) {
+                shardResults.add(null);
+                continue;
+            }
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                shardResults.add(batchCall.call(shards[shard], elements));
+                success = true;
+            } finally {
+                metrics.recordShardLatency(shardNames[shard], operation, System.nanoTime() - start, success);
+            }
+        }
+
+        List<T> res = new ArrayList<>(routes.length);
+        int[] cursors = new int[shards.length];
+        for (int route : routes) {
+            List<T> shardResult = shardResults.get(route);
+            res.add(shardResult == null ? null : shardResult.get(cursors[route]));
+            cursors[route]++;
+        }
+        return res;
+    }
+
+    private int route(DedupElement dedupElement) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        long h = hash(nullToEmpty(dedupElement.getTopic()) + '\u0000' + nullToEmpty(dedupElement.getMsgUniqKey()));
+        //顺时针找到第一个不小于h的虚拟节点，超过最大值则回到环的起点
+        int idx = Arrays.binarySearch(ringHashes, h);
+        if (idx < 0) {
+            idx = -idx - 1;
+            if (idx == ringHashes.length) {
+                idx = 0;
+            }
+        }
+        return ringShards[idx];
+    }
+
+    private static long hash(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, HASH_SEED)[0];
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+
+    /**
+     * 每个Redis一个分片，如"redis-a" -> redisTemplateA
+     */
+    public static ShardedPersist ofRedis(Map<String, StringRedisTemplate> redisTemplates) {
+        return ofRedis(redisTemplates, new DedupKeyCodec());
+    }
+
+    /**
+     * @param keyCodec 去重键的编码方式，所有分片共用
+     */
+    public static ShardedPersist ofRedis(Map<String, StringRedisTemplate> redisTemplates, DedupKeyCodec keyCodec) {
+        if (redisTemplates == null || redisTemplates.isEmpty()) {
+            throw new IllegalArgumentException("redis templates can not be empty");
+        }
+        Map<String, IPersist> shards = new LinkedHashMap<>();
+        for (Map.Entry<String, StringRedisTemplate> entry : redisTemplates.entrySet()) {
+            shards.put(entry.getKey(), new RedisPersist(entry.getValue(), keyCodec));
+        }
+        return new ShardedPersist(shards);
+    }
+}
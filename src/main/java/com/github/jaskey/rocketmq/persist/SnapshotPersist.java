@@ -0,0 +1,25 @@
+package com.github.jaskey.rocketmq.persist;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 支持整体导出/导入的去重存储，用于Redis故障切换或者更换存储后的预热，见DedupSnapshot
+ * 1.导出为流式，按游标/分页每次读取一批，不会把整个存储读到内存
+ * 2.导入时已存在的记录不覆盖（存储中的记录更新），已过期的记录跳过
+ */
+public interface SnapshotPersist extends IPersist {
+
+    /**
+     * 导出所有未过期的记录，每读到一批回调一次，可能返回重复的记录（如Redis SCAN期间发生了rehash）
+     * @param batchSize 每批的大小，即每次SCAN的COUNT、每页的行数
+     * @return 导出的记录条数
+     */
+    long exportRecords(int batchSize, Consumer<List<DedupRecord>> consumer);
+
+    /**
+     * 批量导入，一批一次存储调用
+     * @return 实际写入的条数
+     */
+    int importRecords(List<DedupRecord> records);
+}
@@ -0,0 +1,274 @@
+package com.github.jaskey.rocketmq.persist;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分层存储：快速层（如Redis）负责抢占和短期的已消费记录，持久层（如MySQL）长期保留已消费记录
+ * 1.抢占先访问快速层；开启回查（durableReadThrough）时，快速层抢占成功（未命中）再查询持久层，持久层已消费则回填快速层并返回已消费
+ * 2.已消费状态同时写入两层，快速层只保留min(fastReserveMinutes, dedupRecordReserveMinutes)，持久层保留dedupRecordReserveMinutes
+ * 3.SYNC模式同步写入持久层，默认回查；ASYNC模式由后台线程批量写入持久层（见WriteBehindPersist），默认不回查，抢占只访问快速层
+ * 4.回查是同步的，每条新消息都多一次持久层读取；不回查时快速层过期或者丢失（如Redis主从切换）的记录不再去重
+ * 注：消费中状态只在快速层，消费失败的删除也只需要删除快速层（抢占成功说明持久层没有已消费记录）
+ */
+@Slf4j
+public class TieredPersist implements IPersist {
+
+    public enum Mode {
+        /**
+         * 同步写入持久层，markConsumed返回时两层都已写入；默认快速层未命中时回查持久层
+         */
+        SYNC,
+        /**
+         * 异步批量写入持久层；默认不回查持久层，抢占的延迟与只使用快速层相同
+         */
+        ASYNC
+    }
+
+    private static final int ASYNC_QUEUE_CAPACITY = 10000;
+    private static final int ASYNC_FLUSH_BATCH_SIZE = 100;
+    private static final long ASYNC_FLUSH_INTERVAL_MILLISECONDS = 100;
+    private static final long ASYNC_OFFER_TIMEOUT_MILLISECONDS = 1000;
+
+    private final IPersist fastTier;
+
+    //读写持久层都通过它，ASYNC模式下为WriteBehindPersist，还没写入的记录也能读到
+    private final IPersist durableTier;
+
+    private final Mode mode;
+
+    private final long fastReserveMinutes;
+
+    private final boolean durableReadThrough;
+
+    //写入过的最小的dedupRecordReserveMinutes，回填快速层时不超过它，避免回填的记录比持久层的记录保留得更久
+    private final AtomicLong minReserveMinutes = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * SYNC模式回查持久层，ASYNC模式不回查
+     * @param fastTier 快速层，如new RedisPersist(redisTemplate)
+     * @param durableTier 持久层，如new JDBCPersit(jdbcTemplate)
+     * @param fastReserveMinutes 已消费记录在快速层保留多少分钟，超过dedupRecordReserveMinutes时以后者为准
+     */
+    public TieredPersist(IPersist fastTier, IPersist durableTier, Mode mode, long fastReserveMinutes) {
+        this(fastTier, durableTier, mode, fastReserveMinutes, mode == Mode.SYNC);
+    }
+
+    /**
+     * @param durableReadThrough 快速层未命中时是否回查持久层，回查时每条新消息多一次同步的持久层读取
+     */
+    public TieredPersist(IPersist fastTier, IPersist durableTier, Mode mode, long fastReserveMinutes, boolean durableReadThrough) {
+        if (fastTier == null || durableTier == null || mode == null) {
+            throw new NullPointerException("fastTier, durableTier and mode can not be null");
+        }
+        if (fastReserveMinutes <= 0) {
+            throw new IllegalArgumentException("fastReserveMinutes must be positive");
+        }
+        this.fastTier = fastTier;
+        this.mode = mode;
+        this.fastReserveMinutes = fastReserveMinutes;
+        this.durableReadThrough = durableReadThrough;
+        if (mode == Mode.ASYNC) {
+            this.durableTier = new WriteBehindPersist(durableTier, ASYNC_QUEUE_CAPACITY, ASYNC_FLUSH_BATCH_SIZE, ASYNC_FLUSH_INTERVAL_MILLISECONDS, ASYNC_OFFER_TIMEOUT_MILLISECONDS);
+        } else {
+            this.durableTier = durableTier;
+        }
+    }
+
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return claim(dedupElement, dedupProcessingExpireMilliSeconds) == ClaimResult.CLAIMED;
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        ClaimResult claimResult = fastTier.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        if (claimResult != ClaimResult.CLAIMED || !durableReadThrough) {
+            return claimResult;
+        }
+        //快速层没有记录，可能是已经从快速层过期/丢失的已消费记录
+        if (isDurableConsumed(dedupElement)) {
+            fastTier.markConsumed(dedupElement, readThroughReserveMinutes());
+            return ClaimResult.CONSUMED;
+        }
+        return ClaimResult.CLAIMED;
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        fastTier.delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        minReserveMinutes.accumulateAndGet(dedupRecordReserveMinutes, Math::min);
+        fastTier.markConsumed(dedupElement, Math.min(fastReserveMinutes, dedupRecordReserveMinutes));
+        durableTier.markConsumed(dedupElement, dedupRecordReserveMinutes);
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        String val = fastTier.get(dedupElement);
+        if (val != null || !durableReadThrough) {
+            return val;
+        }
+        val = durableTier.get(dedupElement);
+        if (CONSUME_STATUS_CONSUMED.equals(val)) {
+            fastTier.markConsumed(dedupElement, readThroughReserveMinutes());
+        }
+        return val;
+    }
+
+    @Override
+    public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> res = new ArrayList<>(fastTier.batchClaim(dedupElements, dedupProcessingExpireMilliSeconds));
+        if (!durableReadThrough) {
+            return res;
+        }
+
+        List<DedupElement> claimed = new ArrayList<>();
+        List<Integer> claimedIndexes = new ArrayList<>();
+        for (int i = 0; i < res.size(); i++) {
+            if (res.get(i) == ClaimResult.CLAIMED) {
+                claimed.add(dedupElements.get(i));
+                claimedIndexes.add(i);
+            }
+        }
+        if (claimed.isEmpty()) {
+            return res;
+        }
+
+        List<String> durableStatus;
+        try {
+            durableStatus = durableTier.batchGet(claimed);
+        } catch (RuntimeException e) {
+            log.error("[NOTIFYME]batch get from durable tier fail, release claims in fast tier {}", claimed, e);
+            releaseQuietly(claimed);
+            throw e;
+        }
+        List<DedupElement> durableConsumed = new ArrayList<>();
+        for (int i = 0; i < claimed.size(); i++) {
+            if (CONSUME_STATUS_CONSUMED.equals(durableStatus.get(i))) {
+                durableConsumed.add(claimed.get(i));
+                res.set(claimedIndexes.get(i), ClaimResult.CONSUMED);
+            }
+        }
+        if (!durableConsumed.isEmpty()) {
+            fastTier.batchMarkConsumed(durableConsumed, readThroughReserveMinutes());
+        }
+        return res;
+    }
+
+    @Override
+    public boolean[] batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<ClaimResult> claimResults = batchClaim(dedupElements, dedupProcessingExpireMilliSeconds);
+        boolean[] res = new boolean[claimResults.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = claimResults.get(i) == ClaimResult.CLAIMED;
+        }
+        return res;
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        fastTier.batchDelete(dedupElements);
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        minReserveMinutes.accumulateAndGet(dedupRecordReserveMinutes, Math::min);
+        fastTier.batchMarkConsumed(dedupElements, Math.min(fastReserveMinutes, dedupRecordReserveMinutes));
+        durableTier.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+    }
+
+    @Override
+    public boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return fastTier.isMarkConsumedPending(dedupElement) || durableTier.isMarkConsumedPending(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return fastTier.supportsRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        fastTier.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public List<String> batchGet(List<DedupElement> dedupElements) {
+        List<String> res = new ArrayList<>(fastTier.batchGet(dedupElements));
+        if (!durableReadThrough) {
+            return res;
+        }
+        List<DedupElement> missed = new ArrayList<>();
+        List<Integer> missedIndexes = new ArrayList<>();
+        for (int i = 0; i < res.size(); i++) {
+            if (res.get(i) == null) {
+                missed.add(dedupElements.get(i));
+                missedIndexes.add(i);
+            }
+        }
+        if (!missed.isEmpty()) {
+            List<String> durableStatus = durableTier.batchGet(missed);
+            for (int i = 0; i < missed.size(); i++) {
+                res.set(missedIndexes.get(i), durableStatus.get(i));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return fastTier.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            durableTier.shutdown();
+        } finally {
+            fastTier.shutdown();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isDurableReadThrough() {
+        return durableReadThrough;
+    }
+
+
+    //回填的记录不知道自己的dedupRecordReserveMinutes，按写入过的最小值封顶，还没有写入过时按fastReserveMinutes
+    private long readThroughReserveMinutes() {
+        return Math.min(fastReserveMinutes, minReserveMinutes.get());
+    }
+
+
+    //持久层查询异常时释放快速层的抢占并抛出，与JDBCPersit抢占异常时一样按存储异常处理（消息稍后重试），需要降级时使用ResilientPersist
+    private boolean isDurableConsumed(DedupElement dedupElement) {
+        try {
+            return CONSUME_STATUS_CONSUMED.equals(durableTier.get(dedupElement));
+        } catch (RuntimeException e) {
+            log.error("[NOTIFYME]get from durable tier fail, release claim in fast tier {}", dedupElement, e);
+            releaseQuietly(Collections.singletonList(dedupElement));
+            throw e;
+        }
+    }
+
+    private void releaseQuietly(List<DedupElement> claimed) {
+        try {
+            fastTier.batchDelete(claimed);
+        } catch (Exception e) {
+            log.error("release claims in fast tier fail, {} records will be consumed after dedupProcessingExpireMilliSeconds", claimed.size(), e);
+        }
+    }
+}
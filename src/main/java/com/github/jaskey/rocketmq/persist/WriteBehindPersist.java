@@ -0,0 +1,315 @@
+package com.github.jaskey.rocketmq.persist;
+
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步标记已消费（write-behind），消费线程只把已消费的记录放入队列，由后台线程批量写入被装饰的存储
+ * 1.队列有界，队列满时消费线程最多阻塞offerTimeoutMilliSeconds（背压），仍然放不进去则同步写入
+ * 2.还没写入的记录在本地视为已消费；写入前存储里的消费中记录（dedupProcessingExpireMilliSeconds）仍然可以防止其他实例重复消费
+ * 3.写入失败的记录放回队列，等待flushIntervalMilliSeconds后重试；队列已满时（存储持续不可用）不再重试，过期后重投的消息会被重新消费
+ * 4.开启续期时，存储中的消费中记录会一直续期到写入完成（见IPersist#isMarkConsumedPending）
+ * 5.shutdown时会把队列中剩余的记录全部写入（失败不再重试）
+ */
+@Slf4j
+public class WriteBehindPersist extends AbstractLocalConsumedPersist {
+
+    private final BlockingQueue<PendingMark> queue;
+    private final ConcurrentHashMap<DedupElement, PendingMark> pending = new ConcurrentHashMap<>();
+    private final int flushBatchSize;
+    private final long flushIntervalMilliSeconds;
+    private final long offerTimeoutMilliSeconds;
+    private final Thread flushThread;
+    private volatile boolean running = true;
+
+    //统计
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder flushedRecordCount = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final LongAdder syncWriteCount = new LongAdder();
+    private final LongAdder flushFailCount = new LongAdder();
+    private final LongAdder requeueCount = new LongAdder();
+
+    /**
+     * @param queueCapacity 队列容量
+     * @param flushBatchSize 每次批量写入的最大条数
+     * @param flushIntervalMilliSeconds 队列没满一批时，最多等待多久写入一次
+     * @param offerTimeoutMilliSeconds 队列满时消费线程最多阻塞多久，超时则同步写入
+     */
+    public WriteBehindPersist(IPersist delegate, int queueCapacity, int flushBatchSize, long flushIntervalMilliSeconds, long offerTimeoutMilliSeconds) {
+        super(delegate);
+        if (queueCapacity <= 0 || flushBatchSize <= 0 || flushIntervalMilliSeconds <= 0 || offerTimeoutMilliSeconds < 0) {
+            throw new IllegalArgumentException("illegal write behind config");
+        }
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flushBatchSize = flushBatchSize;
+        this.flushIntervalMilliSeconds = flushIntervalMilliSeconds;
+        this.offerTimeoutMilliSeconds = offerTimeoutMilliSeconds;
+        this.flushThread = new Thread(this::flushLoop, "DedupWriteBehindFlushThread");
+        this.flushThread.setDaemon(true);
+        this.flushThread.start();
+    }
+
+
+    @Override
+    protected boolean isLocalConsumed(DedupElement dedupElement) {
+        return pending.containsKey(dedupElement);
+    }
+
+    @Override
+    public boolean isMarkConsumedPending(DedupElement dedupElement) {
+        return pending.containsKey(dedupElement) || delegate.isMarkConsumedPending(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        PendingMark pendingMark = new PendingMark(dedupElement, dedupRecordReserveMinutes);
+        pending.put(dedupElement, pendingMark);
+
+        boolean offered = false;
+        if (running) {
+            try {
+                offered = queue.offer(pendingMark, offerTimeoutMilliSeconds, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!offered) {//队列满了（或已关闭），同步写入
+            syncWriteCount.increment();
+            try {
+                delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+            } finally {
+                pending.remove(dedupElement, pendingMark);
+            }
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        for (DedupElement dedupElement : dedupElements) {
+            markConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        pending.remove(dedupElement);
+        delegate.delete(dedupElement);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            pending.remove(dedupElement);
+        }
+        delegate.batchDelete(dedupElements);
+    }
+
+    /**
+     * 停止后台线程，并把队列中剩余的记录全部写入
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        flushThread.interrupt();
+        try {
+            flushThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //后台线程没写完的，由当前线程写完
+        flushAll();
+        log.info("write behind persist shutdown, flushCount={}, flushedRecordCount={}, syncWriteCount={}, flushFailCount={}, requeueCount={}", getFlushCount(), getFlushedRecordCount(), getSyncWriteCount(), getFlushFailCount(), getRequeueCount());
+        super.shutdown();
+    }
+
+
+    private void flushLoop() {
+        List<PendingMark> batch = new ArrayList<>(flushBatchSize);
+        while (running) {
+            try {
+                PendingMark first = queue.poll(flushIntervalMilliSeconds, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                //攒够一批或者等待超过flushIntervalMilliSeconds就写入
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMilliSeconds);
+                while (batch.size() < flushBatchSize) {
+                    queue.drainTo(batch, flushBatchSize - batch.size());
+                    long remain = deadline - System.nanoTime();
+                    if (batch.size() >= flushBatchSize || remain <= 0) {
+                        break;
+                    }
+                    PendingMark next = queue.poll(remain, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                if (!flush(batch, true)) {
+                    //写入失败，等待一个间隔再重试，避免存储不可用时空转
+                    Thread.sleep(flushIntervalMilliSeconds);
+                }
+            } catch (InterruptedException e) {
+                //shutdown，已经取出的记录也要写入
+                flush(batch, false);
+            } catch (Throwable e) {
+                log.error("unexpected error in write behind flush loop", e);
+            } finally {
+                batch.clear();
+            }
+        }
+        flushAll();
+    }
+
+    private synchronized void flushAll() {
+        List<PendingMark> batch = new ArrayList<>(flushBatchSize);
+        while (queue.drainTo(batch, flushBatchSize) > 0) {
+            flush(batch, false);
+            batch.clear();
+        }
+    }
+
+    /**
+     * @param requeue 写入失败时是否放回队列重试
+     * @return 是否全部写入成功
+     */
+    private boolean flush(List<PendingMark> batch, boolean requeue) {
+        boolean success = true;
+        //按保留时间分组（通常只有一种）
+        while (!batch.isEmpty()) {
+            long dedupRecordReserveMinutes = batch.get(0).dedupRecordReserveMinutes;
+            List<DedupElement> dedupElements = new ArrayList<>(batch.size());
+            List<PendingMark> flushed = new ArrayList<>(batch.size());
+            List<PendingMark> others = new ArrayList<>();
+            for (PendingMark pendingMark : batch) {
+                if (pendingMark.dedupRecordReserveMinutes != dedupRecordReserveMinutes) {
+                    others.add(pendingMark);
+                } else if (pending.get(pendingMark.dedupElement) == pendingMark) {//期间被删除的不再写入
+                    dedupElements.add(pendingMark.dedupElement);
+                    flushed.add(pendingMark);
+                }
+            }
+
+            if (!dedupElements.isEmpty()) {
+                long start = System.nanoTime();
+                int requeued = 0;
+                try {
+                    delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+                    flushedRecordCount.add(dedupElements.size());
+                } catch (Exception e) {
+                    success = false;
+                    flushFailCount.increment();
+                    requeued = requeue ? requeue(flushed) : 0;
+                    if (requeued < flushed.size()) {
+                        //没有放回队列的记录在存储中仍然是消费中，过期后重投的消息会被重新消费
+                        log.error("[NOTIFYME]write behind flush fail, {} records may be consumed again after dedupProcessingExpireMilliSeconds", flushed.size() - requeued, e);
+                    } else {
+                        log.warn("write behind flush fail, {} records requeued to retry", requeued, e);
+                    }
+                } finally {
+                    long cost = System.nanoTime() - start;
+                    flushCount.increment();
+                    flushNanos.add(cost);
+                    maxFlushNanos.accumulateAndGet(cost, Math::max);
+                    //放回队列的是前requeued条，仍然等待写入
+                    for (int i = requeued; i < flushed.size(); i++) {
+                        pending.remove(flushed.get(i).dedupElement, flushed.get(i));
+                    }
+                }
+            }
+            batch = others;
+        }
+        return success;
+    }
+
+    //按顺序放回队列（不阻塞），返回放回去的条数；队列满了的不再重试
+    private int requeue(List<PendingMark> failed) {
+        int requeued = 0;
+        while (requeued < failed.size() && queue.offer(failed.get(requeued))) {
+            requeued++;
+        }
+        requeueCount.add(requeued);
+        return requeued;
+    }
+
+
+    /**
+     * 写入失败、放回队列重试的记录数
+     */
+    public long getRequeueCount() {
+        return requeueCount.sum();
+    }
+
+    /**
+     * 队列中等待写入的记录数
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 批量写入的次数
+     */
+    public long getFlushCount() {
+        return flushCount.sum();
+    }
+
+    /**
+     * 已写入的记录数
+     */
+    public long getFlushedRecordCount() {
+        return flushedRecordCount.sum();
+    }
+
+    /**
+     * 平均每次批量写入的耗时（毫秒）
+     */
+    public double getAvgFlushMilliSeconds() {
+        long count = flushCount.sum();
+        return count == 0 ? 0 : flushNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * 最大的一次批量写入耗时（毫秒）
+     */
+    public double getMaxFlushMilliSeconds() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    /**
+     * 队列满时同步写入的次数
+     */
+    public long getSyncWriteCount() {
+        return syncWriteCount.sum();
+    }
+
+    /**
+     * 批量写入失败的次数
+     */
+    public long getFlushFailCount() {
+        return flushFailCount.sum();
+    }
+
+
+    private static class PendingMark {
+        private final DedupElement dedupElement;
+        private final long dedupRecordReserveMinutes;
+
+        PendingMark(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+            this.dedupElement = dedupElement;
+            this.dedupRecordReserveMinutes = dedupRecordReserveMinutes;
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.github.jaskey.rocketmq.strategy;
 
 import org.apache.rocketmq.common.message.MessageExt;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 /**
@@ -9,5 +12,27 @@ import java.util.function.Function;
  */
 public interface ConsumeStrategy {
      boolean invoke(Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt);
-}
 
+     /**
+      * 按顺序消费一批消息，遇到消费失败即停止
+      * @return 最后一条消费成功的消息下标（即ackIndex），第一条就失败则为-1
+      */
+     default int invokeBatch(Function<MessageExt, Boolean> consumeCallback, List<MessageExt> msgs) {
+          int ackIndex = -1;
+          for (int i = 0; i < msgs.size(); i++) {
+               if (!invoke(consumeCallback, msgs.get(i))) {
+                    break;
+               }
+               ackIndex = i;
+          }
+          return ackIndex;
+     }
+
+     /**
+      * 在线程池上消费一条消息（批内并行消费使用）
+      * 默认把整个invoke提交到线程池；去重存储支持异步时，等待存储期间不占用线程
+      */
+     default CompletableFuture<Boolean> invokeAsync(Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, Executor executor) {
+          return CompletableFuture.supplyAsync(() -> invoke(consumeCallback, messageExt), executor);
+     }
+}
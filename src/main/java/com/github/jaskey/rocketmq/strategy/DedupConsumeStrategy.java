@@ -2,29 +2,49 @@ package com.github.jaskey.rocketmq.strategy;
 
 
 import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.core.DedupPolicy;
+import com.github.jaskey.rocketmq.core.InFlightRegistry;
+import com.github.jaskey.rocketmq.core.LeaseRenewer;
+import com.github.jaskey.rocketmq.filter.DedupPreFilter;
+import com.github.jaskey.rocketmq.metrics.DedupMetrics;
+import com.github.jaskey.rocketmq.persist.AsyncPersist;
+import com.github.jaskey.rocketmq.persist.ClaimResult;
 import com.github.jaskey.rocketmq.persist.DedupElement;
 import com.github.jaskey.rocketmq.persist.IPersist;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.common.message.MessageExt;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Function;
 
-import static com.github.jaskey.rocketmq.persist.IPersist.CONSUME_STATUS_CONSUMED;
-import static com.github.jaskey.rocketmq.persist.IPersist.CONSUME_STATUS_CONSUMING;
-
 
 /**
  * Created by linjunjie1103@gmail.com
  * 去重策略的消费策略，去重数据存储目前支持MySQL（JDBC）和Redis，详见 persist包下的实现类
  * 1.如果已经消费过，则直接消费幂等掉
  * 2.如果正在消费中，则消费会延迟消费（consume later）注：如果一直消费中，由于需要避免消息丢失，即使前一个消息没消费结束依然会消费
+ *   配置了consumingWaitMilliSeconds时，先在本线程轮询等待前一个消费的结果，等待超时才延迟消费
+ *   去重策略为DEDUP_STRATEGY_DROP时，正在消费中的直接当重复处理
+ * 3.每条消息按TOPIC/TAG查找单独配置的DedupPolicy（去重策略、过期时间、去重存储），没有则使用DedupConfig本身的配置
+ * 4.开启了本进程内合并（DedupConfig#enableInFlightCoalescing）时，本进程内正在消费的相同消息不再访问去重存储，等待前一个的结果
  *
  */
 @Slf4j
 @AllArgsConstructor
 public class DedupConsumeStrategy implements ConsumeStrategy {
 
+    //等待消费中的消息时，第一次轮询的间隔，之后每次翻倍
+    private static final long CONSUMING_WAIT_INITIAL_INTERVAL_MILLISECONDS = 2;
+
+    private static final long CONSUMING_WAIT_MAX_INTERVAL_MILLISECONDS = 100;
 
 
     private final DedupConfig dedupConfig;
@@ -42,73 +62,571 @@ public class DedupConsumeStrategy implements ConsumeStrategy {
 
     private boolean doInvoke(Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt) {
 
-        IPersist persist = dedupConfig.getPersist();
-        DedupElement dedupElement = new DedupElement(dedupConfig.getApplicationName(), messageExt.getTopic(), messageExt.getTags()==null ? "" : messageExt.getTags(), dedupMessageKeyFunction.apply(messageExt));
-        Boolean shouldConsume = true;
+        DedupPolicy policy = resolvePolicy(messageExt);
+        int dedupStrategy = dedupStrategyOf(policy);
+        if (dedupStrategy == DedupConfig.DEDUP_STRATEGY_DISABLE) {
+            return consumeCallback.apply(messageExt);
+        }
+
+        DedupElement dedupElement = buildDedupElement(messageExt);
+        InFlightRegistry inFlightRegistry = dedupConfig.getInFlightRegistry();
+        if (inFlightRegistry == null || dedupElement.getMsgUniqKey() == null) {
+            return claimAndHandle(policy, dedupStrategy, consumeCallback, messageExt, dedupElement);
+        }
+
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> inFlight;
+        while ((inFlight = inFlightRegistry.register(dedupElement, mine)) != null) {
+            //本进程内有相同的消息正在消费，不访问去重存储，等待它的结果
+            IPersist persist = persistOf(policy);
+            Boolean acked = inFlightRegistry.await(inFlight);
+            if (acked == null) {
+                dedupConfig.getMetrics().recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CONSUMING);
+                return onConsuming(persist, dedupStrategy, messageExt, dedupElement);
+            }
+            if (acked) {
+                dedupConfig.getMetrics().recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CONSUMED);
+                log.warn("the same message has been acked by another consume thread! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                return true;
+            }
+            //前一个消费失败，记录已释放，重新登记：等待的副本中只有一个登记成功去抢占，其余的继续等待它的结果
+        }
+
+        boolean acked = false;
+        try {
+            acked = claimAndHandle(policy, dedupStrategy, consumeCallback, messageExt, dedupElement);
+            return acked;
+        } finally {
+            inFlightRegistry.unregister(dedupElement, mine, acked);
+        }
+    }
+
+
+    private boolean claimAndHandle(DedupPolicy policy, int dedupStrategy, Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, DedupElement dedupElement) {
+        IPersist persist = persistOf(policy);
+        long processingExpireMilliSeconds = processingExpireOf(policy);
+        ClaimResult claimResult = ClaimResult.CLAIMED;
 
         if (dedupElement.getMsgUniqKey() != null) {
-            shouldConsume = persist.setConsumingIfNX(dedupElement, dedupConfig.getDedupProcessingExpireMilliSeconds());
+            claimResult = doClaim(persist, dedupElement, processingExpireMilliSeconds);
+            if (claimResult == ClaimResult.CONSUMING && dedupConfig.getConsumingWaitMilliSeconds() > 0) {
+                claimResult = awaitConsuming(persist, dedupElement, processingExpireMilliSeconds, System.currentTimeMillis() + dedupConfig.getConsumingWaitMilliSeconds());
+            }
+            dedupConfig.getMetrics().recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), claimResult);
         }
 
-        //设置成功，证明应该要消费
-        if (shouldConsume != null && shouldConsume) {
-            //开始消费
-            return doHandleMsgAndUpdateStatus(consumeCallback,messageExt, dedupElement);
-        } else {//有消费过/中的，做对应策略处理
-            String val = persist.get(dedupElement);
-            if (CONSUME_STATUS_CONSUMING.equals(val)) {//正在消费中，稍后重试
-                log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
-                return false;
-            } else if(CONSUME_STATUS_CONSUMED.equals(val)){//证明消费过了，直接消费认为成功
+        switch (claimResult) {
+            case CLAIMED://设置成功，证明应该要消费
+                return doHandleMsgAndUpdateStatus(persist, reserveMinutesOf(policy), consumeCallback, messageExt, dedupElement);
+            case CONSUMING:
+                return onConsuming(persist, dedupStrategy, messageExt, dedupElement);
+            case CONSUMED://证明消费过了，直接消费认为成功
                 log.warn("message has been consumed before! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
                 return true;
-            } else {//非法结果，降级，直接消费
-                log.warn("[NOTIFYME]unknown consume result {}, ignore dedup, continue consuming,  dedupKey : {}, {}, {} ", val, persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
-                return doHandleMsgAndUpdateStatus(consumeCallback,messageExt, dedupElement);
-            }
+            default://非法结果，降级，直接消费
+                log.warn("[NOTIFYME]unknown consume result {}, ignore dedup, continue consuming,  dedupKey : {}, {}, {} ", claimResult, persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                return doHandleMsgAndUpdateStatus(persist, reserveMinutesOf(policy), consumeCallback, messageExt, dedupElement);
+        }
+    }
+
+    //相同的消息正在消费中：DROP策略直接当重复处理，否则稍后重试
+    private boolean onConsuming(IPersist persist, int dedupStrategy, MessageExt messageExt, DedupElement dedupElement) {
+        if (dedupStrategy == DedupConfig.DEDUP_STRATEGY_DROP) {
+            log.warn("the same message is considered consuming, drop it. dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+            return true;
         }
+        log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+        return false;
     }
 
 
     /**
-     *     消费消息，末尾消费失败会删除消费记录，消费成功则更新消费状态
+     * 去重存储支持异步时：抢占完成后才把业务消费提交到线程池，标记已消费/删除也不等待，等待存储期间不占用线程
+     * 注：线程池拒绝时释放抢占的记录，这条消息按消费失败处理，稍后重试
      */
-    private boolean doHandleMsgAndUpdateStatus(final Function<MessageExt, Boolean> consumeCallback , final MessageExt messageExt, final DedupElement dedupElement) {
+    @Override
+    public CompletableFuture<Boolean> invokeAsync(Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, Executor executor) {
+        DedupPolicy policy = resolvePolicy(messageExt);
+        int dedupStrategy = dedupStrategyOf(policy);
+        if (dedupStrategy == DedupConfig.DEDUP_STRATEGY_DISABLE) {
+            return CompletableFuture.supplyAsync(() -> consumeCallback.apply(messageExt), executor);
+        }
+        IPersist persist = persistOf(policy);
+        DedupElement dedupElement = buildDedupElement(messageExt);
+        if (!(persist instanceof AsyncPersist) || dedupElement.getMsgUniqKey() == null) {
+            return ConsumeStrategy.super.invokeAsync(consumeCallback, messageExt, executor);
+        }
 
+        //开启了本进程内合并时，已有相同的消息在消费的，在线程池上同步等待它的结果
+        InFlightRegistry inFlightRegistry = dedupConfig.getInFlightRegistry();
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        if (inFlightRegistry != null && inFlightRegistry.register(dedupElement, mine) != null) {
+            return ConsumeStrategy.super.invokeAsync(consumeCallback, messageExt, executor);
+        }
 
-        if (dedupElement.getMsgUniqKey()==null) {
-            log.warn("dedup key is null , consume msg but not update status{}", messageExt.getMsgId());
-            return consumeCallback.apply(messageExt);
-        } else {
-            IPersist persist = dedupConfig.getPersist();
-            boolean consumeRes = false;
+        AsyncPersist asyncPersist = (AsyncPersist) persist;
+        long processingExpireMilliSeconds = processingExpireOf(policy);
+        CompletableFuture<Boolean> res = new CompletableFuture<>();
+        if (inFlightRegistry != null) {
+            res.whenComplete((acked, ex) -> inFlightRegistry.unregister(dedupElement, mine, ex == null && acked));
+        }
+        CompletionStage<ClaimResult> claimStage;
+        try {
+            claimStage = asyncPersist.claimAsync(dedupElement, processingExpireMilliSeconds);
+        } catch (RuntimeException e) {
+            res.completeExceptionally(e);
+            return res;
+        }
+        //不使用thenComposeAsync：JDK8下线程池拒绝时依赖的future永远不会完成；这里拒绝时释放抢占的记录，按消费失败处理
+        claimStage.whenComplete((claimResult, claimEx) -> {
+            if (claimEx != null) {
+                res.completeExceptionally(claimEx);
+                return;
+            }
             try {
-                consumeRes = consumeCallback.apply(messageExt);
-            } catch (Throwable e) {
-                //消费失败了，删除这个key
+                executor.execute(() -> {
+                    try {
+                        afterClaimAsync(policy, dedupStrategy, asyncPersist, processingExpireMilliSeconds, consumeCallback, messageExt, dedupElement, claimResult)
+                                .whenComplete((acked, ex) -> {
+                                    if (ex != null) {
+                                        res.completeExceptionally(ex);
+                                    } else {
+                                        res.complete(acked);
+                                    }
+                                });
+                    } catch (Throwable e) {
+                        res.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (claimResult == ClaimResult.CLAIMED) {
+                    releaseQuietly(asyncPersist, dedupElement);
+                }
+                res.completeExceptionally(e);
+            }
+        });
+        return res;
+    }
+
+    //抢占完成后在线程池上执行：等待消费中的消息、消费、异步更新消费状态
+    private CompletionStage<Boolean> afterClaimAsync(DedupPolicy policy, int dedupStrategy, AsyncPersist asyncPersist, long processingExpireMilliSeconds,
+                                                     Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, DedupElement dedupElement, ClaimResult firstClaimResult) {
+        IPersist persist = asyncPersist;
+        ClaimResult claimResult = firstClaimResult;
+        if (claimResult == ClaimResult.CONSUMING && dedupConfig.getConsumingWaitMilliSeconds() > 0) {
+            //等待期间占用线程池的线程，等待时间有上限
+            claimResult = awaitConsuming(persist, dedupElement, processingExpireMilliSeconds, System.currentTimeMillis() + dedupConfig.getConsumingWaitMilliSeconds());
+        }
+        dedupConfig.getMetrics().recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), claimResult);
+        switch (claimResult) {
+            case CONSUMING:
+                if (dedupStrategy == DedupConfig.DEDUP_STRATEGY_DROP) {//正在消费中，直接当重复处理
+                    log.warn("the same message is considered consuming, drop it. dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                    return CompletableFuture.completedFuture(true);
+                }
+                //正在消费中，稍后重试
+                log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                return CompletableFuture.completedFuture(false);
+            case CONSUMED://证明消费过了，直接消费认为成功
+                log.warn("message has been consumed before! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                return CompletableFuture.completedFuture(true);
+            default://抢占成功，或非法结果降级直接消费
+                if (claimResult != ClaimResult.CLAIMED) {
+                    log.warn("[NOTIFYME]unknown consume result {}, ignore dedup, continue consuming,  dedupKey : {}, {}, {} ", claimResult, persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                }
+                LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+                if (leaseRenewer != null) {
+                    leaseRenewer.register(persist, dedupElement);
+                }
+                boolean consumeRes = applyQuietly(consumeCallback, messageExt, dedupElement);
+                CompletionStage<Void> updateStatus;
                 try {
-                    persist.delete(dedupElement);
-                } catch (Exception ex) {
+                    updateStatus = consumeRes ? asyncPersist.markConsumedAsync(dedupElement, reserveMinutesOf(policy)) : asyncPersist.deleteAsync(dedupElement);
+                } catch (RuntimeException e) {
+                    CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    updateStatus = failed;
+                }
+                return updateStatus.handle((v, ex) -> {
+                    if (leaseRenewer != null) {
+                        leaseRenewer.unregister(persist, dedupElement);
+                    }
+                    if (ex != null) {
+                        log.error("消费去重收尾工作异常 {}，忽略异常", messageExt.getMsgId(), ex);
+                    }
+                    return consumeRes;
+                });
+        }
+    }
+
+    private void releaseQuietly(AsyncPersist asyncPersist, DedupElement dedupElement) {
+        try {
+            asyncPersist.deleteAsync(dedupElement).whenComplete((v, ex) -> {
+                if (ex != null) {
                     log.error("error when delete dedup record {}", dedupElement, ex);
                 }
-                throw e;
+            });
+        } catch (Exception e) {
+            log.error("error when delete dedup record {}", dedupElement, e);
+        }
+    }
+
+
+    private ClaimResult doClaim(IPersist persist, DedupElement dedupElement, long processingExpireMilliSeconds) {
+        DedupPreFilter preFilter = dedupConfig.getPreFilter();
+        if (preFilter != null && !preFilter.mightContainAndPut(dedupElement)) {
+            //本进程一定没见过，绝大多数是新消息，用最轻量的setConsumingIfNX抢占，失败了（其他实例消费过/中）才需要查询状态
+            if (persist.setConsumingIfNX(dedupElement, processingExpireMilliSeconds)) {
+                return ClaimResult.CLAIMED;
             }
+        }
+
+        //一次调用完成抢占，抢占失败同时拿到已有记录的状态
+        ClaimResult claimResult = persist.claim(dedupElement, processingExpireMilliSeconds);
+        if (preFilter != null && claimResult == ClaimResult.CLAIMED) {
+            preFilter.recordFalsePositive();
+        }
+        return claimResult;
+    }
 
 
-            //没有异常，正常返回的话，判断消费结果
+    /**
+     * 重复消息正在消费中时，在本线程轮询等待前一个消费结束，轮询间隔从2毫秒开始翻倍，最大100毫秒
+     * 每次轮询都是一次抢占：前一个消费成功则返回CONSUMED，失败（记录已删除）或者消费中的记录过期则直接抢占成功
+     * @return 超过deadline仍在消费中则返回CONSUMING
+     */
+    private ClaimResult awaitConsuming(IPersist persist, DedupElement dedupElement, long processingExpireMilliSeconds, long deadline) {
+        long interval = CONSUMING_WAIT_INITIAL_INTERVAL_MILLISECONDS;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
             try {
-                if (consumeRes) {//标记为这个消息消费过
-                    log.debug("set consume res as CONSUME_STATUS_CONSUMED , {}", dedupElement);
-                    persist.markConsumed(dedupElement, dedupConfig.getDedupRecordReserveMinutes());
-                } else {
-                    log.info("consume Res is false, try deleting dedup record {} , {}", dedupElement, persist);
-                    persist.delete(dedupElement);//消费失败了，删除这个key
-                }
+                Thread.sleep(Math.min(interval, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ClaimResult.CONSUMING;
+            }
+            ClaimResult claimResult;
+            try {
+                claimResult = persist.claim(dedupElement, processingExpireMilliSeconds);
             } catch (Exception e) {
-                log.error("消费去重收尾工作异常 {}，忽略异常", messageExt.getMsgId(), e);
+                log.warn("claim fail when waiting for consuming message, try consume later {}", persist.toPrintInfo(dedupElement), e);
+                return ClaimResult.CONSUMING;
+            }
+            if (claimResult != ClaimResult.CONSUMING) {
+                log.info("consuming message finished after waiting, claim result {}, dedupKey : {}", claimResult, persist.toPrintInfo(dedupElement));
+                return claimResult;
+            }
+            interval = Math.min(interval * 2, CONSUMING_WAIT_MAX_INTERVAL_MILLISECONDS);
+        }
+        return ClaimResult.CONSUMING;
+    }
+
+
+    /**
+     * 批量去重消费：整批消息的抢占、标记已消费、释放各只需要一次存储调用
+     * 1.先批量抢占，抢占失败的同时拿到已有记录的状态
+     * 2.按顺序消费，遇到消费失败（或消费中）即停止；配置了consumingWaitMilliSeconds时，消费中的先等待，整批共用一个等待上限
+     * 3.最后把消费成功的批量标记为已消费，失败的以及没轮到消费的批量删除，以便重发后可以重新抢占
+     * 注：整批消息需要是同一个去重策略（DedupPolicy），否则逐条去重消费
+     */
+    @Override
+    public int invokeBatch(Function<MessageExt, Boolean> consumeCallback, List<MessageExt> msgs) {
+        int size = msgs.size();
+        if (size == 0) {
+            return -1;
+        }
+        DedupPolicy policy = resolvePolicy(msgs.get(0));
+        for (int i = 1; i < size; i++) {
+            if (resolvePolicy(msgs.get(i)) != policy) {
+                return invokeEach(consumeCallback, msgs);
+            }
+        }
+        int dedupStrategy = dedupStrategyOf(policy);
+        if (dedupStrategy == DedupConfig.DEDUP_STRATEGY_DISABLE) {
+            return invokeEach(consumeCallback, msgs);
+        }
+        IPersist persist = persistOf(policy);
+        long processingExpireMilliSeconds = processingExpireOf(policy);
+
+        DedupElement[] dedupElements = new DedupElement[size];
+        List<DedupElement> toClaim = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            dedupElements[i] = buildDedupElement(msgs.get(i));
+            if (dedupElements[i].getMsgUniqKey() != null) {
+                toClaim.add(dedupElements[i]);
+            }
+        }
+
+        ClaimResult[] claimResults = new ClaimResult[size];
+        if (!toClaim.isEmpty()) {
+            //一次调用完成整批抢占，抢占失败的同时拿到已有记录的状态
+            List<ClaimResult> batchClaimResults = persist instanceof AsyncPersist
+                    ? AsyncPersist.await(((AsyncPersist) persist).batchClaimAsync(toClaim, processingExpireMilliSeconds), dedupConfig.getAsyncPersistTimeoutMilliSeconds())
+                    : persist.batchClaim(toClaim, processingExpireMilliSeconds);
+            for (int i = 0, j = 0; i < size; i++) {
+                if (dedupElements[i].getMsgUniqKey() != null) {
+                    claimResults[i] = batchClaimResults.get(j++);
+                }
             }
+        }
+
+        //抢占成功的记录在整批消费期间续期
+        LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+        List<DedupElement> leased = new ArrayList<>();
+        if (leaseRenewer != null) {
+            for (int k = 0; k < size; k++) {
+                if (claimResults[k] == ClaimResult.CLAIMED) {
+                    leaseRenewer.register(persist, dedupElements[k]);
+                    leased.add(dedupElements[k]);
+                }
+            }
+        }
+
+        List<DedupElement> toMarkConsumed = new ArrayList<>();
+        List<DedupElement> toDelete = new ArrayList<>();
+        Set<DedupElement> consumedInBatch = new HashSet<>();
+        DedupMetrics metrics = dedupConfig.getMetrics();
+        long consumingWaitDeadline = -1;
+        int ackIndex = -1;
+        int i = 0;
+        try {
+            for (; i < size; i++) {
+                MessageExt messageExt = msgs.get(i);
+                DedupElement dedupElement = dedupElements[i];
+                boolean consumeRes;
+
+                if (claimResults[i] == ClaimResult.CONSUMING && dedupConfig.getConsumingWaitMilliSeconds() > 0 && !consumedInBatch.contains(dedupElement)) {
+                    if (consumingWaitDeadline < 0) {
+                        consumingWaitDeadline = System.currentTimeMillis() + dedupConfig.getConsumingWaitMilliSeconds();
+                    }
+                    claimResults[i] = awaitConsuming(persist, dedupElement, processingExpireMilliSeconds, consumingWaitDeadline);
+                    if (leaseRenewer != null && claimResults[i] == ClaimResult.CLAIMED) {
+                        leaseRenewer.register(persist, dedupElement);
+                        leased.add(dedupElement);
+                    }
+                }
+
+                if (dedupElement.getMsgUniqKey() == null) {
+                    log.warn("dedup key is null , consume msg but not update status{}", messageExt.getMsgId());
+                    consumeRes = applyQuietly(consumeCallback, messageExt, dedupElement);
+                } else if (claimResults[i] == ClaimResult.CLAIMED) {
+                    metrics.recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CLAIMED);
+                    consumeRes = applyQuietly(consumeCallback, messageExt, dedupElement);
+                    (consumeRes ? toMarkConsumed : toDelete).add(dedupElement);
+                } else if (consumedInBatch.contains(dedupElement)) {//同一批次前面已经消费成功了
+                    metrics.recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CONSUMED);
+                    log.warn("message has been consumed before in the same batch! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                    consumeRes = true;
+                } else if (claimResults[i] == ClaimResult.CONSUMING && dedupStrategy == DedupConfig.DEDUP_STRATEGY_DROP) {//正在消费中，直接当重复处理
+                    metrics.recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CONSUMING);
+                    log.warn("the same message is considered consuming, drop it. dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                    consumeRes = true;
+                } else if (claimResults[i] == ClaimResult.CONSUMING) {//正在消费中，稍后重试
+                    metrics.recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CONSUMING);
+                    log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                    consumeRes = false;
+                } else if (claimResults[i] == ClaimResult.CONSUMED) {//证明消费过了，直接消费认为成功
+                    metrics.recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.CONSUMED);
+                    log.warn("message has been consumed before! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                    consumeRes = true;
+                } else {//非法结果，降级，直接消费
+                    metrics.recordClaimResult(dedupElement.getTopic(), dedupElement.getTag(), ClaimResult.UNKNOWN);
+                    log.warn("[NOTIFYME]unknown consume result {}, ignore dedup, continue consuming,  dedupKey : {}, {}, {} ", claimResults[i], persist.toPrintInfo(dedupElement), messageExt.getMsgId(), persist.getClass().getSimpleName());
+                    consumeRes = applyQuietly(consumeCallback, messageExt, dedupElement);
+                    (consumeRes ? toMarkConsumed : toDelete).add(dedupElement);
+                }
+
+                if (!consumeRes) {
+                    break;
+                }
+                if (dedupElement.getMsgUniqKey() != null) {
+                    consumedInBatch.add(dedupElement);
+                }
+                ackIndex = i;
+            }
+        } finally {
+            //后面没轮到消费的，释放掉抢占的记录
+            for (int k = i + 1; k < size; k++) {
+                if (claimResults[k] == ClaimResult.CLAIMED) {
+                    toDelete.add(dedupElements[k]);
+                }
+            }
+
+            long reserveMinutes = reserveMinutesOf(policy);
+            if (persist instanceof AsyncPersist) {
+                updateStatusAsync((AsyncPersist) persist, reserveMinutes, toMarkConsumed, toDelete);
+            } else {
+                try {
+                    if (!toMarkConsumed.isEmpty()) {
+                        log.debug("set consume res as CONSUMED in batch, {}", toMarkConsumed);
+                        persist.batchMarkConsumed(toMarkConsumed, reserveMinutes);
+                    }
+                } catch (Exception e) {
+                    log.error("批量标记已消费异常 {}，忽略异常", toMarkConsumed, e);
+                }
+                try {
+                    if (!toDelete.isEmpty()) {
+                        log.info("consume fail or not consumed in batch, try deleting dedup records {} , {}", toDelete, persist);
+                        persist.batchDelete(toDelete);
+                    }
+                } catch (Exception e) {
+                    log.error("error when batch delete dedup records {}", toDelete, e);
+                }
+            }
+            for (DedupElement dedupElement : leased) {
+                leaseRenewer.unregister(persist, dedupElement);
+            }
+        }
+
+        return ackIndex;
+    }
+
+    //逐条去重消费，遇到消费失败即停止
+    private int invokeEach(Function<MessageExt, Boolean> consumeCallback, List<MessageExt> msgs) {
+        int ackIndex = -1;
+        for (int i = 0; i < msgs.size(); i++) {
+            boolean consumeRes;
+            try {
+                consumeRes = invoke(consumeCallback, msgs.get(i));
+            } catch (Exception ex) {
+                log.warn("Throw Exception when consume {}, ex", msgs.get(i), ex);
+                consumeRes = false;
+            }
+            if (!consumeRes) {
+                break;
+            }
+            ackIndex = i;
+        }
+        return ackIndex;
+    }
+
+
+    //标记已消费和删除同时发出，只等待一次
+    private void updateStatusAsync(AsyncPersist persist, long reserveMinutes, List<DedupElement> toMarkConsumed, List<DedupElement> toDelete) {
+        CompletableFuture<Void> marked = CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> deleted = CompletableFuture.completedFuture(null);
+        try {
+            if (!toMarkConsumed.isEmpty()) {
+                log.debug("set consume res as CONSUMED in batch, {}", toMarkConsumed);
+                marked = persist.batchMarkConsumedAsync(toMarkConsumed, reserveMinutes).toCompletableFuture();
+            }
+            if (!toDelete.isEmpty()) {
+                log.info("consume fail or not consumed in batch, try deleting dedup records {} , {}", toDelete, persist);
+                deleted = persist.batchDeleteAsync(toDelete).toCompletableFuture();
+            }
+        } catch (Exception e) {
+            log.error("批量更新消费状态异常 {} {}，忽略异常", toMarkConsumed, toDelete, e);
+        }
+        try {
+            AsyncPersist.await(marked, dedupConfig.getAsyncPersistTimeoutMilliSeconds());
+        } catch (Exception e) {
+            log.error("批量标记已消费异常 {}，忽略异常", toMarkConsumed, e);
+        }
+        try {
+            AsyncPersist.await(deleted, dedupConfig.getAsyncPersistTimeoutMilliSeconds());
+        } catch (Exception e) {
+            log.error("error when batch delete dedup records {}", toDelete, e);
+        }
+    }
+
+    private boolean applyQuietly(Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, DedupElement dedupElement) {
+        try {
+            return handleMsg(consumeCallback, messageExt, dedupElement);
+        } catch (Exception ex) {
+            log.warn("Throw Exception when consume {}, ex", messageExt, ex);
+            return false;
+        }
+    }
+
+    //调用业务消费，并统计耗时
+    private boolean handleMsg(Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, DedupElement dedupElement) {
+        long start = System.nanoTime();
+        boolean consumeRes = false;
+        try {
+            consumeRes = consumeCallback.apply(messageExt);
             return consumeRes;
+        } finally {
+            dedupConfig.getMetrics().recordHandleLatency(dedupElement.getTopic(), dedupElement.getTag(), System.nanoTime() - start, consumeRes);
         }
+    }
+
+    private DedupElement buildDedupElement(MessageExt messageExt) {
+        return new DedupElement(dedupConfig.getApplicationName(), messageExt.getTopic(), messageExt.getTags()==null ? "" : messageExt.getTags(), dedupMessageKeyFunction.apply(messageExt));
+    }
+
+    //以下方法中policy为null表示没有单独配置，使用DedupConfig本身的配置
+    private DedupPolicy resolvePolicy(MessageExt messageExt) {
+        return dedupConfig.resolveDedupPolicy(messageExt.getTopic(), messageExt.getTags()==null ? "" : messageExt.getTags());
+    }
+
+    private int dedupStrategyOf(DedupPolicy policy) {
+        return policy == null ? dedupConfig.getDedupStrategy() : policy.getDedupStrategy();
+    }
+
+    private IPersist persistOf(DedupPolicy policy) {
+        return policy == null || policy.getPersist() == null ? dedupConfig.getPersist() : policy.getPersist();
+    }
+
+    //开启续期时统一使用租期，续期器按租期续期
+    private long processingExpireOf(DedupPolicy policy) {
+        return policy == null || dedupConfig.getLeaseRenewer() != null ? dedupConfig.getDedupProcessingExpireMilliSeconds() : policy.getDedupProcessingExpireMilliSeconds();
+    }
 
+    private long reserveMinutesOf(DedupPolicy policy) {
+        return policy == null ? dedupConfig.getDedupRecordReserveMinutes() : policy.getDedupRecordReserveMinutes();
+    }
+
+
+    /**
+     *     消费消息，末尾消费失败会删除消费记录，消费成功则更新消费状态
+     */
+    private boolean doHandleMsgAndUpdateStatus(final IPersist persist, final long reserveMinutes, final Function<MessageExt, Boolean> consumeCallback , final MessageExt messageExt, final DedupElement dedupElement) {
+
+
+        if (dedupElement.getMsgUniqKey()==null) {
+            log.warn("dedup key is null , consume msg but not update status{}", messageExt.getMsgId());
+            return handleMsg(consumeCallback, messageExt, dedupElement);
+        } else {
+            LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+            if (leaseRenewer == null) {
+                return handleMsgAndUpdateStatus(persist, reserveMinutes, consumeCallback, messageExt, dedupElement);
+            }
+            leaseRenewer.register(persist, dedupElement);
+            try {
+                return handleMsgAndUpdateStatus(persist, reserveMinutes, consumeCallback, messageExt, dedupElement);
+            } finally {
+                leaseRenewer.unregister(persist, dedupElement);
+            }
+        }
+    }
+
+    private boolean handleMsgAndUpdateStatus(IPersist persist, long reserveMinutes, Function<MessageExt, Boolean> consumeCallback, MessageExt messageExt, DedupElement dedupElement) {
+        boolean consumeRes = false;
+        try {
+            consumeRes = handleMsg(consumeCallback, messageExt, dedupElement);
+        } catch (Throwable e) {
+            //消费失败了，删除这个key
+            try {
+                persist.delete(dedupElement);
+            } catch (Exception ex) {
+                log.error("error when delete dedup record {}", dedupElement, ex);
+            }
+            throw e;
+        }
+
+
+        //没有异常，正常返回的话，判断消费结果
+        try {
+            if (consumeRes) {//标记为这个消息消费过
+                log.debug("set consume res as CONSUME_STATUS_CONSUMED , {}", dedupElement);
+                persist.markConsumed(dedupElement, reserveMinutes);
+            } else {
+                log.info("consume Res is false, try deleting dedup record {} , {}", dedupElement, persist);
+                persist.delete(dedupElement);//消费失败了，删除这个key
+            }
+        } catch (Exception e) {
+            log.error("消费去重收尾工作异常 {}，忽略异常", messageExt.getMsgId(), e);
+        }
+        return consumeRes;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+package com.github.jaskey.rocketmq.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 在UTF-8的JSON字节上直接定位顶层字段的值，不解码字符串、不构建对象、不拷贝数组
+ * 1.只查找顶层对象的字段，字段名按原始字节比较（字段名中含转义字符的不会匹配）
+ * 2.值的范围为原始字节：字符串包含两端的引号，对象/数组包含括号，数字/true/false/null为字面量
+ * 3.所有字段都找到后立即返回，不再校验剩余部分
+ * 4.线程安全，扫描结果写入调用方传入的数组
+ */
+public final class JsonFieldScanner {
+
+    private final byte[][] fieldNames;
+
+    /**
+     * @param fieldNames 顶层字段名
+     */
+    public JsonFieldScanner(String... fieldNames) {
+        if (fieldNames == null || fieldNames.length == 0) {
+            throw new IllegalArgumentException("fieldNames can not be empty");
+        }
+        this.fieldNames = new byte[fieldNames.length][];
+        for (int i = 0; i < fieldNames.length; i++) {
+            this.fieldNames[i] = fieldNames[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public int getFieldCount() {
+        return fieldNames.length;
+    }
+
+    /**
+     * 扫描data[offset, offset+len)
+     * @param spans 长度至少为字段数的两倍，spans[2i]、spans[2i+1]为第i个字段值的[起始, 结束)下标，字段不存在时为-1
+     * @return 是否为合法的JSON对象（字段提前找全时只校验到最后一个字段），不合法时spans的内容无意义
+     */
+    public boolean scan(byte[] data, int offset, int len, int[] spans) {
+        for (int i = 0; i < fieldNames.length * 2; i++) {
+            spans[i] = -1;
+        }
+        int found = 0;
+        int end = offset + len;
+        int pos = skipWhitespace(data, offset, end);
+        if (pos >= end || data[pos] != '{') {
+            return false;
+        }
+        pos = skipWhitespace(data, pos + 1, end);
+        if (pos < end && data[pos] == '}') {
+            return true;
+        }
+        while (pos < end) {
+            if (data[pos] != '"') {
+                return false;
+            }
+            int nameStart = pos + 1;
+            int nameEnd = skipString(data, pos, end) - 1;
+            if (nameEnd < nameStart) {
+                return false;
+            }
+            pos = skipWhitespace(data, nameEnd + 1, end);
+            if (pos >= end || data[pos] != ':') {
+                return false;
+            }
+            int valueStart = skipWhitespace(data, pos + 1, end);
+            int valueEnd = skipValue(data, valueStart, end);
+            if (valueEnd < 0) {
+                return false;
+            }
+            int field = indexOf(data, nameStart, nameEnd);
+            if (field >= 0 && spans[2 * field] < 0) {//重复的字段名取第一个
+                spans[2 * field] = valueStart;
+                spans[2 * field + 1] = valueEnd;
+                if (++found == fieldNames.length) {//字段都找到了，不再扫描剩余部分
+                    return true;
+                }
+            }
+            pos = skipWhitespace(data, valueEnd, end);
+            if (pos >= end) {
+                return false;
+            }
+            if (data[pos] == '}') {
+                return true;
+            }
+            if (data[pos] != ',') {
+                return false;
+            }
+            pos = skipWhitespace(data, pos + 1, end);
+        }
+        return false;
+    }
+
+
+    private int indexOf(byte[] data, int nameStart, int nameEnd) {
+        int nameLen = nameEnd - nameStart;
+        for (int i = 0; i < fieldNames.length; i++) {
+            byte[] fieldName = fieldNames[i];
+            if (fieldName.length != nameLen) {
+                continue;
+            }
+            int j = 0;
+            while (j < nameLen && fieldName[j] == data[nameStart + j]) {
+                j++;
+            }
+            if (j == nameLen) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] data, int pos, int end) {
+        while (pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\n' || data[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    //data[pos]为起始引号，返回结束引号的下一个位置，没有结束引号返回-1
+    private static int skipString(byte[] data, int pos, int end) {
+        for (int i = pos + 1; i < end; i++) {
+            if (data[i] == '\\') {
+                i++;
+            } else if (data[i] == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    //返回值的下一个位置，不合法返回-1
+    private static int skipValue(byte[] data, int pos, int end) {
+        if (pos >= end) {
+            return -1;
+        }
+        byte b = data[pos];
+        if (b == '"') {
+            return skipString(data, pos, end);
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            for (int i = pos; i < end; i++) {
+                byte c = data[i];
+                if (c == '"') {
+                    i = skipString(data, i, end) - 1;
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            return -1;
+        }
+        //数字、true、false、null
+        int i = pos;
+        while (i < end && data[i] != ',' && data[i] != '}' && data[i] != ']' && data[i] != ' ' && data[i] != '\t' && data[i] != '\n' && data[i] != '\r') {
+            i++;
+        }
+        return i == pos ? -1 : i;
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.jaskey.rocketmq.util;
+
+/**
+ * MurmurHash3 x64 128位实现，非加密哈希，直接在原数组上计算，不做任何拷贝
+ */
+public final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    /**
+     * 计算data[offset, offset+len)的128位哈希
+     * @return 长度为2的数组，[0]为高64位，[1]为低64位
+     */
+    public static long[] hash128(byte[] data, int offset, int len, long seed) {
+        long[] out = new long[2];
+        hash128(data, offset, len, seed, out);
+        return out;
+    }
+
+    /**
+     * 计算data[offset, offset+len)的128位哈希，结果写入out，避免分配
+     */
+    public static void hash128(byte[] data, int offset, int len, long seed, long[] out) {
+        long h1 = seed;
+        long h2 = seed;
+        int nblocks = len >>> 4;
+
+        for (int i = 0; i < nblocks; i++) {
+            int idx = offset + (i << 4);
+            long k1 = getLongLittleEndian(data, idx);
+            long k2 = getLongLittleEndian(data, idx + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = offset + (nblocks << 4);
+        switch (len & 15) {
+            case 15: k2 ^= ((long) data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= ((long) data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= ((long) data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= ((long) data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= ((long) data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= ((long) data[tail + 9] & 0xff) << 8;
+            case 9: k2 ^= ((long) data[tail + 8] & 0xff);
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= ((long) data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= ((long) data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= ((long) data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= ((long) data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= ((long) data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= ((long) data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= ((long) data[tail + 1] & 0xff) << 8;
+            case 1: k1 ^= ((long) data[tail] & 0xff);
+                h1 ^= mixK1(k1);
+            default:
+                break;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        out[0] = h1;
+        out[1] = h2;
+    }
+
+    /**
+     * 128位哈希的十六进制表示（32个字符）
+     */
+    public static String toHex(long[] hash) {
+        char[] chars = new char[32];
+        writeHex(hash[0], chars, 0);
+        writeHex(hash[1], chars, 16);
+        return new String(chars);
+    }
+
+    private static void writeHex(long v, char[] chars, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = Character.forDigit((int) (v & 0xf), 16);
+            v >>>= 4;
+        }
+    }
+
+    //逐字节按小端拼成long，不依赖平台字节序和Unsafe
+    private static long getLongLittleEndian(byte[] data, int idx) {
+        return ((long) data[idx] & 0xff)
+                | (((long) data[idx + 1] & 0xff) << 8)
+                | (((long) data[idx + 2] & 0xff) << 16)
+                | (((long) data[idx + 3] & 0xff) << 24)
+                | (((long) data[idx + 4] & 0xff) << 32)
+                | (((long) data[idx + 5] & 0xff) << 40)
+                | (((long) data[idx + 6] & 0xff) << 48)
+                | (((long) data[idx + 7] & 0xff) << 56);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,18 @@
+-- ----------------------------
+-- Table structure for t_rocketmq_dedup
+-- ----------------------------
+-- 1.uniq_key是去重的依据，JDBCPersit依赖它做INSERT IGNORE，不能去掉，也不能加入其他列
+-- 2.idx_expire_time供JDBCDedupReaper按过期时间分批删除，没有这个索引清理时会全表扫描
+-- 3.不建议按expire_time做RANGE分区：mysql要求分区列包含在每一个唯一索引中，加入expire_time后uniq_key不再能保证去重
+-- 4.application_name/topic/tag/msg_uniq_key的长度即去重的上限，超长的消息JDBCPersit不去重（不截断写入），加宽字段不会放宽这个检查
+-- ----------------------------
+CREATE TABLE IF NOT EXISTS `t_rocketmq_dedup` (
+`application_name` varchar(255) NOT NULL COMMENT '消费的应用名（可以用消费者组名称）',
+`topic` varchar(255) NOT NULL COMMENT '消息来源的topic（不同topic消息不会认为重复）',
+`tag` varchar(16) NOT NULL COMMENT '消息的tag（同一个topic不同的tag，就算去重键一样也不会认为重复），没有tag则存""字符串',
+`msg_uniq_key` varchar(255) NOT NULL COMMENT '消息的唯一键（建议使用业务主键）',
+`status` varchar(16) NOT NULL COMMENT '这条消息的消费状态',
+`expire_time` bigint(20) NOT NULL COMMENT '这个去重记录的过期时间（时间戳）',
+UNIQUE KEY `uniq_key` (`application_name`,`topic`,`tag`,`msg_uniq_key`) USING BTREE,
+KEY `idx_expire_time` (`expire_time`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 ROW_FORMAT=COMPACT;
@@ -0,0 +1,25 @@
+package com.github.jaskey.rocketmq;
+
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+
+/**
+ * 测试用的消息
+ */
+public final class TestMessages {
+
+    private TestMessages() {
+    }
+
+    /**
+     * uniqID为uniqKey的消息
+     */
+    public static MessageExt message(String topic, String uniqKey) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic(topic);
+        messageExt.setMsgId("msgId-" + uniqKey);
+        MessageAccessor.putProperty(messageExt, MessageConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX, uniqKey);
+        return messageExt;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.jaskey.rocketmq.core;
+
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentHashKeyFunctionTest {
+
+    private static MessageExt message(String body, String... properties) {
+        MessageExt messageExt = new MessageExt();
+        messageExt.setTopic("topic");
+        if (body != null) {
+            messageExt.setBody(body.getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < properties.length; i += 2) {
+            MessageAccessor.putProperty(messageExt, properties[i], properties[i + 1]);
+        }
+        return messageExt;
+    }
+
+    @Test
+    public void sameBodySameKey() {
+        ContentHashKeyFunction function = ContentHashKeyFunction.ofBody();
+        String key = function.apply(message("hello"));
+        assertTrue(key.matches("[0-9a-f]{32}"));
+        assertEquals(key, function.apply(message("hello")));
+        assertNotEquals(key, function.apply(message("hello!")));
+    }
+
+    @Test
+    public void jsonFieldsIgnoreOtherContent() {
+        ContentHashKeyFunction function = ContentHashKeyFunction.ofJsonFields(Arrays.asList("orderId", "amount"));
+        String key = function.apply(message("{\"orderId\":\"o1\",\"amount\":10,\"sendTime\":1}"));
+        //其他字段、字段顺序和空白不影响去重键
+        assertEquals(key, function.apply(message("{ \"sendTime\":2, \"amount\" : 10, \"orderId\":\"o1\" }")));
+        assertNotEquals(key, function.apply(message("{\"orderId\":\"o1\",\"amount\":11}")));
+    }
+
+    @Test
+    public void absentDiffersFromEmpty() {
+        ContentHashKeyFunction fields = ContentHashKeyFunction.ofJsonFields(Arrays.asList("a", "b"));
+        assertNotEquals(fields.apply(message("{\"a\":\"\"}")), fields.apply(message("{\"a\":\"\",\"b\":\"\"}")));
+        //字段值不会串到相邻的字段
+        assertNotEquals(fields.apply(message("{\"a\":1}")), fields.apply(message("{\"b\":1}")));
+
+        ContentHashKeyFunction properties = ContentHashKeyFunction.ofProperties("bizId");
+        assertNotEquals(properties.apply(message(null)), properties.apply(message(null, "bizId", "")));
+    }
+
+    @Test
+    public void invalidJsonFallsBackToBody() {
+        ContentHashKeyFunction fields = ContentHashKeyFunction.ofJsonFields(Arrays.asList("orderId"));
+        assertEquals(ContentHashKeyFunction.ofBody().apply(message("not json")), fields.apply(message("not json")));
+        assertNotEquals(fields.apply(message("not json")), fields.apply(message("not json either")));
+    }
+
+    @Test
+    public void propertiesMixedWithBody() {
+        ContentHashKeyFunction function = ContentHashKeyFunction.ofBody("bizId");
+        assertEquals(function.apply(message("x", "bizId", "1")), function.apply(message("x", "bizId", "1", "other", "y")));
+        assertNotEquals(function.apply(message("x", "bizId", "1")), function.apply(message("x", "bizId", "2")));
+        //只哈希属性时不读消息体
+        ContentHashKeyFunction properties = ContentHashKeyFunction.ofProperties("bizId");
+        assertEquals(properties.apply(message("x", "bizId", "1")), properties.apply(message("y", "bizId", "1")));
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DedupConcurrentListenerTest {
+
+    private static class CountingListener extends DedupConcurrentListener {
+        private final AtomicInteger handled = new AtomicInteger();
+
+        CountingListener(DedupConfig dedupConfig) {
+            super(dedupConfig);
+        }
+
+        @Override
+        protected boolean doHandleMsg(MessageExt messageExt) {
+            handled.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static class FunctionListener extends DedupConcurrentListener {
+        private final Predicate<MessageExt> handler;
+
+        FunctionListener(DedupConfig dedupConfig, Predicate<MessageExt> handler) {
+            super(dedupConfig);
+            this.handler = handler;
+        }
+
+        @Override
+        protected boolean doHandleMsg(MessageExt messageExt) {
+            return handler.test(messageExt);
+        }
+    }
+
+    private static ConsumeConcurrentlyContext context() {
+        return new ConsumeConcurrentlyContext(new MessageQueue("topic", "broker", 0));
+    }
+
+    @Test
+    public void batchDedupSkipsDuplicates() {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", new MemoryPersist());
+        dedupConfig.setBatchDedup(true);
+        CountingListener listener = new CountingListener(dedupConfig);
+
+        List<MessageExt> msgs = Arrays.asList(message("topic", "k1"), message("topic", "k2"), message("topic", "k1"));
+        ConsumeConcurrentlyContext context = context();
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, listener.consumeMessage(msgs, context));
+        assertEquals(2, listener.handled.get());
+    }
+
+    @Test
+    public void batchClaimFailureRetriesWholeBatch() {
+        MemoryPersist persist = new MemoryPersist() {
+            @Override
+            public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+                throw new IllegalStateException("store down");
+            }
+        };
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        dedupConfig.setBatchDedup(true);
+        CountingListener listener = new CountingListener(dedupConfig);
+
+        ConsumeConcurrentlyContext context = context();
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, listener.consumeMessage(Arrays.asList(message("topic", "k1"), message("topic", "k2")), context));
+        assertEquals(-1, context.getAckIndex());
+        assertEquals(0, listener.handled.get());
+    }
+
+    @Test
+    public void parallelConsumeWithAckPrefix() throws Exception {
+        MemoryPersist persist = new MemoryPersist();
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        dedupConfig.enableParallelConsume(executor);
+        //4条消息都在消费中才返回，证明是并行消费的
+        CountDownLatch allStarted = new CountDownLatch(4);
+        AtomicInteger handled = new AtomicInteger();
+        FunctionListener listener = new FunctionListener(dedupConfig, m -> {
+            handled.incrementAndGet();
+            allStarted.countDown();
+            try {
+                assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return !"msgId-k1".equals(m.getMsgId());
+        });
+
+        try {
+            List<MessageExt> msgs = Arrays.asList(message("topic", "k0"), message("topic", "k1"), message("topic", "k2"), message("topic", "k3"));
+            ConsumeConcurrentlyContext context = context();
+            assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, listener.consumeMessage(msgs, context));
+            //最长的连续成功前缀
+            assertEquals(0, context.getAckIndex());
+            assertEquals(4, handled.get());
+
+            //重发k1~k3，前缀之后消费成功的直接幂等掉
+            FunctionListener retry = new FunctionListener(dedupConfig, m -> handled.incrementAndGet() > 0);
+            ConsumeConcurrentlyContext retryContext = context();
+            retry.consumeMessage(msgs.subList(1, 4), retryContext);
+            assertEquals(5, handled.get());
+            assertEquals(MemoryPersist.CONSUME_STATUS_CONSUMED, persist.get(new DedupElement("app", "topic", "", "k1")));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DedupConfigTest {
+
+    //只实现了必须的方法，不支持续期
+    private static IPersist persistWithoutRenewal() {
+        MemoryPersist memoryPersist = new MemoryPersist();
+        return new IPersist() {
+            @Override
+            public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+                return memoryPersist.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+            }
+
+            @Override
+            public void delete(DedupElement dedupElement) {
+                memoryPersist.delete(dedupElement);
+            }
+
+            @Override
+            public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+                memoryPersist.markConsumed(dedupElement, dedupRecordReserveMinutes);
+            }
+
+            @Override
+            public String get(DedupElement dedupElement) {
+                return memoryPersist.get(dedupElement);
+            }
+        };
+    }
+
+    @Test
+    public void leaseRenewalWithSupportedPersist() {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", new MemoryPersist());
+        dedupConfig.enableLeaseRenewal(3000);
+        assertNotNull(dedupConfig.getLeaseRenewer());
+        dedupConfig.getLeaseRenewer().shutdown();
+    }
+
+    @Test
+    public void leaseRenewalFailFastWithoutSupport() {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persistWithoutRenewal());
+        try {
+            dedupConfig.enableLeaseRenewal(3000);
+            fail("should fail fast");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("lease renewal"));
+        }
+        assertNull(dedupConfig.getLeaseRenewer());
+    }
+
+    @Test
+    public void policyPersistWithoutRenewalRejected() {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", new MemoryPersist());
+        dedupConfig.enableLeaseRenewal(3000);
+        try {
+            dedupConfig.setDedupPolicy("topic", DedupPolicy.consumeLater(60 * 1000, 60, persistWithoutRenewal()));
+            fail("should fail fast");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("lease renewal"));
+        } finally {
+            dedupConfig.getLeaseRenewer().shutdown();
+        }
+    }
+
+    @Test
+    public void resolvePolicyByTopicAndTag() {
+        IPersist orderPersist = new MemoryPersist();
+        DedupConfig dedupConfig = DedupConfig.disableDupConsumeConfig("app");
+        assertFalse(dedupConfig.isDedupEnabled());
+
+        DedupPolicy topicPolicy = DedupPolicy.consumeLater(60 * 1000, 60, orderPersist);
+        DedupPolicy tagPolicy = DedupPolicy.disable();
+        dedupConfig.setDedupPolicy("order", topicPolicy);
+        dedupConfig.setDedupPolicy("order", "log", tagPolicy);
+        assertTrue(dedupConfig.isDedupEnabled());
+
+        //精确匹配TAG，其次TOPIC下所有TAG，都没有返回null
+        assertSame(tagPolicy, dedupConfig.resolveDedupPolicy("order", "log"));
+        assertSame(topicPolicy, dedupConfig.resolveDedupPolicy("order", "pay"));
+        assertSame(topicPolicy, dedupConfig.resolveDedupPolicy("order", ""));
+        assertNull(dedupConfig.resolveDedupPolicy("other", "log"));
+
+        assertEquals(1, dedupConfig.getAllPersists().size());
+        assertSame(orderPersist, dedupConfig.getAllPersists().iterator().next());
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.TestMessages;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class DedupOrderlyListenerTest {
+
+    private static class RecordingListener extends DedupOrderlyListener {
+        private final List<String> handled = new ArrayList<>();
+        private final Set<String> failing = new HashSet<>();
+
+        RecordingListener(DedupConfig dedupConfig) {
+            super(dedupConfig);
+        }
+
+        @Override
+        protected boolean doHandleMsg(MessageExt messageExt) {
+            handled.add(messageExt.getMsgId());
+            return !failing.contains(messageExt.getMsgId());
+        }
+    }
+
+    private static MessageExt message(String uniqKey, long queueOffset) {
+        MessageExt messageExt = TestMessages.message("topic", uniqKey);
+        messageExt.setQueueOffset(queueOffset);
+        return messageExt;
+    }
+
+    @Test
+    public void skipConsumedAfterSuspend() {
+        RecordingListener listener = new RecordingListener(DedupConfig.enableDedupConsumeConfig("app", new MemoryPersist()));
+        ConsumeOrderlyContext context = new ConsumeOrderlyContext(new MessageQueue("topic", "broker", 0));
+        List<MessageExt> msgs = Arrays.asList(message("k1", 0), message("k2", 1));
+
+        listener.failing.add("msgId-k2");
+        assertEquals(ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT, listener.consumeMessage(msgs, context));
+        listener.failing.clear();
+        assertEquals(ConsumeOrderlyStatus.SUCCESS, listener.consumeMessage(msgs, context));
+        assertEquals(Arrays.asList("msgId-k1", "msgId-k2", "msgId-k2"), listener.handled);
+    }
+
+    @Test
+    public void pruneExpiredConsumedOffsets() {
+        RecordingListener listener = new RecordingListener(DedupConfig.enableDedupConsumeConfig("app", new MemoryPersist()));
+        for (int queueId = 0; queueId < 4; queueId++) {
+            ConsumeOrderlyContext context = new ConsumeOrderlyContext(new MessageQueue("topic", "broker", queueId));
+            listener.consumeMessage(Arrays.asList(message("k" + queueId, 0)), context);
+        }
+        assertEquals(4, listener.getConsumedOffsetCount());
+
+        listener.pruneConsumedOffsets(System.currentTimeMillis());
+        assertEquals(4, listener.getConsumedOffsetCount());
+        //已经被重平衡走的队列不再更新，过期后被清理
+        listener.pruneConsumedOffsets(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(11));
+        assertEquals(0, listener.getConsumedOffsetCount());
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.jaskey.rocketmq.core;
+
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import com.github.jaskey.rocketmq.strategy.DedupConsumeStrategy;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LeaseRenewerTest {
+
+    @Test
+    public void renewWhileConsuming() {
+        MemoryPersist persist = new MemoryPersist();
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        dedupConfig.enableLeaseRenewal(60);
+        LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+        DedupConsumeStrategy strategy = new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+        DedupElement dedupElement = new DedupElement("app", "topic", "", "k1");
+        try {
+            //消费耗时远超过租期，期间重复的消息始终是消费中
+            assertTrue(strategy.invoke(m -> {
+                assertEquals(1, leaseRenewer.getInFlightCount());
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        Thread.sleep(30);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    assertEquals(ClaimResult.CONSUMING, persist.claim(dedupElement, 60));
+                }
+                return true;
+            }, message("topic", "k1")));
+            assertEquals(0, leaseRenewer.getInFlightCount());
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(dedupElement));
+
+            //消费失败同样注销，记录被删除
+            assertFalse(strategy.invoke(m -> false, message("topic", "k2")));
+            assertEquals(0, leaseRenewer.getInFlightCount());
+        } finally {
+            leaseRenewer.shutdown();
+        }
+    }
+
+    @Test
+    public void renewUntilWriteBehindFlushed() throws Exception {
+        CountDownLatch flushBlocked = new CountDownLatch(1);
+        AtomicInteger renewed = new AtomicInteger();
+        MemoryPersist delegate = new MemoryPersist() {
+            @Override
+            public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+                try {
+                    flushBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+            }
+
+            @Override
+            public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+                renewed.addAndGet(dedupElements.size());
+                super.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+            }
+        };
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", delegate);
+        dedupConfig.enableWriteBehind(100, 10, 10);
+        dedupConfig.enableLeaseRenewal(30);
+        IPersist persist = dedupConfig.getPersist();
+        LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+        DedupElement dedupElement = new DedupElement("app", "topic", "", "k1");
+        try {
+            persist.claim(dedupElement, 30);
+            leaseRenewer.register(persist, dedupElement);
+            persist.markConsumed(dedupElement, 10);
+            leaseRenewer.unregister(persist, dedupElement);
+            assertEquals(0, leaseRenewer.getInFlightCount());
+
+            //写入完成前，存储中的消费中记录一直续期，不会过期
+            Thread.sleep(200);
+            assertTrue(renewed.get() > 0);
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMING, delegate.get(dedupElement));
+
+            flushBlocked.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (leaseRenewer.getPendingWriteCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, leaseRenewer.getPendingWriteCount());
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, delegate.get(dedupElement));
+        } finally {
+            flushBlocked.countDown();
+            leaseRenewer.shutdown();
+            persist.shutdown();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.jaskey.rocketmq.core;
+
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 不去重时DedupConcurrentListener本身不应该有分配（除去用户代码），用线程分配字节数检查
+ * 注：INFO日志关闭（见simplelogger.properties），否则日志本身会分配
+ */
+public class NormalConsumeAllocationTest {
+
+    private static final int WARMUP_ITERATIONS = 50000;
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void noAllocationWithoutDedup() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        for (int batchSize : new int[]{1, 32}) {
+            DedupConcurrentListener listener = new DedupConcurrentListener(DedupConfig.disableDupConsumeConfig("app")) {
+                @Override
+                protected boolean doHandleMsg(MessageExt messageExt) {
+                    return true;
+                }
+            };
+            List<MessageExt> msgs = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                MessageExt messageExt = new MessageExt();
+                messageExt.setTopic("topic");
+                msgs.add(messageExt);
+            }
+            ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(new MessageQueue("topic", "broker", 0));
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                listener.consumeMessage(msgs, context);
+            }
+            long threadId = Thread.currentThread().getId();
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                listener.consumeMessage(msgs, context);
+            }
+            long bytesPerCall = (allocationBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+            assertTrue("batchSize=" + batchSize + " allocates " + bytesPerCall + " bytes per consumeMessage", bytesPerCall < 16);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.jaskey.rocketmq.filter;
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DedupPreFilterTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    @Test
+    public void noFalseNegative() {
+        DedupPreFilter preFilter = new DedupPreFilter(10000, 0.01, 60 * 1000);
+        for (int i = 0; i < 10000; i++) {
+            preFilter.mightContainAndPut(element("k" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(preFilter.mightContainAndPut(element("k" + i)));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateNearExpected() {
+        DedupPreFilter preFilter = new DedupPreFilter(10000, 0.01, 60 * 1000);
+        for (int i = 0; i < 9000; i++) {
+            preFilter.mightContainAndPut(element("k" + i));
+        }
+        //判断的同时会写入，最后1000条时已接近预计的消息数，误判率期望在1%以内，留足余量
+        long before = preFilter.getMaybeDuplicateCount();
+        for (int i = 0; i < 1000; i++) {
+            preFilter.mightContainAndPut(element("new" + i));
+        }
+        assertTrue(preFilter.getMaybeDuplicateCount() - before < 30);
+    }
+
+    @Test
+    public void keyIncludesTopicAndTag() {
+        DedupPreFilter preFilter = new DedupPreFilter(1000, 0.001, 60 * 1000);
+        assertFalse(preFilter.mightContainAndPut(new DedupElement("app", "topic", "", "k1")));
+        assertFalse(preFilter.mightContainAndPut(new DedupElement("app", "topic", "tagA", "k1")));
+        assertFalse(preFilter.mightContainAndPut(new DedupElement("app", "other", "", "k1")));
+        assertEquals(3, preFilter.getDefinitelyNewCount());
+    }
+
+    @Test
+    public void rotateKeepsPreviousWindow() throws Exception {
+        DedupPreFilter preFilter = new DedupPreFilter(1000, 0.001, 50);
+        assertFalse(preFilter.mightContainAndPut(element("k1")));
+        Thread.sleep(70);
+        //上一个窗口仍然保留
+        assertTrue(preFilter.mightContainAndPut(element("k1")));
+        assertFalse(preFilter.mightContainAndPut(element("k2")));
+        Thread.sleep(70);
+        assertTrue(preFilter.mightContainAndPut(element("k2")));
+        Thread.sleep(70);
+        Thread.sleep(70);
+        //两个窗口之后被遗忘
+        assertFalse(preFilter.mightContainAndPut(element("k1")));
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.jaskey.rocketmq.filter;
+
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HotKeyDetectorTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    @Test
+    public void countPerWindow() throws Exception {
+        HotKeyDetector detector = new HotKeyDetector(1024, 5, 50);
+        int count = 0;
+        for (int i = 0; i < 5; i++) {
+            count = detector.increment(element("hot"));
+        }
+        assertEquals(5, count);
+        assertTrue(detector.isHot(count));
+
+        //新窗口重新计数
+        Thread.sleep(80);
+        assertEquals(1, detector.increment(element("hot")));
+    }
+
+    @Test
+    public void neverUnderestimate() {
+        HotKeyDetector detector = new HotKeyDetector(64, 100, 60 * 1000);
+        for (int i = 0; i < 1000; i++) {
+            detector.increment(element("k" + i));
+        }
+        int count = 0;
+        for (int i = 0; i < 3; i++) {
+            count = detector.increment(element("k7"));
+        }
+        //宽度远小于键数时有冲突，估计值只会偏大
+        assertTrue(count >= 4);
+        assertFalse(new HotKeyDetector(1 << 16, 100, 60 * 1000).isHot(99));
+    }
+}
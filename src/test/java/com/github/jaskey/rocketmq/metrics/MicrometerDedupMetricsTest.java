@@ -0,0 +1,60 @@
+package com.github.jaskey.rocketmq.metrics;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import com.github.jaskey.rocketmq.strategy.DedupConsumeStrategy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MicrometerDedupMetricsTest {
+
+    private static double claimCount(SimpleMeterRegistry registry, String result) {
+        return registry.get("rocketmq.dedup.claim").tags("topic", "topic", "tag", "", "result", result).counter().count();
+    }
+
+    @Test
+    public void recordClaimPersistAndHandle() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", new MemoryPersist());
+        dedupConfig.enableMetrics(new MicrometerDedupMetrics(registry));
+        DedupConsumeStrategy strategy = new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+
+        strategy.invoke(m -> true, message("topic", "k1"));
+        strategy.invoke(m -> true, message("topic", "k1"));
+        strategy.invoke(m -> false, message("topic", "k2"));
+
+        assertEquals(2, claimCount(registry, "claimed"), 0);
+        assertEquals(1, claimCount(registry, "duplicate_consumed"), 0);
+        assertEquals(0, claimCount(registry, "duplicate_consuming"), 0);
+        assertEquals(1, registry.get("rocketmq.dedup.handle").tags("result", "success").timer().count());
+        assertEquals(1, registry.get("rocketmq.dedup.handle").tags("result", "fail").timer().count());
+        assertEquals(3, registry.get("rocketmq.dedup.persist").tags("operation", "claim", "result", "success").timer().count());
+        assertEquals(1, registry.get("rocketmq.dedup.persist").tags("operation", "markConsumed", "result", "success").timer().count());
+        assertEquals(1, registry.get("rocketmq.dedup.persist").tags("operation", "delete", "result", "success").timer().count());
+    }
+
+    @Test
+    public void recordPersistError() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MemoryPersist failing = new MemoryPersist() {
+            @Override
+            public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+                throw new IllegalStateException("store down");
+            }
+        };
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", failing);
+        dedupConfig.enableMetrics(new MicrometerDedupMetrics(registry));
+        try {
+            dedupConfig.getPersist().claim(new DedupElement("app", "topic", "", "k1"), 1000);
+            fail("should throw");
+        } catch (IllegalStateException e) {
+            assertEquals(1, registry.get("rocketmq.dedup.persist").tags("operation", "claim", "result", "error").timer().count());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncPersistTest {
+
+    @Test
+    public void awaitTimeout() {
+        long start = System.currentTimeMillis();
+        try {
+            AsyncPersist.await(new CompletableFuture<Void>(), 50);
+            fail("should timeout");
+        } catch (IllegalStateException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void awaitThrowsOriginalException() {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalArgumentException("store error"));
+        try {
+            AsyncPersist.await(failed.thenApply(v -> v), 1000);
+            fail("should throw");
+        } catch (IllegalArgumentException e) {
+            assertEquals("store error", e.getMessage());
+        }
+    }
+}
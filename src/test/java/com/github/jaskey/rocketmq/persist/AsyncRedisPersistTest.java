@@ -0,0 +1,134 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.apache.rocketmq.remoting.netty.NettyClientConfig;
+import org.apache.rocketmq.remoting.netty.NettyRemotingClient;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * 与RedisPersistTest相同，需要一个可以随意写入的Redis，通过-Dredis.host/-Dredis.port指定，连不上时跳过（连接失败的用例除外）
+ * 使用与生产一致的依赖：rocketmq-client自带的netty-all在classpath上
+ */
+public class AsyncRedisPersistTest {
+
+    private static JedisConnectionFactory connectionFactory;
+
+    private static StringRedisTemplate redisTemplate;
+
+    private static final String APPLICATION = "dedup-test-" + System.nanoTime();
+
+    @BeforeClass
+    public static void connect() {
+        connectionFactory = new JedisConnectionFactory(new RedisStandaloneConfiguration(System.getProperty("redis.host", "localhost"), Integer.getInteger("redis.port", 6379)));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterClass
+    public static void close() {
+        connectionFactory.destroy();
+    }
+
+    private static void assumeRedisAvailable() {
+        try {
+            redisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+        } catch (Exception e) {
+            Assume.assumeNoException("redis is not available", e);
+        }
+    }
+
+    private static DedupElement element(String key) {
+        return new DedupElement(APPLICATION, "topic", "", key);
+    }
+
+    @Test
+    public void connectFailureCompletesExceptionally() {
+        JedisConnectionFactory unreachable = new JedisConnectionFactory(new RedisStandaloneConfiguration("localhost", 1));
+        unreachable.afterPropertiesSet();
+        AsyncRedisPersist persist = new AsyncRedisPersist(new StringRedisTemplate(unreachable));
+        try {
+            AsyncPersist.await(persist.claimAsync(element("k0"), 60 * 1000), 5000);
+            fail("claim should fail");
+        } catch (RedisConnectionFailureException expected) {
+            //存储异常通过CompletionStage返回，不在消费线程上抛出
+        } finally {
+            persist.shutdown();
+            unreachable.destroy();
+        }
+    }
+
+    @Test
+    public void asyncClaimLifecycle() throws Exception {
+        assumeRedisAvailable();
+        AsyncRedisPersist persist = new AsyncRedisPersist(redisTemplate);
+        try {
+            assertEquals(ClaimResult.CLAIMED, persist.claimAsync(element("k1"), 60 * 1000).toCompletableFuture().get());
+            assertEquals(ClaimResult.CONSUMING, persist.claimAsync(element("k1"), 60 * 1000).toCompletableFuture().get());
+            persist.markConsumedAsync(element("k1"), 1).toCompletableFuture().get();
+            //与RedisPersist的记录互通
+            assertEquals(ClaimResult.CONSUMED, new RedisPersist(redisTemplate).claim(element("k1"), 60 * 1000));
+            persist.deleteAsync(element("k1")).toCompletableFuture().get();
+            assertNull(persist.getAsync(element("k1")).toCompletableFuture().get());
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void batchClaimAsync() throws Exception {
+        assumeRedisAvailable();
+        AsyncRedisPersist persist = new AsyncRedisPersist(redisTemplate);
+        try {
+            persist.markConsumed(element("b-consumed"), 1);
+            assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.CONSUMED, ClaimResult.CONSUMING),
+                    persist.batchClaimAsync(Arrays.asList(element("b1"), element("b-consumed"), element("b1")), 60 * 1000).toCompletableFuture().get());
+            persist.batchMarkConsumedAsync(Arrays.asList(element("b1")), 1).toCompletableFuture().get();
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("b1")));
+            persist.batchDeleteAsync(Arrays.asList(element("b1"), element("b-consumed"))).toCompletableFuture().get();
+            assertEquals(Arrays.asList(null, null), persist.batchGet(Arrays.asList(element("b1"), element("b-consumed"))));
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentClaimsWithRocketMQClientStarted() throws Exception {
+        assumeRedisAvailable();
+        //RocketMQ客户端的netty（netty-all）在同一个进程中运行
+        NettyRemotingClient remotingClient = new NettyRemotingClient(new NettyClientConfig());
+        remotingClient.start();
+        AsyncRedisPersist persist = new AsyncRedisPersist(redisTemplate);
+        try {
+            List<CompletableFuture<ClaimResult>> futures = new ArrayList<>();
+            List<DedupElement> elements = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                elements.add(element("p" + i));
+                futures.add(persist.claimAsync(elements.get(i), 60 * 1000).toCompletableFuture());
+            }
+            for (CompletableFuture<ClaimResult> future : futures) {
+                assertEquals(ClaimResult.CLAIMED, future.get());
+            }
+            persist.batchDelete(elements);
+        } finally {
+            persist.shutdown();
+            remotingClient.shutdown();
+        }
+    }
+}
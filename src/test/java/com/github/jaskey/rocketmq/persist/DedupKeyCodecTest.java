@@ -0,0 +1,36 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class DedupKeyCodecTest {
+
+    @Test
+    public void encodeSameAsStringKey() {
+        DedupKeyCodec codec = new DedupKeyCodec();
+        assertEquals("MSGDEDUP:app:topic:k1", new String(codec.encode(new DedupElement("app", "topic", "", "k1")), StandardCharsets.UTF_8));
+        assertEquals("MSGDEDUP:app:topic:tagA:k1", new String(codec.encode(new DedupElement("app", "topic", "tagA", "k1")), StandardCharsets.UTF_8));
+        assertEquals("MSGDEDUP:app:topic:tagA:中文", new String(codec.encode(new DedupElement("app", "topic", "tagA", "中文")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void decodeEncodedKey() {
+        DedupKeyCodec codec = new DedupKeyCodec();
+        DedupElement dedupElement = new DedupElement("app", "topic", "tagA", "k1");
+        assertEquals(dedupElement, codec.decode(codec.encode(dedupElement)));
+    }
+
+    @Test
+    public void prefixCacheBounded() {
+        DedupKeyCodec codec = new DedupKeyCodec();
+        for (int i = 0; i < 10000; i++) {
+            DedupElement dedupElement = new DedupElement("app", "topic", "tag" + i, "k1");
+            //超过上限后不再缓存，编码结果不变
+            assertEquals("MSGDEDUP:app:topic:tag" + i + ":k1", new String(codec.encode(dedupElement), StandardCharsets.UTF_8));
+        }
+        assertEquals(4096, codec.getCachedPrefixCount());
+    }
+}
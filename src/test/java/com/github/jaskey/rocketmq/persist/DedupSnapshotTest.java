@@ -0,0 +1,107 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 使用H2上的JDBCPersit测试快照的导出/导入
+ */
+public class DedupSnapshotTest {
+
+    private JDBCPersit from;
+
+    private JDBCPersit to;
+
+    @Before
+    public void setUp() throws Exception {
+        from = new JDBCPersit(JDBCPersitTest.newJdbcTemplate());
+        to = new JDBCPersit(JDBCPersitTest.newJdbcTemplate());
+    }
+
+    private static DedupElement element(String topic, String key) {
+        return new DedupElement("app", topic, "", key);
+    }
+
+    private byte[] export() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DedupSnapshot.export(from, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void exportAndLoad() throws Exception {
+        //超过一页，验证按键分页导出
+        for (int i = 0; i < 2500; i++) {
+            from.markConsumed(element(i % 2 == 0 ? "t1" : "t2", "k" + i), 10);
+        }
+        from.claim(element("t1", "consuming"), 60 * 1000);
+        from.claim(element("t1", "expired"), 1);
+        Thread.sleep(5);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2501, DedupSnapshot.export(from, out));
+        assertEquals(2501, DedupSnapshot.load(new ByteArrayInputStream(out.toByteArray()), to, 300));
+
+        for (int i = 0; i < 2500; i++) {
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, to.get(element(i % 2 == 0 ? "t1" : "t2", "k" + i)));
+        }
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, to.get(element("t1", "consuming")));
+        assertNull(to.get(element("t1", "expired")));
+    }
+
+    @Test
+    public void existingRecordsNotOverwritten() throws Exception {
+        from.claim(element("t1", "k1"), 60 * 1000);
+        from.markConsumed(element("t1", "k2"), 10);
+        to.markConsumed(element("t1", "k1"), 10);
+
+        assertEquals(1, DedupSnapshot.copy(from, to));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, to.get(element("t1", "k1")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, to.get(element("t1", "k2")));
+    }
+
+    @Test
+    public void rawRecordsSkippedByJdbc() {
+        long expireTime = System.currentTimeMillis() + 60 * 1000;
+        List<DedupRecord> records = new ArrayList<>();
+        records.add(new DedupRecord(null, "hashed".getBytes(StandardCharsets.UTF_8), IPersist.CONSUME_STATUS_CONSUMED, expireTime));
+        records.add(new DedupRecord(element("t1", "k1"), IPersist.CONSUME_STATUS_CONSUMED, expireTime));
+        records.add(new DedupRecord(element("t1", "k2"), IPersist.CONSUME_STATUS_CONSUMED, System.currentTimeMillis() - 1));
+        assertEquals(1, to.importRecords(records));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, to.get(element("t1", "k1")));
+        assertNull(to.get(element("t1", "k2")));
+    }
+
+    @Test
+    public void rejectTruncatedSnapshot() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            from.markConsumed(element("t1", "k" + i), 10);
+        }
+        byte[] snapshot = export();
+        try {
+            DedupSnapshot.load(new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length - 20)), to, 100);
+            fail("truncated snapshot should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+        try {
+            DedupSnapshot.load(new ByteArrayInputStream("garbage!".getBytes(StandardCharsets.UTF_8)), to, 100);
+            fail("not a snapshot");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a dedup snapshot"));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.jaskey.rocketmq.persist;
+
+import com.github.jaskey.rocketmq.filter.HotKeyDetector;
+import com.github.jaskey.rocketmq.metrics.DedupMetrics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HotKeyPersistTest {
+
+    private final AtomicInteger remoteClaims = new AtomicInteger();
+
+    private final MemoryPersist remote = new MemoryPersist() {
+        @Override
+        public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            remoteClaims.incrementAndGet();
+            return super.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        }
+    };
+
+    private final List<String> alerts = new ArrayList<>();
+
+    private final DedupMetrics metrics = new DedupMetrics() {
+        @Override
+        public void recordClaimResult(String topic, String tag, ClaimResult claimResult) {
+        }
+
+        @Override
+        public void recordHandleLatency(String topic, String tag, long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordPersistLatency(String operation, long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordHotKey(String topic, String tag, String msgUniqKey, int count) {
+            alerts.add(msgUniqKey);
+        }
+    };
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    @Test
+    public void hotConsumedKeyAnsweredLocally() {
+        HotKeyPersist persist = new HotKeyPersist(remote, 3, 60 * 1000, metrics);
+        remote.markConsumed(element("hot"), 10);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ClaimResult.CONSUMED, persist.claim(element("hot"), 60 * 1000));
+        }
+        //达到阈值后只需要一次远端抢占拿到已消费状态
+        assertEquals(3, remoteClaims.get());
+        assertEquals(97, persist.getLocalAnswerCount());
+        assertEquals(1, persist.getHotKeyCount());
+        //同一个窗口只告警一次
+        assertEquals(1, alerts.size());
+        assertEquals("hot", alerts.get(0));
+    }
+
+    @Test
+    public void coldKeyAlwaysRemote() {
+        HotKeyPersist persist = new HotKeyPersist(remote, 3, 60 * 1000, metrics);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ClaimResult.CLAIMED, persist.claim(element("k" + i), 60 * 1000));
+        }
+        assertEquals(100, remoteClaims.get());
+        assertEquals(0, persist.getHotKeyCount());
+        assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    public void ownClaimAnsweredConsumingUntilFinished() {
+        HotKeyPersist persist = new HotKeyPersist(remote, 2, 60 * 1000, metrics);
+        persist.claim(element("hot"), 60 * 1000);
+        assertEquals(ClaimResult.CONSUMING, persist.claim(element("hot"), 60 * 1000));
+        persist.delete(element("hot"));
+        //本进程消费失败删除后，热点键的下一次抢占必须访问远端存储
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("hot"), 60 * 1000));
+        persist.markConsumed(element("hot"), 10);
+        int claims = remoteClaims.get();
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("hot"), 60 * 1000));
+        assertEquals(claims, remoteClaims.get());
+    }
+
+    @Test
+    public void remoteConsumingHeldBriefly() throws Exception {
+        HotKeyPersist persist = new HotKeyPersist(remote, new HotKeyDetector(64, 2, 60 * 1000), metrics, 10, 60 * 1000, 50);
+        remote.claim(element("hot"), 60 * 1000);
+        persist.claim(element("hot"), 60 * 1000);
+        persist.claim(element("hot"), 60 * 1000);
+        int claims = remoteClaims.get();
+        assertEquals(ClaimResult.CONSUMING, persist.claim(element("hot"), 60 * 1000));
+        assertEquals(claims, remoteClaims.get());
+
+        //其他消费者消费失败，超过本地保留时间后重新访问远端
+        remote.delete(element("hot"));
+        Thread.sleep(80);
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("hot"), 60 * 1000));
+    }
+
+    @Test
+    public void boundedHotKeys() {
+        HotKeyPersist persist = new HotKeyPersist(remote, new HotKeyDetector(4096, 2, 60 * 1000), metrics, 5, 60 * 1000, 1000);
+        for (int i = 0; i < 20; i++) {
+            remote.markConsumed(element("k" + i), 10);
+            persist.claim(element("k" + i), 60 * 1000);
+            persist.claim(element("k" + i), 60 * 1000);
+        }
+        assertEquals(5, persist.getHotKeyCount());
+        //没有记录本地状态的热点键照常访问远端
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k19"), 60 * 1000));
+    }
+}
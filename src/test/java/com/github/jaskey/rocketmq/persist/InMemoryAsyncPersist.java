@@ -0,0 +1,70 @@
+package com.github.jaskey.rocketmq.persist;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 测试用的异步存储，基于MemoryPersist，异步调用立即完成
+ */
+public class InMemoryAsyncPersist implements AsyncPersist {
+
+    private final MemoryPersist memoryPersist = new MemoryPersist();
+
+    @Override
+    public CompletionStage<ClaimResult> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return CompletableFuture.completedFuture(claim(dedupElement, dedupProcessingExpireMilliSeconds));
+    }
+
+    @Override
+    public CompletionStage<Void> markConsumedAsync(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        markConsumed(dedupElement, dedupRecordReserveMinutes);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<Void> deleteAsync(DedupElement dedupElement) {
+        delete(dedupElement);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<String> getAsync(DedupElement dedupElement) {
+        return CompletableFuture.completedFuture(get(dedupElement));
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return memoryPersist.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return memoryPersist.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        memoryPersist.delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        memoryPersist.markConsumed(dedupElement, dedupRecordReserveMinutes);
+    }
+
+    @Override
+    public String get(DedupElement dedupElement) {
+        return memoryPersist.get(dedupElement);
+    }
+
+    @Override
+    public boolean supportsRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        memoryPersist.batchRenewConsuming(dedupElements, dedupProcessingExpireMilliSeconds);
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.Assert.assertEquals;
+
+public class JDBCDedupReaperTest {
+
+    @Test
+    public void reapExpiredInChunks() throws Exception {
+        JdbcTemplate jdbcTemplate = JDBCPersitTest.newJdbcTemplate();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 25; i++) {
+            jdbcTemplate.update("INSERT INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values (?, ?, ?, ?, ?, ?)",
+                    "app", "topic", "", "expired" + i, IPersist.CONSUME_STATUS_CONSUMED, now - 1000);
+        }
+        for (int i = 0; i < 5; i++) {
+            jdbcTemplate.update("INSERT INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values (?, ?, ?, ?, ?, ?)",
+                    "app", "topic", "", "live" + i, IPersist.CONSUME_STATUS_CONSUMED, now + 60 * 1000);
+        }
+
+        JDBCDedupReaper reaper = new JDBCDedupReaper(jdbcTemplate, 10, 100000, 60);
+        assertEquals(25, reaper.reapOnce());
+        assertEquals(25, reaper.getDeletedCount());
+        assertEquals(5, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM t_rocketmq_dedup", Integer.class));
+        assertEquals(0, reaper.reapOnce());
+        reaper.shutdown();
+    }
+}
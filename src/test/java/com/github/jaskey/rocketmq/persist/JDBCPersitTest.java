@@ -0,0 +1,169 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 使用H2（MySQL模式）测试JDBCPersit，建表语句与src/main/resources/sql/t_rocketmq_dedup.sql一致
+ */
+public class JDBCPersitTest {
+
+    private static final AtomicInteger DB_INDEX = new AtomicInteger();
+
+    private JdbcTemplate jdbcTemplate;
+
+    private JDBCPersit persist;
+
+    @Before
+    public void setUp() throws Exception {
+        jdbcTemplate = newJdbcTemplate();
+        persist = new JDBCPersit(jdbcTemplate);
+    }
+
+    static JdbcTemplate newJdbcTemplate() throws Exception {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:dedup" + DB_INDEX.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        dataSource.setDriverClassName("org.h2.Driver");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        try (InputStream in = JDBCPersitTest.class.getResourceAsStream("/sql/t_rocketmq_dedup.sql");
+             Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name())) {
+            StringBuilder ddl = new StringBuilder();
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                if (!line.startsWith("--")) {
+                    ddl.append(line).append('\n');
+                }
+            }
+            jdbcTemplate.execute(ddl.toString());
+        }
+        return jdbcTemplate;
+    }
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private void insertRow(DedupElement dedupElement, String status, long expireTime) {
+        jdbcTemplate.update("INSERT INTO t_rocketmq_dedup(application_name, topic, tag, msg_uniq_key, status, expire_time) values (?, ?, ?, ?, ?, ?)",
+                dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getMsgUniqKey(), status, expireTime);
+    }
+
+
+    @Test
+    public void claimNewKey() {
+        DedupElement dedupElement = element("k1");
+        assertEquals(ClaimResult.CLAIMED, persist.claim(dedupElement, 60 * 1000));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, persist.get(dedupElement));
+
+        //再次抢占返回已有记录的状态
+        assertEquals(ClaimResult.CONSUMING, persist.claim(dedupElement, 60 * 1000));
+        persist.markConsumed(dedupElement, 10);
+        assertEquals(ClaimResult.CONSUMED, persist.claim(dedupElement, 60 * 1000));
+    }
+
+    @Test
+    public void takeOverExpiredRow() {
+        DedupElement dedupElement = element("k1");
+        insertRow(dedupElement, IPersist.CONSUME_STATUS_CONSUMING, System.currentTimeMillis() - 1000);
+        assertNull(persist.get(dedupElement));
+
+        assertEquals(ClaimResult.CLAIMED, persist.claim(dedupElement, 60 * 1000));
+        long expireTime = jdbcTemplate.queryForObject("SELECT expire_time FROM t_rocketmq_dedup WHERE msg_uniq_key = ?", Long.class, "k1");
+        assertTrue(expireTime > System.currentTimeMillis());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, persist.get(dedupElement));
+
+        //已消费的记录过期后同样可以被接管
+        persist.markConsumed(dedupElement, 10);
+        jdbcTemplate.update("UPDATE t_rocketmq_dedup SET expire_time = ?", System.currentTimeMillis() - 1000);
+        assertEquals(ClaimResult.CLAIMED, persist.claim(dedupElement, 60 * 1000));
+    }
+
+    @Test
+    public void batchClaimWithExistingKeys() {
+        long now = System.currentTimeMillis();
+        insertRow(element("consumed"), IPersist.CONSUME_STATUS_CONSUMED, now + 60 * 1000);
+        insertRow(element("consuming"), IPersist.CONSUME_STATUS_CONSUMING, now + 60 * 1000);
+        insertRow(element("expired"), IPersist.CONSUME_STATUS_CONSUMED, now - 1000);
+
+        List<ClaimResult> res = persist.batchClaim(Arrays.asList(element("new1"), element("consumed"), element("consuming"), element("expired"), element("new1"), element("new2")), 60 * 1000);
+        assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.CONSUMED, ClaimResult.CONSUMING, ClaimResult.CLAIMED, ClaimResult.CONSUMING, ClaimResult.CLAIMED), res);
+        assertEquals(Arrays.asList(IPersist.CONSUME_STATUS_CONSUMING, IPersist.CONSUME_STATUS_CONSUMED, IPersist.CONSUME_STATUS_CONSUMING, IPersist.CONSUME_STATUS_CONSUMING, IPersist.CONSUME_STATUS_CONSUMING),
+                persist.batchGet(Arrays.asList(element("new1"), element("consumed"), element("consuming"), element("expired"), element("new2"))));
+    }
+
+    @Test
+    public void tooLongValuesNotDeduped() {
+        String maxKey = repeat('k', JDBCPersit.MAX_MSG_UNIQ_KEY_LENGTH);
+        DedupElement longKey = element(maxKey + "1");
+        DedupElement longTag = new DedupElement("app", "topic", repeat('t', JDBCPersit.MAX_TAG_LENGTH + 1), "k1");
+
+        //不截断写入，不去重
+        assertEquals(ClaimResult.UNKNOWN, persist.claim(longKey, 60 * 1000));
+        assertEquals(ClaimResult.UNKNOWN, persist.claim(longKey, 60 * 1000));
+        assertTrue(persist.setConsumingIfNX(longTag, 60 * 1000));
+        persist.markConsumed(longKey, 10);
+        persist.markConsumed(longTag, 10);
+        assertEquals(0, rowCount());
+
+        //截断后相同的去重键不受影响
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element(maxKey), 60 * 1000));
+        assertEquals(1, rowCount());
+    }
+
+    @Test
+    public void batchClaimSkipsTooLongValues() {
+        DedupElement longKey = element(repeat('k', JDBCPersit.MAX_MSG_UNIQ_KEY_LENGTH + 1));
+        assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.UNKNOWN, ClaimResult.CLAIMED),
+                persist.batchClaim(Arrays.asList(element("k1"), longKey, element("k2")), 60 * 1000));
+        assertEquals(Arrays.asList(ClaimResult.UNKNOWN), persist.batchClaim(Arrays.asList(longKey), 60 * 1000));
+        assertTrue(persist.batchSetConsumingIfNX(Arrays.asList(longKey), 60 * 1000)[0]);
+
+        persist.batchMarkConsumed(Arrays.asList(element("k1"), longKey, element("k2")), 10);
+        assertEquals(Arrays.asList(IPersist.CONSUME_STATUS_CONSUMED, null, IPersist.CONSUME_STATUS_CONSUMED),
+                persist.batchGet(Arrays.asList(element("k1"), longKey, element("k2"))));
+        assertEquals(2, rowCount());
+    }
+
+    private int rowCount() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM t_rocketmq_dedup", Integer.class);
+    }
+
+    private static String repeat(char c, int times) {
+        StringBuilder sb = new StringBuilder(times);
+        for (int i = 0; i < times; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void batchClaimWithConcurrentInsert() {
+        //模拟查询和多行插入之间，其他消费者抢先插入了其中一个去重键
+        JdbcTemplate racing = new JdbcTemplate(jdbcTemplate.getDataSource()) {
+            @Override
+            public int update(String sql, Object... args) {
+                if (sql.startsWith("INSERT IGNORE") && args.length > 6) {
+                    insertRow(element("k2"), IPersist.CONSUME_STATUS_CONSUMING, System.currentTimeMillis() + 30 * 1000);
+                }
+                return super.update(sql, args);
+            }
+        };
+        JDBCPersit racingPersist = new JDBCPersit(racing);
+
+        List<ClaimResult> res = racingPersist.batchClaim(Arrays.asList(element("k1"), element("k2"), element("k3")), 60 * 1000);
+        //自己插入的仍然抢占成功，不会一直处于消费中
+        assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.CONSUMING, ClaimResult.CLAIMED), res);
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedLogPersistTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "tag", key);
+    }
+
+    @Test
+    public void recoverConsumedAfterRestart() throws Exception {
+        String path = folder.newFile("dedup.log").getPath();
+        MappedLogPersist persist = new MappedLogPersist(path, 4096);
+        persist.claim(element("consumed"), 60 * 1000);
+        persist.markConsumed(element("consumed"), 10);
+        persist.markConsumed(element("deleted"), 10);
+        persist.delete(element("deleted"));
+        persist.claim(element("consuming"), 60 * 1000);
+        persist.shutdown();
+
+        MappedLogPersist reopened = new MappedLogPersist(path, 4096);
+        assertEquals(ClaimResult.CONSUMED, reopened.claim(element("consumed"), 60 * 1000));
+        assertNull(reopened.get(element("deleted")));
+        //消费中状态只在内存中，重启后可以重新抢占
+        assertEquals(ClaimResult.CLAIMED, reopened.claim(element("consuming"), 60 * 1000));
+        reopened.shutdown();
+    }
+
+    @Test
+    public void compactWhenFull() throws Exception {
+        String path = folder.newFile("dedup.log").getPath();
+        MappedLogPersist persist = new MappedLogPersist(path, 1024);
+        //反复标记/删除同一批键，日志写满时压缩只保留存活的记录
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 5; i++) {
+                persist.markConsumed(element("k" + i), 10);
+            }
+            for (int i = 0; i < 5; i++) {
+                persist.delete(element("k" + i));
+            }
+        }
+        persist.markConsumed(element("live"), 10);
+        assertTrue(persist.getLogBytes() < 1024);
+        persist.shutdown();
+
+        MappedLogPersist reopened = new MappedLogPersist(path, 1024);
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, reopened.get(element("live")));
+        assertNull(reopened.get(element("k0")));
+        reopened.shutdown();
+    }
+
+    @Test
+    public void growWhenLiveRecordsExceedFile() throws Exception {
+        String path = folder.newFile("dedup.log").getPath();
+        MappedLogPersist persist = new MappedLogPersist(path, 256);
+        for (int i = 0; i < 200; i++) {
+            persist.markConsumed(element("k" + i), 10);
+        }
+        persist.shutdown();
+
+        MappedLogPersist reopened = new MappedLogPersist(path, 256);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, reopened.get(element("k" + i)));
+        }
+        reopened.shutdown();
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryPersistTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    @Test
+    public void claimLifecycle() {
+        MemoryPersist persist = new MemoryPersist();
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(ClaimResult.CONSUMING, persist.claim(element("k1"), 60 * 1000));
+        assertFalse(persist.setConsumingIfNX(element("k1"), 60 * 1000));
+
+        persist.markConsumed(element("k1"), 10);
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+
+        persist.delete(element("k1"));
+        assertNull(persist.get(element("k1")));
+        assertTrue(persist.setConsumingIfNX(element("k1"), 60 * 1000));
+    }
+
+    @Test
+    public void consumingExpires() throws Exception {
+        MemoryPersist persist = new MemoryPersist();
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 20));
+        Thread.sleep(40);
+        assertNull(persist.get(element("k1")));
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+    }
+
+    @Test
+    public void renewOnlyConsuming() throws Exception {
+        MemoryPersist persist = new MemoryPersist();
+        persist.claim(element("consuming"), 50);
+        persist.markConsumed(element("consumed"), 10);
+
+        persist.batchRenewConsuming(Arrays.asList(element("consuming"), element("consumed"), element("missing")), 60 * 1000);
+        Thread.sleep(80);
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, persist.get(element("consuming")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("consumed")));
+        //不存在的记录不会被续期创建
+        assertNull(persist.get(element("missing")));
+    }
+
+    @Test
+    public void batchClaimMatchesSingleClaim() {
+        MemoryPersist persist = new MemoryPersist();
+        persist.markConsumed(element("consumed"), 10);
+        assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.CONSUMED, ClaimResult.CONSUMING),
+                persist.batchClaim(Arrays.asList(element("k1"), element("consumed"), element("k1")), 60 * 1000));
+        persist.batchDelete(Collections.singletonList(element("k1")));
+        assertNull(persist.get(element("k1")));
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NearCachePersistTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static class CountingPersist extends MemoryPersist {
+        private final AtomicInteger claims = new AtomicInteger();
+
+        @Override
+        public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            claims.incrementAndGet();
+            return super.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        }
+    }
+
+    @Test
+    public void consumedAnsweredLocally() {
+        CountingPersist delegate = new CountingPersist();
+        NearCachePersist persist = new NearCachePersist(delegate, 1000, 60 * 1000);
+
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+        persist.markConsumed(element("k1"), 10);
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(1, delegate.claims.get());
+    }
+
+    @Test
+    public void cacheConsumedFromDelegate() {
+        CountingPersist delegate = new CountingPersist();
+        delegate.markConsumed(element("k1"), 10);
+        NearCachePersist persist = new NearCachePersist(delegate, 1000, 60 * 1000);
+
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(1, delegate.claims.get());
+    }
+
+    @Test
+    public void neverCacheConsuming() {
+        CountingPersist delegate = new CountingPersist();
+        NearCachePersist persist = new NearCachePersist(delegate, 1000, 60 * 1000);
+
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(ClaimResult.CONSUMING, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(2, delegate.claims.get());
+        assertEquals(0, persist.size());
+    }
+
+    @Test
+    public void deleteInvalidates() {
+        CountingPersist delegate = new CountingPersist();
+        NearCachePersist persist = new NearCachePersist(delegate, 1000, 60 * 1000);
+        persist.markConsumed(element("k1"), 10);
+
+        persist.delete(element("k1"));
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+    }
+
+    @Test
+    public void expireAndBoundedSize() throws Exception {
+        NearCachePersist persist = new NearCachePersist(new MemoryPersist(), 160, 50);
+        for (int i = 0; i < 10000; i++) {
+            persist.markConsumed(element("k" + i), 10);
+        }
+        assertTrue(persist.size() <= 160);
+
+        MemoryPersist delegate = new MemoryPersist();
+        NearCachePersist expiring = new NearCachePersist(delegate, 160, 50);
+        expiring.markConsumed(element("k1"), 10);
+        delegate.delete(element("k1"));
+        assertEquals(ClaimResult.CONSUMED, expiring.claim(element("k1"), 60 * 1000));
+        Thread.sleep(100);
+        //缓存过期后以远端存储为准
+        assertEquals(ClaimResult.CLAIMED, expiring.claim(element("k1"), 60 * 1000));
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 需要一个可以随意写入的Redis，通过-Dredis.host/-Dredis.port指定，默认localhost:6379，连不上时跳过
+ */
+public class RedisPersistTest {
+
+    private static JedisConnectionFactory connectionFactory;
+
+    private static StringRedisTemplate redisTemplate;
+
+    //每次运行使用不同的应用名，不与其他数据冲突
+    private static final String APPLICATION = "dedup-test-" + System.nanoTime();
+
+    @BeforeClass
+    public static void connect() {
+        connectionFactory = new JedisConnectionFactory(new RedisStandaloneConfiguration(System.getProperty("redis.host", "localhost"), Integer.getInteger("redis.port", 6379)));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+        try {
+            redisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+        } catch (Exception e) {
+            connectionFactory.destroy();
+            connectionFactory = null;
+            Assume.assumeNoException("redis is not available", e);
+        }
+    }
+
+    @AfterClass
+    public static void close() {
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+    }
+
+    private static DedupElement element(String key) {
+        return new DedupElement(APPLICATION, "topic", "", key);
+    }
+
+    @Test
+    public void claimReturnsExistingStatus() {
+        RedisPersist persist = new RedisPersist(redisTemplate);
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(ClaimResult.CONSUMING, persist.claim(element("k1"), 60 * 1000));
+        persist.markConsumed(element("k1"), 1);
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        persist.delete(element("k1"));
+        assertNull(persist.get(element("k1")));
+    }
+
+    @Test
+    public void claimAfterScriptFlush() {
+        RedisPersist persist = new RedisPersist(redisTemplate);
+        //Redis重启后脚本缓存丢失，EVALSHA失败时改用EVAL
+        redisTemplate.execute((RedisCallback<Void>) connection -> {
+            connection.scriptingCommands().scriptFlush();
+            return null;
+        });
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k2"), 60 * 1000));
+        persist.delete(element("k2"));
+    }
+
+    @Test
+    public void consumingExpires() throws Exception {
+        RedisPersist persist = new RedisPersist(redisTemplate);
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k3"), 50));
+        Thread.sleep(100);
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k3"), 60 * 1000));
+        persist.delete(element("k3"));
+    }
+
+    @Test
+    public void batchClaimAndRenew() throws Exception {
+        RedisPersist persist = new RedisPersist(redisTemplate);
+        persist.markConsumed(element("b-consumed"), 1);
+        assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.CONSUMED, ClaimResult.CONSUMING),
+                persist.batchClaim(Arrays.asList(element("b1"), element("b-consumed"), element("b1")), 100));
+
+        //续期只延长消费中的记录
+        persist.batchRenewConsuming(Arrays.asList(element("b1"), element("b-consumed")), 60 * 1000);
+        Thread.sleep(150);
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, persist.get(element("b1")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("b-consumed")));
+
+        persist.batchDelete(Arrays.asList(element("b1"), element("b-consumed")));
+        assertEquals(Collections.nCopies(2, (String) null), persist.batchGet(Arrays.asList(element("b1"), element("b-consumed"))));
+    }
+
+    @Test
+    public void exportAndImportRecords() {
+        RedisPersist persist = new RedisPersist(redisTemplate);
+        for (int i = 0; i < 5; i++) {
+            persist.markConsumed(element("s" + i), 1);
+        }
+        List<DedupRecord> records = new ArrayList<>();
+        //分批导出，多次使用同一个连接；Redis中可能有其他应用的记录，只保留本次写入的
+        persist.exportRecords(2, batch -> {
+            for (DedupRecord record : batch) {
+                if (APPLICATION.equals(record.getDedupElement().getApplication())) {
+                    records.add(record);
+                }
+            }
+        });
+        assertEquals(5, records.size());
+
+        persist.batchDelete(Arrays.asList(element("s0"), element("s1")));
+        //已存在的不覆盖
+        assertEquals(2, persist.importRecords(records));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("s0")));
+        for (int i = 0; i < 5; i++) {
+            persist.delete(element("s" + i));
+        }
+    }
+}
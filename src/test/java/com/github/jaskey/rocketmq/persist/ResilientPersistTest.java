@@ -0,0 +1,224 @@
+package com.github.jaskey.rocketmq.persist;
+
+import com.github.jaskey.rocketmq.persist.ResilientPersist.DegradeMode;
+import com.github.jaskey.rocketmq.persist.ResilientPersist.State;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResilientPersistTest {
+
+    //可以模拟不可用、变慢的存储
+    private static class FlakyPersist extends MemoryPersist {
+        volatile boolean down;
+        volatile long delayMilliSeconds;
+        final AtomicInteger claimCount = new AtomicInteger();
+        final AtomicInteger completedClaimCount = new AtomicInteger();
+
+        @Override
+        public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            claimCount.incrementAndGet();
+            check();
+            ClaimResult claimResult = super.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+            completedClaimCount.incrementAndGet();
+            return claimResult;
+        }
+
+        @Override
+        public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+            check();
+            super.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+
+        @Override
+        public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+            check();
+            super.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        }
+
+        //与阻塞在网络读上的存储客户端一样，不响应中断
+        private void check() {
+            long deadline = System.currentTimeMillis() + delayMilliSeconds;
+            boolean interrupted = false;
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(deadline - System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (down) {
+                throw new IllegalStateException("persist down");
+            }
+        }
+    }
+
+    private final FlakyPersist delegate = new FlakyPersist();
+
+    private ResilientPersist persist;
+
+    @After
+    public void tearDown() {
+        if (persist != null) {
+            persist.shutdown();
+        }
+    }
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private ResilientPersist resilient(DegradeMode degradeMode, int minimumCalls, long openMilliSeconds) {
+        persist = new ResilientPersist(delegate, 100, degradeMode, 50, 0.5, 0.5, minimumCalls, 10 * 1000, openMilliSeconds, 1000, 8);
+        return persist;
+    }
+
+    @Test
+    public void timeoutDegradesToConsume() {
+        ResilientPersist persist = resilient(DegradeMode.CONSUME_WITHOUT_DEDUP, 100, 1000);
+        delegate.delayMilliSeconds = 500;
+
+        long start = System.currentTimeMillis();
+        assertEquals(ClaimResult.UNKNOWN, persist.claim(element("k1"), 60 * 1000));
+        assertTrue(System.currentTimeMillis() - start < 400);
+        assertEquals(1, persist.getDegradedCallCount());
+    }
+
+    @Test
+    public void openAndRecover() throws Exception {
+        ResilientPersist persist = resilient(DegradeMode.CONSUME_WITHOUT_DEDUP, 5, 100);
+        delegate.down = true;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ClaimResult.UNKNOWN, persist.claim(element("k" + i), 60 * 1000));
+        }
+        assertEquals(State.OPEN, persist.getState());
+        assertEquals(1, persist.getOpenCount());
+
+        //熔断期间不访问存储
+        int claims = delegate.claimCount.get();
+        assertEquals(ClaimResult.UNKNOWN, persist.claim(element("k9"), 60 * 1000));
+        assertEquals(claims, delegate.claimCount.get());
+
+        //探测调用成功后恢复
+        delegate.down = false;
+        Thread.sleep(150);
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k9"), 60 * 1000));
+        assertEquals(State.CLOSED, persist.getState());
+    }
+
+    @Test
+    public void failedProbeKeepsOpen() throws Exception {
+        ResilientPersist persist = resilient(DegradeMode.CONSUME_WITHOUT_DEDUP, 5, 100);
+        delegate.down = true;
+        for (int i = 0; i < 5; i++) {
+            persist.claim(element("k" + i), 60 * 1000);
+        }
+        Thread.sleep(150);
+        int claims = delegate.claimCount.get();
+        persist.claim(element("k1"), 60 * 1000);
+        persist.claim(element("k1"), 60 * 1000);
+        //只放行了一次探测调用
+        assertEquals(claims + 1, delegate.claimCount.get());
+        assertEquals(State.OPEN, persist.getState());
+    }
+
+    @Test
+    public void localModeDedupsInProcess() {
+        ResilientPersist persist = resilient(DegradeMode.LOCAL, 100, 1000);
+        delegate.down = true;
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(ClaimResult.CONSUMING, persist.claim(element("k1"), 60 * 1000));
+        persist.delete(element("k1"));
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+    }
+
+    @Test
+    public void pauseModeThrows() {
+        ResilientPersist persist = resilient(DegradeMode.PAUSE, 100, 1000);
+        delegate.down = true;
+        try {
+            persist.claim(element("k1"), 60 * 1000);
+            fail("should pause consuming");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("unavailable"));
+        }
+    }
+
+    @Test
+    public void pauseModeReleasesLateClaim() throws Exception {
+        ResilientPersist persist = resilient(DegradeMode.PAUSE, 100, 1000);
+        delegate.delayMilliSeconds = 300;
+        try {
+            persist.claim(element("k1"), 60 * 1000);
+            fail("should pause consuming");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            persist.batchClaim(Arrays.asList(element("k2"), element("k3")), 60 * 1000);
+            fail("should pause consuming");
+        } catch (IllegalStateException expected) {
+        }
+
+        //超时的抢占之后仍然成功写入了存储，调用完成后删除
+        long deadline = System.currentTimeMillis() + 5000;
+        while (persist.getLateClaimReleasedCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(3, delegate.completedClaimCount.get());
+        assertEquals(3, persist.getLateClaimReleasedCount());
+        assertNull(delegate.get(element("k1")));
+        assertNull(delegate.get(element("k2")));
+        assertNull(delegate.get(element("k3")));
+
+        //重试的消息可以立即抢占成功，不会被当作消费中
+        delegate.delayMilliSeconds = 0;
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+    }
+
+    @Test
+    public void consumeModeKeepsLateClaim() throws Exception {
+        ResilientPersist persist = resilient(DegradeMode.CONSUME_WITHOUT_DEDUP, 100, 1000);
+        delegate.delayMilliSeconds = 300;
+        assertEquals(ClaimResult.UNKNOWN, persist.claim(element("k1"), 60 * 1000));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delegate.completedClaimCount.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(50);
+        //消息已经降级消费，由之后的标记已消费或者删除覆盖这条记录
+        assertEquals(0, persist.getLateClaimReleasedCount());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, delegate.get(element("k1")));
+    }
+
+    @Test
+    public void reconcileLocalConsumed() throws Exception {
+        ResilientPersist persist = resilient(DegradeMode.CONSUME_WITHOUT_DEDUP, 100, 1000);
+        delegate.down = true;
+        persist.markConsumed(element("k1"), 10);
+        assertEquals(1, persist.getLocalRecordCount());
+
+        //存储恢复后、补写完成前，本地已消费的记录不会被重复消费
+        delegate.down = false;
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (persist.getReconciledCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, persist.getReconciledCount());
+        assertEquals(0, persist.getLocalRecordCount());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, delegate.get(element("k1")));
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedPersistTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static Map<String, MemoryPersist> shards(String... names) {
+        Map<String, MemoryPersist> shards = new LinkedHashMap<>();
+        for (String name : names) {
+            shards.put(name, new MemoryPersist());
+        }
+        return shards;
+    }
+
+    @Test
+    public void routeIndependentOfOrder() {
+        ShardedPersist abc = new ShardedPersist(shards("a", "b", "c"));
+        ShardedPersist cba = new ShardedPersist(shards("c", "b", "a"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String shard = abc.shardOf(element("k" + i));
+            assertEquals(shard, cba.shardOf(element("k" + i)));
+            counts.merge(shard, 1, Integer::sum);
+        }
+        //虚拟节点足够多时各分片大致均匀
+        for (int count : counts.values()) {
+            assertTrue("unbalanced: " + counts, count > 600 && count < 1400);
+        }
+    }
+
+    @Test
+    public void addShardMovesFewKeys() {
+        ShardedPersist before = new ShardedPersist(shards("a", "b", "c"));
+        ShardedPersist after = new ShardedPersist(shards("a", "b", "c", "d"));
+        int moved = 0;
+        for (int i = 0; i < 4000; i++) {
+            String to = after.shardOf(element("k" + i));
+            if (!before.shardOf(element("k" + i)).equals(to)) {
+                //只会迁到新分片
+                assertEquals("d", to);
+                moved++;
+            }
+        }
+        //约1/4的键迁移
+        assertTrue("moved " + moved, moved > 600 && moved < 1400);
+    }
+
+    @Test
+    public void batchCallGroupedByShard() {
+        Map<String, AtomicInteger> batchCalls = new HashMap<>();
+        Map<String, IPersist> shards = new LinkedHashMap<>();
+        for (String name : new String[]{"a", "b", "c"}) {
+            AtomicInteger calls = new AtomicInteger();
+            batchCalls.put(name, calls);
+            shards.put(name, new MemoryPersist() {
+                @Override
+                public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+                    calls.incrementAndGet();
+                    return super.batchClaim(dedupElements, dedupProcessingExpireMilliSeconds);
+                }
+            });
+        }
+        ShardedPersist persist = new ShardedPersist(shards);
+        persist.markConsumed(element("k3"), 10);
+
+        List<DedupElement> elements = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            elements.add(element("k" + i));
+        }
+        List<ClaimResult> res = persist.batchClaim(elements, 60 * 1000);
+        //结果按原下标合并
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i == 3 ? ClaimResult.CONSUMED : ClaimResult.CLAIMED, res.get(i));
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMING.equals(persist.get(element("k" + i))), i != 3);
+        }
+        for (AtomicInteger calls : batchCalls.values()) {
+            assertTrue(calls.get() <= 1);
+        }
+
+        persist.batchDelete(elements);
+        for (DedupElement element : elements) {
+            assertNull(persist.get(element));
+        }
+    }
+
+    @Test
+    public void recordStoredOnRoutedShardOnly() {
+        Map<String, MemoryPersist> shards = shards("a", "b");
+        ShardedPersist persist = new ShardedPersist(shards);
+        persist.markConsumed(element("k1"), 10);
+        String owner = persist.shardOf(element("k1"));
+        for (Map.Entry<String, MemoryPersist> entry : shards.entrySet()) {
+            assertEquals(entry.getKey().equals(owner), entry.getValue().get(element("k1")) != null);
+        }
+    }
+}
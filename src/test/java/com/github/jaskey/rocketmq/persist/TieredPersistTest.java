@@ -0,0 +1,173 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TieredPersistTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static MemoryPersist failingDurableTier() {
+        return new MemoryPersist() {
+            @Override
+            public String get(DedupElement dedupElement) {
+                throw new IllegalStateException("durable tier down");
+            }
+
+            @Override
+            public List<String> batchGet(List<DedupElement> dedupElements) {
+                throw new IllegalStateException("durable tier down");
+            }
+        };
+    }
+
+    @Test
+    public void consumedInDurableTierOnly() {
+        MemoryPersist fastTier = new MemoryPersist();
+        MemoryPersist durableTier = new MemoryPersist();
+        TieredPersist persist = new TieredPersist(fastTier, durableTier, TieredPersist.Mode.SYNC, 10);
+        durableTier.markConsumed(element("k1"), 60);
+
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        //回填快速层
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, fastTier.get(element("k1")));
+        assertEquals(Arrays.asList(ClaimResult.CONSUMED, ClaimResult.CLAIMED), persist.batchClaim(Arrays.asList(element("k1"), element("k2")), 60 * 1000));
+    }
+
+    @Test
+    public void durableTierFailureReleasesClaim() {
+        MemoryPersist fastTier = new MemoryPersist();
+        TieredPersist persist = new TieredPersist(fastTier, failingDurableTier(), TieredPersist.Mode.SYNC, 10);
+        try {
+            persist.claim(element("k1"), 60 * 1000);
+            fail("should throw");
+        } catch (IllegalStateException e) {
+            //快速层的抢占已释放，稍后重试时可以重新抢占
+            assertNull(fastTier.get(element("k1")));
+        }
+    }
+
+    @Test
+    public void durableTierFailureReleasesBatchClaims() {
+        MemoryPersist fastTier = new MemoryPersist();
+        fastTier.markConsumed(element("consumed"), 10);
+        TieredPersist persist = new TieredPersist(fastTier, failingDurableTier(), TieredPersist.Mode.SYNC, 10);
+        try {
+            persist.batchClaim(Arrays.asList(element("k1"), element("consumed"), element("k2")), 60 * 1000);
+            fail("should throw");
+        } catch (IllegalStateException e) {
+            assertNull(fastTier.get(element("k1")));
+            assertNull(fastTier.get(element("k2")));
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, fastTier.get(element("consumed")));
+        }
+    }
+
+    @Test
+    public void fastTierHitSkipsDurableTier() {
+        AtomicInteger durableReads = new AtomicInteger();
+        MemoryPersist durableTier = new MemoryPersist() {
+            @Override
+            public String get(DedupElement dedupElement) {
+                durableReads.incrementAndGet();
+                return super.get(dedupElement);
+            }
+        };
+        MemoryPersist fastTier = new MemoryPersist();
+        TieredPersist persist = new TieredPersist(fastTier, durableTier, TieredPersist.Mode.SYNC, 10);
+
+        assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(1, durableReads.get());
+        persist.markConsumed(element("k1"), 60);
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, durableTier.get(element("k1")));
+        durableReads.set(0);
+
+        //快速层命中时不访问持久层
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        assertEquals(0, durableReads.get());
+    }
+
+    @Test
+    public void asyncModeFlushesDurableTier() throws Exception {
+        MemoryPersist fastTier = new MemoryPersist();
+        MemoryPersist durableTier = new MemoryPersist();
+        TieredPersist persist = new TieredPersist(fastTier, durableTier, TieredPersist.Mode.ASYNC, 10, true);
+        try {
+            persist.claim(element("k1"), 60 * 1000);
+            persist.markConsumed(element("k1"), 60);
+            //快速层丢失记录后，还没写入持久层的已消费记录仍然能读到
+            fastTier.delete(element("k1"));
+            assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (durableTier.get(element("k1")) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, durableTier.get(element("k1")));
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncModeClaimsOnlyFastTier() {
+        MemoryPersist durableTier = new MemoryPersist() {
+            @Override
+            public String get(DedupElement dedupElement) {
+                throw new AssertionError("durable tier should not be read");
+            }
+
+            @Override
+            public List<String> batchGet(List<DedupElement> dedupElements) {
+                throw new AssertionError("durable tier should not be read");
+            }
+        };
+        TieredPersist persist = new TieredPersist(new MemoryPersist(), durableTier, TieredPersist.Mode.ASYNC, 10);
+        try {
+            assertEquals(ClaimResult.CLAIMED, persist.claim(element("k1"), 60 * 1000));
+            assertEquals(Arrays.asList(ClaimResult.CLAIMED, ClaimResult.CONSUMING), persist.batchClaim(Arrays.asList(element("k2"), element("k1")), 60 * 1000));
+            assertNull(persist.get(element("k3")));
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void readThroughCappedByReserveMinutes() {
+        MemoryPersist fastTier = new MemoryPersist();
+        MemoryPersist durableTier = new MemoryPersist();
+        TieredPersist persist = new TieredPersist(fastTier, durableTier, TieredPersist.Mode.SYNC, 10);
+        durableTier.markConsumed(element("k1"), 60);
+        durableTier.markConsumed(element("k2"), 60);
+
+        //还没有写入过，按fastReserveMinutes回填
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 60 * 1000));
+        assertTrue(fastExpireTime(fastTier, element("k1")) > System.currentTimeMillis() + 5 * 60 * 1000);
+
+        //写入过保留2分钟的记录后，回填的记录不超过2分钟
+        persist.markConsumed(element("k3"), 2);
+        assertEquals(Arrays.asList(ClaimResult.CONSUMED), persist.batchClaim(Arrays.asList(element("k2")), 60 * 1000));
+        assertTrue(fastExpireTime(fastTier, element("k2")) <= System.currentTimeMillis() + 2 * 60 * 1000);
+        assertTrue(fastExpireTime(fastTier, element("k3")) <= System.currentTimeMillis() + 2 * 60 * 1000);
+    }
+
+    private static long fastExpireTime(MemoryPersist fastTier, DedupElement dedupElement) {
+        AtomicLong expireTime = new AtomicLong();
+        fastTier.forEachConsumed((e, t) -> {
+            if (e.equals(dedupElement)) {
+                expireTime.set(t);
+            }
+        });
+        return expireTime.get();
+    }
+}
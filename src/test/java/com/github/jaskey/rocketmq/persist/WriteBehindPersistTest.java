@@ -0,0 +1,96 @@
+package com.github.jaskey.rocketmq.persist;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindPersistTest {
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void pendingUntilFlushed() throws Exception {
+        MemoryPersist delegate = new MemoryPersist();
+        WriteBehindPersist persist = new WriteBehindPersist(delegate, 100, 10, 20, 0);
+        DedupElement dedupElement = element("k1");
+        try {
+            assertEquals(ClaimResult.CLAIMED, persist.claim(dedupElement, 60 * 1000));
+            persist.markConsumed(dedupElement, 10);
+            //本地视为已消费
+            assertEquals(ClaimResult.CONSUMED, persist.claim(dedupElement, 60 * 1000));
+
+            waitUntil(() -> !persist.isMarkConsumedPending(dedupElement));
+            assertEquals(IPersist.CONSUME_STATUS_CONSUMED, delegate.get(dedupElement));
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void requeueFailedFlush() throws Exception {
+        AtomicInteger failures = new AtomicInteger(2);
+        MemoryPersist delegate = new MemoryPersist() {
+            @Override
+            public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("store down");
+                }
+                super.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+            }
+        };
+        WriteBehindPersist persist = new WriteBehindPersist(delegate, 100, 10, 10, 0);
+        DedupElement dedupElement = element("k1");
+        try {
+            persist.claim(dedupElement, 60 * 1000);
+            persist.markConsumed(dedupElement, 10);
+
+            //写入存储后才清除待写入的标记，两者都要等到
+            waitUntil(() -> IPersist.CONSUME_STATUS_CONSUMED.equals(delegate.get(dedupElement)) && !persist.isMarkConsumedPending(dedupElement));
+            assertEquals(2, persist.getFlushFailCount());
+            assertEquals(2, persist.getRequeueCount());
+        } finally {
+            persist.shutdown();
+        }
+    }
+
+    @Test
+    public void deletedWhileRequeuedNotWritten() throws Exception {
+        AtomicInteger failures = new AtomicInteger(1);
+        MemoryPersist delegate = new MemoryPersist() {
+            @Override
+            public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("store down");
+                }
+                super.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+            }
+        };
+        WriteBehindPersist persist = new WriteBehindPersist(delegate, 100, 10, 200, 0);
+        DedupElement dedupElement = element("k1");
+        try {
+            persist.claim(dedupElement, 60 * 1000);
+            persist.markConsumed(dedupElement, 10);
+            waitUntil(() -> persist.getRequeueCount() == 1);
+            persist.delete(dedupElement);
+        } finally {
+            persist.shutdown();
+        }
+        assertNull(delegate.get(dedupElement));
+    }
+}
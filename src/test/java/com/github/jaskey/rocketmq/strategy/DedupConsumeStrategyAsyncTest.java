@@ -0,0 +1,83 @@
+package com.github.jaskey.rocketmq.strategy;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.InMemoryAsyncPersist;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 批内并行消费时，去重存储为AsyncPersist的异步路径
+ */
+public class DedupConsumeStrategyAsyncTest {
+
+    private static final Function<MessageExt, Boolean> ALWAYS_SUCCESS = m -> true;
+
+    private static final Executor REJECT_ALL = r -> {
+        throw new RejectedExecutionException("rejected");
+    };
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static DedupConsumeStrategy strategy(DedupConfig dedupConfig) {
+        return new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+    }
+
+    @Test
+    public void consumeAndMarkConsumed() throws Exception {
+        InMemoryAsyncPersist persist = new InMemoryAsyncPersist();
+        DedupConsumeStrategy strategy = strategy(DedupConfig.enableDedupConsumeConfig("app", persist));
+
+        assertTrue(strategy.invokeAsync(ALWAYS_SUCCESS, message("topic", "k1"), Runnable::run).get());
+        assertEquals(ClaimResult.CONSUMED, persist.claim(element("k1"), 1000));
+    }
+
+    @Test
+    public void releaseClaimWhenExecutorRejects() throws Exception {
+        InMemoryAsyncPersist persist = new InMemoryAsyncPersist();
+        DedupConsumeStrategy strategy = strategy(DedupConfig.enableDedupConsumeConfig("app", persist));
+
+        CompletableFuture<Boolean> res = strategy.invokeAsync(ALWAYS_SUCCESS, message("topic", "k1"), REJECT_ALL);
+        try {
+            res.get();
+            fail("should fail when executor rejects");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        //抢占的记录已释放，重投的消息可以立即重新消费
+        assertNull(persist.get(element("k1")));
+    }
+
+    @Test
+    public void unregisterInFlightWhenClaimThrows() throws Exception {
+        InMemoryAsyncPersist persist = new InMemoryAsyncPersist() {
+            @Override
+            public CompletionStage<ClaimResult> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+                throw new IllegalStateException("store down");
+            }
+        };
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        dedupConfig.enableInFlightCoalescing(100);
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+
+        CompletableFuture<Boolean> res = strategy.invokeAsync(ALWAYS_SUCCESS, message("topic", "k1"), Runnable::run);
+        assertTrue(res.isCompletedExceptionally());
+        assertEquals(0, dedupConfig.getInFlightRegistry().getInFlightCount());
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.jaskey.rocketmq.strategy;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 批量去重消费
+ */
+public class DedupConsumeStrategyBatchTest {
+
+    //统计批量调用的次数
+    private static class BatchCountingPersist extends MemoryPersist {
+        final AtomicInteger batchClaimCount = new AtomicInteger();
+        final AtomicInteger batchMarkConsumedCount = new AtomicInteger();
+        final AtomicInteger batchDeleteCount = new AtomicInteger();
+
+        @Override
+        public List<ClaimResult> batchClaim(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+            batchClaimCount.incrementAndGet();
+            return super.batchClaim(dedupElements, dedupProcessingExpireMilliSeconds);
+        }
+
+        @Override
+        public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+            batchMarkConsumedCount.incrementAndGet();
+            super.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        }
+
+        @Override
+        public void batchDelete(List<DedupElement> dedupElements) {
+            batchDeleteCount.incrementAndGet();
+            super.batchDelete(dedupElements);
+        }
+    }
+
+    private final BatchCountingPersist persist = new BatchCountingPersist();
+
+    private final DedupConsumeStrategy strategy = new DedupConsumeStrategy(DedupConfig.enableDedupConsumeConfig("app", persist), DedupConfig.defaultDedupMessageKeyFunction);
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static List<MessageExt> messages(String... keys) {
+        List<MessageExt> msgs = new ArrayList<>();
+        for (String key : keys) {
+            msgs.add(message("topic", key));
+        }
+        return msgs;
+    }
+
+    @Test
+    public void oneRoundTripPerBatch() {
+        persist.markConsumed(element("consumed"), 10);
+        List<String> handled = new ArrayList<>();
+        Function<MessageExt, Boolean> callback = m -> handled.add(m.getMsgId());
+
+        assertEquals(3, strategy.invokeBatch(callback, messages("k1", "consumed", "k2", "k1")));
+        //已消费过的、同批次内重复的都不再消费
+        assertEquals(Arrays.asList("msgId-k1", "msgId-k2"), handled);
+        assertEquals(1, persist.batchClaimCount.get());
+        assertEquals(1, persist.batchMarkConsumedCount.get());
+        assertEquals(0, persist.batchDeleteCount.get());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("k1")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("k2")));
+    }
+
+    @Test
+    public void stopAtFirstFailure() {
+        Function<MessageExt, Boolean> callback = m -> !"msgId-k2".equals(m.getMsgId());
+
+        assertEquals(1, strategy.invokeBatch(callback, messages("k0", "k1", "k2", "k3")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("k0")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("k1")));
+        //消费失败的和没轮到消费的一次批量删除，重发后可以重新抢占
+        assertNull(persist.get(element("k2")));
+        assertNull(persist.get(element("k3")));
+        assertEquals(1, persist.batchDeleteCount.get());
+    }
+
+    @Test
+    public void consumingStopsBatch() {
+        persist.claim(element("k1"), 60 * 1000);
+
+        assertEquals(0, strategy.invokeBatch(m -> true, messages("k0", "k1", "k2")));
+        //别人正在消费的记录不能删除
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, persist.get(element("k1")));
+        assertNull(persist.get(element("k2")));
+    }
+
+    @Test
+    public void callbackExceptionTreatedAsFailure() {
+        Function<MessageExt, Boolean> callback = m -> {
+            if ("msgId-k1".equals(m.getMsgId())) {
+                throw new IllegalStateException("boom");
+            }
+            return true;
+        };
+        assertEquals(0, strategy.invokeBatch(callback, messages("k0", "k1")));
+        assertNull(persist.get(element("k1")));
+    }
+}
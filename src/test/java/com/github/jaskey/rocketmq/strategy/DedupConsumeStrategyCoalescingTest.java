@@ -0,0 +1,155 @@
+package com.github.jaskey.rocketmq.strategy;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.core.InFlightRegistry;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 本进程内并发的重复消息合并
+ */
+public class DedupConsumeStrategyCoalescingTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final DedupConsumeStrategyTest.CountingPersist persist = new DedupConsumeStrategyTest.CountingPersist();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final AtomicInteger handled = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private final DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+
+    private DedupConsumeStrategy strategy(long waitMilliSeconds) {
+        dedupConfig.enableInFlightCoalescing(waitMilliSeconds);
+        return new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+    }
+
+    //第一个副本在另一个线程消费，等待release后返回firstResult
+    private Future<Boolean> consumeFirst(DedupConsumeStrategy strategy, boolean firstResult) throws Exception {
+        Function<MessageExt, Boolean> blocking = m -> {
+            handled.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return firstResult;
+        };
+        Future<Boolean> first = executor.submit(() -> strategy.invoke(blocking, message("topic", "k1")));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return first;
+    }
+
+    //后到的副本开始等待后才让第一个副本结束
+    private void releaseAfterCoalesced() {
+        new Thread(() -> {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dedupConfig.getInFlightRegistry().getCoalescedCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            release.countDown();
+        }).start();
+    }
+
+    @Test
+    public void ackWhenFirstAcked() throws Exception {
+        DedupConsumeStrategy strategy = strategy(5000);
+        Future<Boolean> first = consumeFirst(strategy, true);
+        releaseAfterCoalesced();
+
+        assertTrue(strategy.invoke(m -> handled.incrementAndGet() > 0, message("topic", "k1")));
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, handled.get());
+        //后到的副本没有访问去重存储
+        assertEquals(1, persist.claimCount.get() + persist.setConsumingIfNXCount.get());
+        InFlightRegistry registry = dedupConfig.getInFlightRegistry();
+        assertEquals(1, registry.getCoalescedCount());
+        assertEquals(0, registry.getInFlightCount());
+    }
+
+    @Test
+    public void claimAgainWhenFirstFailed() throws Exception {
+        DedupConsumeStrategy strategy = strategy(5000);
+        Future<Boolean> first = consumeFirst(strategy, false);
+        releaseAfterCoalesced();
+
+        assertTrue(strategy.invoke(m -> handled.incrementAndGet() > 0, message("topic", "k1")));
+        assertFalse(first.get(5, TimeUnit.SECONDS));
+        assertEquals(2, handled.get());
+        assertEquals(0, dedupConfig.getInFlightRegistry().getInFlightCount());
+    }
+
+    @Test
+    public void oneWaiterClaimsAgainWhenFirstFailed() throws Exception {
+        DedupConsumeStrategy strategy = strategy(5000);
+        Future<Boolean> first = consumeFirst(strategy, false);
+        InFlightRegistry registry = dedupConfig.getInFlightRegistry();
+
+        //新的消费者等另一个副本重新开始等待后才结束
+        Function<MessageExt, Boolean> waiterCallback = m -> {
+            handled.incrementAndGet();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.getCoalescedCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            return true;
+        };
+        ExecutorService waiters = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> waiter1 = waiters.submit(() -> strategy.invoke(waiterCallback, message("topic", "k1")));
+            Future<Boolean> waiter2 = waiters.submit(() -> strategy.invoke(waiterCallback, message("topic", "k1")));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.getCoalescedCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            release.countDown();
+
+            assertFalse(first.get(5, TimeUnit.SECONDS));
+            assertTrue(waiter1.get(5, TimeUnit.SECONDS));
+            assertTrue(waiter2.get(5, TimeUnit.SECONDS));
+        } finally {
+            waiters.shutdownNow();
+        }
+        //只有一个等待的副本重新抢占、消费，另一个继续等待它的结果
+        assertEquals(2, handled.get());
+        assertEquals(2, persist.claimCount.get() + persist.setConsumingIfNXCount.get());
+        assertEquals(3, registry.getCoalescedCount());
+        assertEquals(0, registry.getInFlightCount());
+    }
+
+    @Test
+    public void consumeLaterWhenWaitTimeout() throws Exception {
+        DedupConsumeStrategy strategy = strategy(50);
+        Future<Boolean> first = consumeFirst(strategy, true);
+
+        assertFalse(strategy.invoke(m -> handled.incrementAndGet() > 0, message("topic", "k1")));
+        assertEquals(1, dedupConfig.getInFlightRegistry().getWaitTimeoutCount());
+        release.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, handled.get());
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.jaskey.rocketmq.strategy;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 重复消息正在消费中时的等待
+ */
+public class DedupConsumeStrategyConsumingWaitTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final MemoryPersist persist = new MemoryPersist();
+
+    private final AtomicInteger handled = new AtomicInteger();
+
+    private final Function<MessageExt, Boolean> callback = m -> handled.incrementAndGet() > 0;
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private DedupConsumeStrategy strategy(long consumingWaitMilliSeconds) {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        dedupConfig.setConsumingWaitMilliSeconds(consumingWaitMilliSeconds);
+        return new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+    }
+
+    @Test
+    public void ackAfterOtherConsumed() {
+        persist.claim(element("k1"), 60 * 1000);
+        scheduler.schedule(() -> persist.markConsumed(element("k1"), 10), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(strategy(2000).invoke(callback, message("topic", "k1")));
+        assertEquals(0, handled.get());
+    }
+
+    @Test
+    public void consumeAfterOtherFailed() {
+        persist.claim(element("k1"), 60 * 1000);
+        //前一个消费失败删除了记录，等待中的副本抢占成功后自己消费
+        scheduler.schedule(() -> persist.delete(element("k1")), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(strategy(2000).invoke(callback, message("topic", "k1")));
+        assertEquals(1, handled.get());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, persist.get(element("k1")));
+    }
+
+    @Test
+    public void consumeLaterAfterWaitTimeout() {
+        persist.claim(element("k1"), 60 * 1000);
+
+        long start = System.currentTimeMillis();
+        assertFalse(strategy(100).invoke(callback, message("topic", "k1")));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("elapsed " + elapsed, elapsed >= 100 && elapsed < 1000);
+        assertEquals(0, handled.get());
+        //没有抢占到，不能删除别人的记录
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, persist.get(element("k1")));
+    }
+
+    @Test
+    public void batchSharesOneWaitDeadline() {
+        persist.claim(element("k1"), 60 * 1000);
+        persist.claim(element("k2"), 60 * 1000);
+        scheduler.schedule(() -> persist.markConsumed(element("k1"), 10), 50, TimeUnit.MILLISECONDS);
+
+        long start = System.currentTimeMillis();
+        //k1等到消费完成，k2在剩余的等待时间内仍在消费中，从k2开始稍后重试
+        int ackIndex = strategy(300).invokeBatch(callback, Arrays.asList(message("topic", "k0"), message("topic", "k1"), message("topic", "k2"), message("topic", "k3")));
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(1, ackIndex);
+        assertTrue("elapsed " + elapsed, elapsed >= 300 && elapsed < 1000);
+        assertEquals(1, handled.get());
+        //没轮到消费的k3释放掉
+        assertEquals(null, persist.get(element("k3")));
+    }
+}
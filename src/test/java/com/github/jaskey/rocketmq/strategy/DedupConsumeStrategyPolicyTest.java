@@ -0,0 +1,116 @@
+package com.github.jaskey.rocketmq.strategy;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.core.DedupPolicy;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.IPersist;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按TOPIC/TAG单独配置的去重策略
+ */
+public class DedupConsumeStrategyPolicyTest {
+
+    private final MemoryPersist defaultPersist = new MemoryPersist();
+
+    private final AtomicInteger handled = new AtomicInteger();
+
+    private final Function<MessageExt, Boolean> callback = m -> handled.incrementAndGet() > 0;
+
+    private static MessageExt taggedMessage(String topic, String tag, String uniqKey) {
+        MessageExt messageExt = message(topic, uniqKey);
+        messageExt.setTags(tag);
+        return messageExt;
+    }
+
+    private static DedupConsumeStrategy strategy(DedupConfig dedupConfig) {
+        return new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+    }
+
+    @Test
+    public void policyPersistUsedForTopic() {
+        MemoryPersist orderPersist = new MemoryPersist();
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", defaultPersist);
+        dedupConfig.setDedupPolicy("order", DedupPolicy.consumeLater(60 * 1000, 60, orderPersist));
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+
+        assertTrue(strategy.invoke(callback, message("order", "k1")));
+        assertTrue(strategy.invoke(callback, message("other", "k1")));
+        assertEquals(2, handled.get());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, orderPersist.get(new DedupElement("app", "order", "", "k1")));
+        assertNull(defaultPersist.get(new DedupElement("app", "order", "", "k1")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, defaultPersist.get(new DedupElement("app", "other", "", "k1")));
+    }
+
+    @Test
+    public void disabledTagSkipsPersist() {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", defaultPersist);
+        dedupConfig.setDedupPolicy("order", "log", DedupPolicy.disable());
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+
+        assertTrue(strategy.invoke(callback, taggedMessage("order", "log", "k1")));
+        assertTrue(strategy.invoke(callback, taggedMessage("order", "log", "k1")));
+        assertEquals(2, handled.get());
+        assertNull(defaultPersist.get(new DedupElement("app", "order", "log", "k1")));
+
+        //同TOPIC的其他TAG仍然去重
+        assertTrue(strategy.invoke(callback, taggedMessage("order", "pay", "k1")));
+        assertTrue(strategy.invoke(callback, taggedMessage("order", "pay", "k1")));
+        assertEquals(3, handled.get());
+    }
+
+    @Test
+    public void dedupOnlyConfiguredTopic() {
+        DedupConfig dedupConfig = DedupConfig.disableDupConsumeConfig("app");
+        dedupConfig.setDedupPolicy("order", DedupPolicy.consumeLater(60 * 1000, 60, defaultPersist));
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+
+        strategy.invoke(callback, message("order", "k1"));
+        strategy.invoke(callback, message("order", "k1"));
+        strategy.invoke(callback, message("other", "k1"));
+        strategy.invoke(callback, message("other", "k1"));
+        assertEquals(3, handled.get());
+    }
+
+    @Test
+    public void dropWhenConsuming() {
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", defaultPersist);
+        dedupConfig.setDedupPolicy("order", DedupPolicy.dropWhenConsuming(60 * 1000, 60));
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+        defaultPersist.claim(new DedupElement("app", "order", "", "k1"), 60 * 1000);
+        defaultPersist.claim(new DedupElement("app", "other", "", "k1"), 60 * 1000);
+
+        //DROP策略直接ack，默认策略稍后重试
+        assertTrue(strategy.invoke(callback, message("order", "k1")));
+        assertFalse(strategy.invoke(callback, message("other", "k1")));
+        assertEquals(0, handled.get());
+        //丢弃不会删除正在消费的记录
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMING, defaultPersist.get(new DedupElement("app", "order", "", "k1")));
+    }
+
+    @Test
+    public void mixedPoliciesInBatchFallBackToEach() {
+        MemoryPersist orderPersist = new MemoryPersist();
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", defaultPersist);
+        dedupConfig.setDedupPolicy("order", DedupPolicy.consumeLater(60 * 1000, 60, orderPersist));
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+
+        int ackIndex = strategy.invokeBatch(callback, Arrays.asList(message("order", "k1"), message("other", "k1"), message("order", "k1")));
+        assertEquals(2, ackIndex);
+        assertEquals(2, handled.get());
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, orderPersist.get(new DedupElement("app", "order", "", "k1")));
+        assertEquals(IPersist.CONSUME_STATUS_CONSUMED, defaultPersist.get(new DedupElement("app", "other", "", "k1")));
+    }
+}
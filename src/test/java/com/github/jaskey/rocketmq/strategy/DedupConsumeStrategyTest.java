@@ -0,0 +1,117 @@
+package com.github.jaskey.rocketmq.strategy;
+
+import com.github.jaskey.rocketmq.core.DedupConfig;
+import com.github.jaskey.rocketmq.persist.ClaimResult;
+import com.github.jaskey.rocketmq.persist.DedupElement;
+import com.github.jaskey.rocketmq.persist.MemoryPersist;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.github.jaskey.rocketmq.TestMessages.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 逐条消费时的去重
+ */
+public class DedupConsumeStrategyTest {
+
+    private static final Function<MessageExt, Boolean> ALWAYS_SUCCESS = m -> true;
+
+    private static DedupElement element(String key) {
+        return new DedupElement("app", "topic", "", key);
+    }
+
+    private static DedupConsumeStrategy strategy(DedupConfig dedupConfig) {
+        return new DedupConsumeStrategy(dedupConfig, DedupConfig.defaultDedupMessageKeyFunction);
+    }
+
+    //统计每种存储调用的次数
+    static class CountingPersist extends MemoryPersist {
+        final AtomicInteger setConsumingIfNXCount = new AtomicInteger();
+        final AtomicInteger claimCount = new AtomicInteger();
+
+        @Override
+        public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            setConsumingIfNXCount.incrementAndGet();
+            //MemoryPersist的setConsumingIfNX基于claim，不计入claim的次数
+            return super.claim(dedupElement, dedupProcessingExpireMilliSeconds) == ClaimResult.CLAIMED;
+        }
+
+        @Override
+        public ClaimResult claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            claimCount.incrementAndGet();
+            return super.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        }
+    }
+
+    @Test
+    public void consumeOnceAndSkipDuplicate() {
+        MemoryPersist persist = new MemoryPersist();
+        DedupConsumeStrategy strategy = strategy(DedupConfig.enableDedupConsumeConfig("app", persist));
+        AtomicInteger handled = new AtomicInteger();
+        Function<MessageExt, Boolean> callback = m -> handled.incrementAndGet() > 0;
+
+        assertTrue(strategy.invoke(callback, message("topic", "k1")));
+        assertTrue(strategy.invoke(callback, message("topic", "k1")));
+        assertEquals(1, handled.get());
+        assertEquals(MemoryPersist.CONSUME_STATUS_CONSUMED, persist.get(element("k1")));
+    }
+
+    @Test
+    public void releaseOnConsumeFail() {
+        MemoryPersist persist = new MemoryPersist();
+        DedupConsumeStrategy strategy = strategy(DedupConfig.enableDedupConsumeConfig("app", persist));
+
+        assertFalse(strategy.invoke(m -> false, message("topic", "k1")));
+        //消费失败删除记录，重投的消息可以立即重新消费
+        assertEquals(null, persist.get(element("k1")));
+        assertTrue(strategy.invoke(ALWAYS_SUCCESS, message("topic", "k1")));
+    }
+
+    @Test
+    public void consumeLaterWhenConsuming() {
+        MemoryPersist persist = new MemoryPersist();
+        DedupConsumeStrategy strategy = strategy(DedupConfig.enableDedupConsumeConfig("app", persist));
+        persist.claim(element("k1"), 60 * 1000);
+
+        assertFalse(strategy.invoke(ALWAYS_SUCCESS, message("topic", "k1")));
+        //其他消费者的记录不能被删除
+        assertEquals(MemoryPersist.CONSUME_STATUS_CONSUMING, persist.get(element("k1")));
+    }
+
+    @Test
+    public void preFilterUsesSetIfAbsentForFirstSeen() {
+        CountingPersist persist = new CountingPersist();
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        dedupConfig.enablePreFilter(1000, 0.001);
+        DedupConsumeStrategy strategy = strategy(dedupConfig);
+
+        assertTrue(strategy.invoke(ALWAYS_SUCCESS, message("topic", "k1")));
+        assertEquals(1, persist.setConsumingIfNXCount.get());
+        assertEquals(0, persist.claimCount.get());
+
+        //本进程见过的消息走完整的抢占，拿到已消费的状态
+        assertTrue(strategy.invoke(ALWAYS_SUCCESS, message("topic", "k1")));
+        assertEquals(1, persist.setConsumingIfNXCount.get());
+        assertEquals(1, persist.claimCount.get());
+    }
+
+    @Test
+    public void preFilterFallsBackWhenOtherInstanceConsumed() {
+        CountingPersist persist = new CountingPersist();
+        persist.markConsumed(element("k1"), 10);
+        DedupConfig dedupConfig = DedupConfig.enableDedupConsumeConfig("app", persist);
+        dedupConfig.enablePreFilter(1000, 0.001);
+        AtomicInteger handled = new AtomicInteger();
+
+        //本进程没见过，但其他实例已经消费过
+        assertTrue(strategy(dedupConfig).invoke(m -> handled.incrementAndGet() > 0, message("topic", "k1")));
+        assertEquals(0, handled.get());
+        assertEquals(1, persist.claimCount.get());
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.jaskey.rocketmq.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonFieldScannerTest {
+
+    //返回各字段值的原始文本，不存在为null；不是合法的JSON对象返回null
+    private static String[] scan(String json, String... fields) {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        int[] spans = new int[fields.length * 2];
+        if (!new JsonFieldScanner(fields).scan(data, 0, data.length, spans)) {
+            return null;
+        }
+        String[] res = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            res[i] = spans[2 * i] < 0 ? null : new String(data, spans[2 * i], spans[2 * i + 1] - spans[2 * i], StandardCharsets.UTF_8);
+        }
+        return res;
+    }
+
+    @Test
+    public void locateTopLevelValues() {
+        String[] res = scan(" { \"nested\" : {\"orderId\": 0, \"s\": \"}\"}, \"orderId\" : 42 , \"name\":\"a\\\"b\", \"items\":[1,{\"x\":\"]\"}], \"ok\":true }",
+                "orderId", "name", "items", "ok", "missing");
+        assertEquals("42", res[0]);
+        assertEquals("\"a\\\"b\"", res[1]);
+        assertEquals("[1,{\"x\":\"]\"}]", res[2]);
+        assertEquals("true", res[3]);
+        assertNull(res[4]);
+    }
+
+    @Test
+    public void firstDuplicateWins() {
+        assertEquals("1", scan("{\"id\":1,\"id\":2}", "id")[0]);
+    }
+
+    @Test
+    public void stopAfterAllFound() {
+        //字段找全后不再校验剩余部分
+        assertEquals("1", scan("{\"id\":1, broken", "id")[0]);
+        assertNull(scan("{\"other\":1, broken", "id"));
+    }
+
+    @Test
+    public void rejectNonObject() {
+        assertNull(scan("[1,2]", "id"));
+        assertNull(scan("plain text", "id"));
+        assertNull(scan("{\"id\":\"unterminated}", "id"));
+        assertNull(scan("{\"id\" 1}", "id"));
+        assertNull(scan("", "id"));
+        assertTrue(scan("{ }", "id")[0] == null);
+    }
+
+    @Test
+    public void scanSubRange() {
+        byte[] data = "xx{\"id\":7}yy".getBytes(StandardCharsets.UTF_8);
+        int[] spans = new int[2];
+        assertTrue(new JsonFieldScanner("id").scan(data, 2, data.length - 4, spans));
+        assertEquals("7", new String(data, spans[0], spans[1] - spans[0], StandardCharsets.UTF_8));
+        assertFalse(new JsonFieldScanner("id").scan(data, 0, data.length, spans));
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.jaskey.rocketmq.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class MurmurHash3Test {
+
+    private static final byte[] FOX = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void knownHash() {
+        //与Guava的Hashing.murmur3_128()结果一致
+        assertEquals("e34bbc7bbc071b6c7a433ca9c49a9347", MurmurHash3.toHex(MurmurHash3.hash128(FOX, 0, FOX.length, 0)));
+        assertEquals("00000000000000000000000000000000", MurmurHash3.toHex(MurmurHash3.hash128(new byte[0], 0, 0, 0)));
+    }
+
+    @Test
+    public void offsetAndSeed() {
+        //不对齐的offset、带尾部字节
+        assertEquals("e574dfec2726b9c8a9cd0ee2d2071e9f", MurmurHash3.toHex(MurmurHash3.hash128(FOX, 3, 33, 42)));
+        byte[] copy = new byte[33];
+        System.arraycopy(FOX, 3, copy, 0, 33);
+        assertEquals(MurmurHash3.toHex(MurmurHash3.hash128(copy, 0, 33, 42)), MurmurHash3.toHex(MurmurHash3.hash128(FOX, 3, 33, 42)));
+    }
+}